@@ -1,8 +1,10 @@
-use std::sync::{Arc, Mutex};
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::{Arc, Mutex, MutexGuard, RwLock};
+use std::time::Duration;
 
-use jni::objects::{GlobalRef, JByteArray, JClass, JMethodID, JObject, JString, JValue};
+use jni::objects::{GlobalRef, JByteArray, JByteBuffer, JClass, JMethodID, JObject, JString, JValue};
 use jni::signature::{Primitive, ReturnType};
-use jni::sys::{jlong, jstring};
+use jni::sys::{jboolean, jint, jlong, jstring, JNI_TRUE};
 use jni::{JNIEnv, JavaVM};
 
 use rand_core::OsRng;
@@ -16,16 +18,20 @@ use reticulum::iface::tcp_client::TcpClient;
 
 use serde::{Deserialize, Serialize};
 use tokio::runtime::Runtime;
-use tokio::sync::mpsc::Sender;
+use tokio::sync::mpsc::error::TrySendError;
+use tokio::sync::mpsc::{Sender, UnboundedReceiver, UnboundedSender};
 use tokio_util::sync::CancellationToken;
 
 use android_log;
 use log::{self, LevelFilter};
 
 use crate::event::Event;
-use crate::messenger::{Messenger, MessengerCommand, Platform};
-use crate::model::{Broadcast, CallVideoData, CallAudioData, Connection, ContactData, FileChunk, MessengerError};
+use crate::messenger::{FileLinkStats, Messenger, MessengerCommand, Platform, SendQueueLimit, SEND_QUEUE_SIZE};
+use crate::model::{
+    Broadcast, CallVideoData, CallAudioData, Connection, ContactData, FileChunk, MessengerError, RetransmitConfig,
+};
 use crate::preset::RADIO_PRESETS;
+use crate::session::SessionRegistry;
 
 #[derive(Clone)]
 struct KaonicJni {
@@ -33,11 +39,15 @@ struct KaonicJni {
     obj: GlobalRef,
 
     receive_method: JMethodID,
+    receive_batch_method: JMethodID,
     feed_audio_method: JMethodID,
     feed_video_method: JMethodID,
     request_file_chunk_method: JMethodID,
     receive_file_chunk_method: JMethodID,
     receive_broadcast_method: JMethodID,
+    feed_audio_session_method: JMethodID,
+    request_file_chunk_session_method: JMethodID,
+    receive_file_chunk_session_method: JMethodID,
 
     jvm: Arc<JavaVM>,
 }
@@ -46,6 +56,8 @@ struct KaonicJni {
 struct MessengerStartConfig {
     contact: ContactData,
     connections: Vec<Connection>,
+    #[serde(default)]
+    retransmit: RetransmitConfig,
 }
 
 #[derive(Serialize, Deserialize)]
@@ -54,20 +66,173 @@ struct MessengerCreds {
     my_address: String,
 }
 
+/// Coalesce events received within `window` (up to `max_events`) into one platform call
+#[derive(Clone, Copy)]
+struct EventBatchConfig {
+    window: Duration,
+    max_events: usize,
+}
+
+/// Tokio runtime settings passed to nativeInit
+struct RuntimeConfig {
+    /// ignored by the current thread runtime
+    worker_threads: usize,
+    current_thread: bool,
+    thread_name_prefix: String,
+    /// 0 keeps the tokio default
+    stack_size: usize,
+}
+
 struct KaonicLib {
     jni: Arc<Mutex<KaonicJni>>,
+    sessions: Arc<SessionRegistry>,
     runtime: Arc<Runtime>,
+    /// Worker threads of a multi thread runtime, 1 for the current thread runtime
+    runtime_workers: usize,
+    /// Runtime threads alive now, blocking pool threads included
+    runtime_threads: Arc<AtomicUsize>,
+    /// Stops the thread driving the current thread runtime
+    runtime_shutdown: CancellationToken,
+    /// Replaced by start and stop while other threads send, every call clones them out
+    channels: RwLock<MessengerChannels>,
+    settings: Mutex<StartSettings>,
+}
+
+/// Channels of the running messenger
+#[derive(Clone)]
+struct MessengerChannels {
     cancel: CancellationToken,
     cmd_send: Sender<MessengerCommand>,
+    /// File chunks, kept apart so they never queue ahead of messages and calls
+    file_cmd_send: Sender<MessengerCommand>,
     kaonic_config_send: Sender<RadioConfig>,
+    /// Events accepted for each destination
+    send_limit: Arc<SendQueueLimit>,
+}
+
+impl MessengerChannels {
+    /// Closed right away like before the first start, events sent to them are refused
+    fn closed(destination_queue_size: usize) -> Self {
+        let (cmd_send, _) = tokio::sync::mpsc::channel(1);
+        let (file_cmd_send, _) = tokio::sync::mpsc::channel(1);
+        let (kaonic_config_send, _) = tokio::sync::mpsc::channel(1);
+        Self {
+            cancel: CancellationToken::new(),
+            cmd_send,
+            file_cmd_send,
+            kaonic_config_send,
+            send_limit: Arc::new(SendQueueLimit::new(destination_queue_size)),
+        }
+    }
+}
+
+/// Applied by the next start
+#[derive(Clone, Copy)]
+struct StartSettings {
+    event_batch: Option<EventBatchConfig>,
+    /// Capacity of the command channel
+    command_queue_size: usize,
+    /// Capacity of the destination send queues
+    destination_queue_size: usize,
+}
+
+impl KaonicLib {
+    fn channels(&self) -> MessengerChannels {
+        self.channels.read().expect("channels locked").clone()
+    }
+
+    fn settings(&self) -> MutexGuard<'_, StartSettings> {
+        self.settings.lock().expect("settings locked")
+    }
+}
+
+/// Commands from the platform waiting for the messenger
+const DEFAULT_COMMAND_QUEUE_SIZE: usize = 16;
+
+impl Drop for KaonicLib {
+    fn drop(&mut self) {
+        self.runtime_shutdown.cancel();
+    }
+}
+
+fn build_runtime(config: &RuntimeConfig, live_threads: Arc<AtomicUsize>) -> std::io::Result<Runtime> {
+    let mut builder = if config.current_thread {
+        tokio::runtime::Builder::new_current_thread()
+    } else {
+        let mut builder = tokio::runtime::Builder::new_multi_thread();
+        builder.worker_threads(config.worker_threads);
+        builder
+    };
+
+    let prefix = config.thread_name_prefix.clone();
+    let next_id = AtomicUsize::new(0);
+    builder.thread_name_fn(move || format!("{}-{}", prefix, next_id.fetch_add(1, Ordering::Relaxed)));
+
+    if config.stack_size > 0 {
+        builder.thread_stack_size(config.stack_size);
+    }
+
+    let started = live_threads.clone();
+    builder
+        .on_thread_start(move || {
+            started.fetch_add(1, Ordering::Relaxed);
+        })
+        .on_thread_stop(move || {
+            live_threads.fetch_sub(1, Ordering::Relaxed);
+        })
+        .enable_all()
+        .build()
+}
+
+/// The current thread runtime runs tasks only while a thread blocks on it
+fn spawn_runtime_driver(
+    config: &RuntimeConfig,
+    runtime: Arc<Runtime>,
+    live_threads: Arc<AtomicUsize>,
+    shutdown: CancellationToken,
+) -> std::io::Result<()> {
+    let mut thread = std::thread::Builder::new().name(config.thread_name_prefix.clone());
+    if config.stack_size > 0 {
+        thread = thread.stack_size(config.stack_size);
+    }
+
+    thread.spawn(move || {
+        live_threads.fetch_add(1, Ordering::Relaxed);
+        runtime.block_on(shutdown.cancelled());
+        live_threads.fetch_sub(1, Ordering::Relaxed);
+    })?;
+
+    Ok(())
+}
+
+/// File control events set up the state the platform needs for chunk upcalls, which are
+/// never batched, so they are delivered right away to arrive before the first chunk
+fn batchable(event: &Event) -> bool {
+    !matches!(
+        event,
+        Event::FileStart(_) | Event::FileResume(_) | Event::FileEnd(_)
+    )
 }
 
 struct PlatformJni {
     jni: Arc<Mutex<KaonicJni>>,
+    sessions: Arc<SessionRegistry>,
+    /// present when events are delivered in batches
+    event_send: Option<UnboundedSender<String>>,
 }
 
 impl Platform for PlatformJni {
     fn send_event(&mut self, event: &crate::event::Event) {
+        let mut json = serde_json::to_string(&event).expect("valid json string");
+
+        if let Some(event_send) = self.event_send.as_ref().filter(|_| batchable(event)) {
+            match event_send.send(json) {
+                Ok(_) => return,
+                // batch task is gone, deliver directly
+                Err(err) => json = err.0,
+            }
+        }
+
         let jni = self.jni.lock().expect("jni locked");
 
         let mut env = jni
@@ -75,8 +240,6 @@ impl Platform for PlatformJni {
             .attach_current_thread_permanently()
             .expect("failed to attach thread");
 
-        let json = serde_json::to_string_pretty(&event).expect("valid json string");
-
         let event_json_str = env.new_string(json).unwrap();
 
         let arguments = [JValue::Object(&event_json_str).as_jni()];
@@ -107,6 +270,25 @@ impl Platform for PlatformJni {
         env.set_byte_array_region(&byte_array, 0, buffer)
             .expect("byte array with data");
 
+        if let Some(session) = self.sessions.find(call_id) {
+            let arguments = [
+                JValue::Int(session).as_jni(),
+                JValue::Object(&byte_array).as_jni(),
+            ];
+
+            unsafe {
+                env.call_method_unchecked(
+                    &jni.obj,
+                    jni.feed_audio_session_method,
+                    ReturnType::Primitive(Primitive::Void),
+                    &arguments[..],
+                )
+                .unwrap()
+            };
+
+            return;
+        }
+
         let address = env.new_string(address).expect("new address string");
         let call_id = env.new_string(call_id).expect("new id string");
 
@@ -162,7 +344,7 @@ impl Platform for PlatformJni {
         };
     }
 
-    fn request_file_chunk(&mut self, address: &String, file_id: &String, chunk_size: usize) {
+    fn request_file_chunk(&mut self, address: &String, file_id: &String, chunk_size: usize, stats: FileLinkStats) {
         let jni = self.jni.lock().expect("jni locked");
 
         let mut env = jni
@@ -170,6 +352,27 @@ impl Platform for PlatformJni {
             .attach_current_thread_permanently()
             .expect("failed to attach thread");
 
+        if let Some(session) = self.sessions.find(file_id) {
+            let arguments = [
+                JValue::Int(session).as_jni(),
+                JValue::Int(chunk_size as i32).as_jni(),
+                JValue::Int(stats.retransmits as i32).as_jni(),
+                JValue::Int(stats.ack_rtt_ms as i32).as_jni(),
+            ];
+
+            unsafe {
+                env.call_method_unchecked(
+                    &jni.obj,
+                    jni.request_file_chunk_session_method,
+                    ReturnType::Primitive(Primitive::Void),
+                    &arguments[..],
+                )
+                .expect("requests method call");
+            };
+
+            return;
+        }
+
         let address = env.new_string(address).expect("new address string");
         let file_id = env.new_string(file_id).expect("new id string");
 
@@ -177,6 +380,8 @@ impl Platform for PlatformJni {
             JValue::Object(&address).as_jni(),
             JValue::Object(&file_id).as_jni(),
             JValue::Int(chunk_size as i32).as_jni(),
+            JValue::Int(stats.retransmits as i32).as_jni(),
+            JValue::Int(stats.ack_rtt_ms as i32).as_jni(),
         ];
 
         unsafe {
@@ -190,7 +395,7 @@ impl Platform for PlatformJni {
         };
     }
 
-    fn receive_file_chunk(&mut self, address: &String, file_id: &String, data: &[u8]) {
+    fn receive_file_chunk(&mut self, address: &String, file_id: &String, offset: Option<u64>, data: &[u8]) {
         let jni = self.jni.lock().expect("jni locked");
 
         let mut env = jni
@@ -198,18 +403,42 @@ impl Platform for PlatformJni {
             .attach_current_thread_permanently()
             .expect("failed to attach thread");
 
-        let address = env.new_string(address).expect("new address string");
-        let file_id = env.new_string(file_id).expect("new id string");
-
         let byte_array = env.new_byte_array(data.len() as i32).unwrap();
         let buffer: &[i8] = unsafe { std::mem::transmute(data) };
 
         env.set_byte_array_region(&byte_array, 0, buffer)
             .expect("byte array with data");
 
+        // -1 lets the platform append the chunk
+        let offset = offset.map(|offset| offset as i64).unwrap_or(-1);
+
+        if let Some(session) = self.sessions.find(file_id) {
+            let arguments = [
+                JValue::Int(session).as_jni(),
+                JValue::Long(offset).as_jni(),
+                JValue::Object(&byte_array).as_jni(),
+            ];
+
+            unsafe {
+                env.call_method_unchecked(
+                    &jni.obj,
+                    jni.receive_file_chunk_session_method,
+                    ReturnType::Primitive(Primitive::Void),
+                    &arguments[..],
+                )
+                .unwrap()
+            };
+
+            return;
+        }
+
+        let address = env.new_string(address).expect("new address string");
+        let file_id = env.new_string(file_id).expect("new id string");
+
         let arguments = [
             JValue::Object(&address).as_jni(),
             JValue::Object(&file_id).as_jni(),
+            JValue::Long(offset).as_jni(),
             JValue::Object(&byte_array).as_jni(),
         ];
 
@@ -273,13 +502,42 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeInit(
     mut env: JNIEnv,
     obj: JObject,
     context: JObject,
+    worker_threads: jint,
+    current_thread: jboolean,
+    thread_name_prefix: JString,
+    stack_size: jint,
 ) -> jlong {
-    let runtime = Arc::new(
-        tokio::runtime::Builder::new_multi_thread()
-            .worker_threads(24)
-            .enable_all()
-            .build()
-            .expect("tokio runtime"),
+    let thread_name_prefix: String = env
+        .get_string(&thread_name_prefix)
+        .map(|prefix| prefix.into())
+        .unwrap_or_default();
+
+    let runtime_config = RuntimeConfig {
+        worker_threads: match worker_threads {
+            count if count > 0 => count as usize,
+            _ => std::thread::available_parallelism().map(|count| count.get()).unwrap_or(1),
+        },
+        current_thread: current_thread == JNI_TRUE,
+        thread_name_prefix: if thread_name_prefix.is_empty() { "kaonic-rt".into() } else { thread_name_prefix },
+        stack_size: stack_size.max(0) as usize,
+    };
+
+    let runtime_threads = Arc::new(AtomicUsize::new(0));
+    let runtime_shutdown = CancellationToken::new();
+    let runtime = Arc::new(build_runtime(&runtime_config, runtime_threads.clone()).expect("tokio runtime"));
+
+    if runtime_config.current_thread {
+        spawn_runtime_driver(&runtime_config, runtime.clone(), runtime_threads.clone(), runtime_shutdown.clone())
+            .expect("tokio runtime thread");
+    }
+
+    let runtime_workers = if runtime_config.current_thread { 1 } else { runtime_config.worker_threads };
+
+    log::info!(
+        "kaonic runtime: {} {} workers, thread prefix {}",
+        if runtime_config.current_thread { "current thread" } else { "multi thread" },
+        runtime_workers,
+        runtime_config.thread_name_prefix
     );
 
     let jni = {
@@ -296,6 +554,10 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeInit(
             .get_method_id(&class, "receive", "(Ljava/lang/String;)V")
             .expect("event method");
 
+        let receive_batch_method = env
+            .get_method_id(&class, "receiveBatch", "(Ljava/lang/String;)V")
+            .expect("event batch method");
+
         let feed_audio_method = env
             .get_method_id(
                 &class,
@@ -316,7 +578,7 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeInit(
             .get_method_id(
                 &class,
                 "requestFileChunk",
-                "(Ljava/lang/String;Ljava/lang/String;I)V",
+                "(Ljava/lang/String;Ljava/lang/String;III)V",
             )
             .expect("request file chunk method");
 
@@ -324,7 +586,7 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeInit(
             .get_method_id(
                 &class,
                 "receiveFileChunk",
-                "(Ljava/lang/String;Ljava/lang/String;[B)V",
+                "(Ljava/lang/String;Ljava/lang/String;J[B)V",
             )
             .expect("receive file chunk method");
 
@@ -336,34 +598,85 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeInit(
             )
             .expect("receive broadcast method");
 
+        let feed_audio_session_method = env
+            .get_method_id(&class, "feedAudioSession", "(I[B)V")
+            .expect("feed audio session method");
+
+        let request_file_chunk_session_method = env
+            .get_method_id(&class, "requestFileChunkSession", "(IIII)V")
+            .expect("request file chunk session method");
+
+        let receive_file_chunk_session_method = env
+            .get_method_id(&class, "receiveFileChunkSession", "(IJ[B)V")
+            .expect("receive file chunk session method");
+
         KaonicJni {
             _context: env
                 .new_global_ref(context)
                 .expect("Failed to create global ref"),
             obj,
             receive_method,
+            receive_batch_method,
             feed_audio_method,
             feed_video_method,
             request_file_chunk_method,
             receive_file_chunk_method,
             receive_broadcast_method,
+            feed_audio_session_method,
+            request_file_chunk_session_method,
+            receive_file_chunk_session_method,
             jvm,
         }
     };
 
-    let (cmd_send, _) = tokio::sync::mpsc::channel(1);
-    let (kaonic_config_send, _) = tokio::sync::mpsc::channel(1);
     let lib = Box::new(KaonicLib {
         jni: Arc::new(Mutex::new(jni)),
+        sessions: Arc::new(SessionRegistry::new()),
         runtime,
-        cancel: CancellationToken::new(),
-        cmd_send,
-        kaonic_config_send,
+        runtime_workers,
+        runtime_threads,
+        runtime_shutdown,
+        channels: RwLock::new(MessengerChannels::closed(SEND_QUEUE_SIZE)),
+        settings: Mutex::new(StartSettings {
+            event_batch: None,
+            command_queue_size: DEFAULT_COMMAND_QUEUE_SIZE,
+            destination_queue_size: SEND_QUEUE_SIZE,
+        }),
     });
 
     Box::into_raw(lib) as jlong
 }
 
+/// Messenger command for an event sent by the platform
+fn event_command(event: Event) -> Option<MessengerCommand> {
+    match event {
+        Event::Message(message) => Some(MessengerCommand::SendMessage(message)),
+        Event::FileStart(file_start) => Some(MessengerCommand::SendFileStart(file_start)),
+        Event::ChatCreate(chat) => Some(MessengerCommand::ChatCreate(chat)),
+        Event::FileResume(resume) => Some(MessengerCommand::SendFileResume(resume)),
+        Event::FileEnd(end) => Some(MessengerCommand::SendFileEnd(end)),
+        Event::FileReject(reject) => Some(MessengerCommand::SendFileReject(reject)),
+        Event::CallInvoke(call) => Some(MessengerCommand::CallInvoke(call)),
+        Event::CallAnswer(call) => Some(MessengerCommand::CallAnswer(call)),
+        Event::CallReject(call) => Some(MessengerCommand::CallReject(call)),
+        _ => None,
+    }
+}
+
+/// Queue command for the messenger. blocking_send panics on a runtime thread, which is
+/// where Java lands when it sends from an upcall, there the command is queued without waiting
+fn send_command<T>(sender: &Sender<T>, command: T) -> bool {
+    if tokio::runtime::Handle::try_current().is_ok() {
+        if let Err(err) = sender.try_send(command) {
+            log::error!("command from a runtime thread dropped: {}", err);
+            return false;
+        }
+        true
+    } else {
+        sender.blocking_send(command).is_ok()
+    }
+}
+
 #[no_mangle]
 pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendEvent(
     mut env: JNIEnv,
@@ -374,42 +687,70 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendEven
     let event = parse_json_param::<Event>(&mut env, &event);
     if let Ok(event) = event {
         let lib = unsafe { &*(ptr as *const KaonicLib) };
-        match event {
-            Event::Message(message) => {
-                let _ = lib
-                    .cmd_send
-                    .blocking_send(MessengerCommand::SendMessage(message));
-            }
-            Event::FileStart(file_start) => {
-                let _ = lib
-                    .cmd_send
-                    .blocking_send(MessengerCommand::SendFileStart(file_start));
-            }
-            Event::ChatCreate(chat) => {
-                let _ = lib
-                    .cmd_send
-                    .blocking_send(MessengerCommand::ChatCreate(chat));
-            }
-            Event::CallInvoke(call) => {
-                let _ = lib
-                    .cmd_send
-                    .blocking_send(MessengerCommand::CallInvoke(call));
+        if let Some(command) = event_command(event) {
+            let channels = lib.channels();
+            // Waits for the command queue but not for the destination, a full one rejects the event
+            let address = command.send_queue_address().map(String::from);
+            if let Some(address) = &address {
+                channels.send_limit.acquire(address);
             }
-            Event::CallAnswer(call) => {
-                let _ = lib
-                    .cmd_send
-                    .blocking_send(MessengerCommand::CallAnswer(call));
+            if !send_command(&channels.cmd_send, command) {
+                if let Some(address) = &address {
+                    channels.send_limit.release(address, 1);
+                }
             }
-            Event::CallReject(call) => {
-                let _ = lib
-                    .cmd_send
-                    .blocking_send(MessengerCommand::CallReject(call));
-            }
-            _ => {}
         }
     }
 }
 
+/// Results of nativeTrySendEvent, same values as KaonicLib.SEND_*
+const SEND_QUEUED: jint = 0;
+const SEND_QUEUE_FULL: jint = 1;
+const SEND_NOT_STARTED: jint = 2;
+const SEND_INVALID: jint = 3;
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeTrySendEvent(
+    mut env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    event: JString,
+) -> jint {
+    let command = match parse_json_param::<Event>(&mut env, &event).map(event_command) {
+        Ok(Some(command)) => command,
+        _ => return SEND_INVALID,
+    };
+
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+    let channels = lib.channels();
+
+    if channels.cmd_send.is_closed() {
+        return SEND_NOT_STARTED;
+    }
+
+    // Events already waiting for the destination count against the limit as well
+    let address = command.send_queue_address().map(String::from);
+    if let Some(address) = &address {
+        if !channels.send_limit.try_acquire(address) {
+            return SEND_QUEUE_FULL;
+        }
+    }
+
+    let result = channels.cmd_send.try_send(command);
+    if result.is_err() {
+        if let Some(address) = &address {
+            channels.send_limit.release(address, 1);
+        }
+    }
+
+    match result {
+        Ok(_) => SEND_QUEUED,
+        Err(TrySendError::Full(_)) => SEND_QUEUE_FULL,
+        Err(TrySendError::Closed(_)) => SEND_NOT_STARTED,
+    }
+}
+
 #[no_mangle]
 pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendBroadcast(
     mut env: JNIEnv,
@@ -443,9 +784,7 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendBroa
         data,
     };
 
-    let _ = lib
-        .cmd_send
-        .blocking_send(MessengerCommand::Broadcast(broadcast));
+    send_command(&lib.channels().cmd_send, MessengerCommand::Broadcast(broadcast));
 }
 
 #[no_mangle]
@@ -480,11 +819,11 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendFile
         file_id: id,
         chat_id: "".into(),
         data,
+        seq: 0,
+        offset: 0,
     };
 
-    let _ = lib
-        .cmd_send
-        .blocking_send(MessengerCommand::SendFileChunk(file_chunk));
+    send_command(&lib.channels().file_cmd_send, MessengerCommand::SendFileChunk(file_chunk));
 }
 
 #[no_mangle]
@@ -500,6 +839,38 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeDestroy(
     }
 }
 
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeGetWorkerThreads(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+) -> jint {
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    lib.runtime_workers as jint
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeGetRuntimeThreads(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+) -> jint {
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    lib.runtime_threads.load(Ordering::Relaxed) as jint
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeGetAttachedThreads(
+    _env: JNIEnv,
+    _obj: JObject,
+) -> jint {
+    JavaVM::threads_attached() as jint
+}
+
 #[no_mangle]
 pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeConfigure(
     mut env: JNIEnv,
@@ -508,12 +879,59 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeConfigur
     config_json: JString,
 ) {
     // Safety: ptr must be a valid pointer created by nativeInit
-    let lib = unsafe { &mut *(ptr as *mut KaonicLib) };
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
 
     let radio_config =
         parse_json_param::<RadioConfig>(&mut env, &config_json).expect("valid kaonic config");
 
-    let _ = lib.kaonic_config_send.blocking_send(radio_config);
+    send_command(&lib.channels().kaonic_config_send, radio_config);
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSetEventBatching(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    window_ms: jint,
+    max_events: jint,
+) {
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    lib.settings().event_batch = if window_ms > 0 && max_events > 0 {
+        Some(EventBatchConfig {
+            window: Duration::from_millis(window_ms as u64),
+            max_events: max_events as usize,
+        })
+    } else {
+        None
+    };
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSetCommandQueueSize(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    size: jint,
+) {
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    lib.settings().command_queue_size = size.max(1) as usize;
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSetDestinationQueueSize(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    size: jint,
+) {
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    lib.settings().destination_queue_size = size.max(1) as usize;
 }
 
 #[no_mangle]
@@ -525,16 +943,35 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeStart(
     start_config_json: JString,
 ) {
     // Safety: ptr must be a valid pointer created by nativeInit
-    let lib = unsafe { &mut *(ptr as *mut KaonicLib) };
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
 
-    lib.cancel.cancel();
-    lib.cancel = CancellationToken::new();
+    // Checked before the running messenger is stopped, a bad config leaves it as it is
+    let start_config = match parse_json_param::<MessengerStartConfig>(&mut env, &start_config_json) {
+        Ok(start_config) => start_config,
+        Err(_) => {
+            let _ = env.throw_new("java/lang/IllegalArgumentException", "invalid start config");
+            return;
+        }
+    };
 
-    let (cmd_send, cmd_recv) = tokio::sync::mpsc::channel(1);
-    lib.cmd_send = cmd_send;
+    let settings = *lib.settings();
 
+    let (cmd_send, cmd_recv) = tokio::sync::mpsc::channel(settings.command_queue_size);
+    let (file_cmd_send, file_cmd_recv) = tokio::sync::mpsc::channel(1);
     let (kaonic_config_send, kaonoc_config_recv) = tokio::sync::mpsc::channel(1);
-    lib.kaonic_config_send = kaonic_config_send;
+    let channels = MessengerChannels {
+        cancel: CancellationToken::new(),
+        cmd_send,
+        file_cmd_send,
+        kaonic_config_send,
+        // Counts of the previous messenger include commands it never took
+        send_limit: Arc::new(SendQueueLimit::new(settings.destination_queue_size)),
+    };
+    {
+        let mut current = lib.channels.write().expect("channels locked");
+        current.cancel.cancel();
+        *current = channels.clone();
+    }
 
     let identity_hex: String = match env.get_string(&identity) {
         Ok(jstr) => jstr.into(),
@@ -544,25 +981,44 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeStart(
         }
     };
 
-    let start_config = parse_json_param::<MessengerStartConfig>(&mut env, &start_config_json)
-        .expect("valid start config");
-
     // Convert hex string into PrivateIdentity
     match PrivateIdentity::new_from_hex_string(&identity_hex) {
         Ok(identity) => {
             lib.runtime.spawn(messenger_task(
                 identity,
                 cmd_recv,
+                file_cmd_recv,
                 kaonoc_config_recv,
                 lib.jni.clone(),
+                lib.sessions.clone(),
+                settings.event_batch,
                 start_config,
-                lib.cancel.clone(),
+                channels.send_limit,
+                channels.cancel,
             ));
         }
         Err(_) => log::error!("can't create private identity"),
     }
 }
 
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeStop(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+) {
+    // Safety: ptr must be a valid pointer created by nativeInit
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    log::info!("kaonic: stop messenger");
+
+    // Events sent from now on are refused
+    let closed = MessengerChannels::closed(lib.settings().destination_queue_size);
+    let mut current = lib.channels.write().expect("channels locked");
+    current.cancel.cancel();
+    *current = closed;
+}
+
 #[no_mangle]
 pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendAudio(
     mut env: JNIEnv,
@@ -572,7 +1028,7 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendAudi
     call_id: JString,
     data: JByteArray,
 ) {
-    let lib = unsafe { &mut *(ptr as *mut KaonicLib) };
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
 
     let data: Vec<u8> = match env.convert_byte_array(data) {
         Ok(bytes) => bytes,
@@ -595,13 +1051,14 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendAudi
         }
     };
 
-    let _ = lib
-        .cmd_send
-        .blocking_send(MessengerCommand::CallAudioData(CallAudioData {
+    send_command(
+        &lib.channels().cmd_send,
+        MessengerCommand::CallAudioData(CallAudioData {
             address,
             call_id,
             data,
-        }));
+        }),
+    );
 }
 
 #[no_mangle]
@@ -613,7 +1070,7 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendVide
     call_id: JString,
     data: JByteArray,
 ) {
-    let lib = unsafe { &mut *(ptr as *mut KaonicLib) };
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
 
     let data: Vec<u8> = match env.convert_byte_array(data) {
         Ok(bytes) => bytes,
@@ -636,13 +1093,352 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendVide
         }
     };
 
-    let _ = lib
-        .cmd_send
-        .blocking_send(MessengerCommand::CallVideoData(CallVideoData {
+    send_command(
+        &lib.channels().cmd_send,
+        MessengerCommand::CallVideoData(CallVideoData {
             address,
             call_id,
             data,
-        }));
+        }),
+    );
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendAudioBuffer(
+    mut env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    address: JString,
+    call_id: JString,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    let address: String = match env.get_string(&address) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => {
+            log::error!("invalid address");
+            return;
+        }
+    };
+
+    let call_id: String = match env.get_string(&call_id) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => {
+            log::error!("invalid call id");
+            return;
+        }
+    };
+
+    send_command(
+        &lib.channels().cmd_send,
+        MessengerCommand::CallAudioData(CallAudioData {
+            address,
+            call_id,
+            data,
+        }),
+    );
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendVideoBuffer(
+    mut env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    address: JString,
+    call_id: JString,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    let address: String = match env.get_string(&address) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => {
+            log::error!("invalid address");
+            return;
+        }
+    };
+
+    let call_id: String = match env.get_string(&call_id) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => {
+            log::error!("invalid call id");
+            return;
+        }
+    };
+
+    send_command(
+        &lib.channels().cmd_send,
+        MessengerCommand::CallVideoData(CallVideoData {
+            address,
+            call_id,
+            data,
+        }),
+    );
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendFileChunkBuffer(
+    mut env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    address: JString,
+    id: JString,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    let id: String = match env.get_string(&id) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => "".into(),
+    };
+
+    let address: String = match env.get_string(&address) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => "".into(),
+    };
+
+    let file_chunk = FileChunk {
+        address,
+        id: AddressHash::new_from_rand(OsRng).to_hex_string(),
+        file_id: id,
+        chat_id: "".into(),
+        data,
+        seq: 0,
+        offset: 0,
+    };
+
+    send_command(&lib.channels().file_cmd_send, MessengerCommand::SendFileChunk(file_chunk));
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendBroadcastBuffer(
+    mut env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    id: JString,
+    topic: JString,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    let id: String = match env.get_string(&id) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => "".into(),
+    };
+
+    let topic: String = match env.get_string(&topic) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => "".into(),
+    };
+
+    let broadcast = Broadcast {
+        id,
+        address: "".into(),
+        topic,
+        data,
+    };
+
+    send_command(&lib.channels().cmd_send, MessengerCommand::Broadcast(broadcast));
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeOpenSession(
+    mut env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    address: JString,
+    id: JString,
+) -> jint {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let address: String = match env.get_string(&address) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => {
+            log::error!("invalid address");
+            return SessionRegistry::INVALID_HANDLE;
+        }
+    };
+
+    let id: String = match env.get_string(&id) {
+        Ok(jstr) => jstr.into(),
+        Err(_) => {
+            log::error!("invalid session id");
+            return SessionRegistry::INVALID_HANDLE;
+        }
+    };
+
+    lib.sessions.open(address, id)
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeCloseSession(
+    _env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    session: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    lib.sessions.close(session);
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendAudioSession(
+    env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    session: jint,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let session = match lib.sessions.get(session) {
+        Some(session) => session,
+        None => {
+            log::error!("unknown call session {}", session);
+            return;
+        }
+    };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    send_command(
+        &lib.channels().cmd_send,
+        MessengerCommand::CallAudioData(CallAudioData {
+            address: session.address,
+            call_id: session.id,
+            data,
+        }),
+    );
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendVideoSession(
+    env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    session: jint,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let session = match lib.sessions.get(session) {
+        Some(session) => session,
+        None => {
+            log::error!("unknown call session {}", session);
+            return;
+        }
+    };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    send_command(
+        &lib.channels().cmd_send,
+        MessengerCommand::CallVideoData(CallVideoData {
+            address: session.address,
+            call_id: session.id,
+            data,
+        }),
+    );
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendFileChunkSession(
+    env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    session: jint,
+    data: JByteArray,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let data: Vec<u8> = match env.convert_byte_array(data) {
+        Ok(bytes) => bytes,
+        Err(_) => vec![],
+    };
+
+    send_file_chunk_session(lib, session, data);
+}
+
+#[no_mangle]
+pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeSendFileChunkSessionBuffer(
+    env: JNIEnv,
+    _obj: JObject,
+    ptr: jlong,
+    session: jint,
+    data: JByteBuffer,
+    offset: jint,
+    length: jint,
+) {
+    let lib = unsafe { &*(ptr as *const KaonicLib) };
+
+    let data = match read_direct_buffer(&env, &data, offset, length) {
+        Some(bytes) => bytes,
+        None => return,
+    };
+
+    send_file_chunk_session(lib, session, data);
+}
+
+fn send_file_chunk_session(lib: &KaonicLib, session: jint, data: Vec<u8>) {
+    let session = match lib.sessions.get(session) {
+        Some(session) => session,
+        None => {
+            log::error!("unknown file session {}", session);
+            return;
+        }
+    };
+
+    let file_chunk = FileChunk {
+        address: session.address,
+        id: AddressHash::new_from_rand(OsRng).to_hex_string(),
+        file_id: session.id,
+        chat_id: "".into(),
+        data,
+        seq: 0,
+        offset: 0,
+    };
+
+    send_command(&lib.channels().file_cmd_send, MessengerCommand::SendFileChunk(file_chunk));
 }
 
 #[no_mangle]
@@ -685,9 +1481,13 @@ pub extern "system" fn Java_network_beechat_kaonic_impl_KaonicLib_nativeGetPrese
 async fn messenger_task(
     identity: PrivateIdentity,
     mut cmd_rx: tokio::sync::mpsc::Receiver<MessengerCommand>,
+    mut file_cmd_rx: tokio::sync::mpsc::Receiver<MessengerCommand>,
     kaonic_config_rx: tokio::sync::mpsc::Receiver<RadioConfig>,
     jni: Arc<Mutex<KaonicJni>>,
+    sessions: Arc<SessionRegistry>,
+    event_batch: Option<EventBatchConfig>,
     config: MessengerStartConfig,
+    send_limit: Arc<SendQueueLimit>,
     cancel: CancellationToken,
 ) {
     log::info!(
@@ -697,7 +1497,33 @@ async fn messenger_task(
 
     let mut kaonic_config_rx = Some(kaonic_config_rx);
 
-    let messenger = Messenger::new(identity, config.contact, "messenger", PlatformJni { jni });
+    let event_send = match event_batch {
+        Some(event_batch) => {
+            let (event_send, event_recv) = tokio::sync::mpsc::unbounded_channel();
+            tokio::spawn(event_batch_task(
+                jni.clone(),
+                event_batch,
+                event_recv,
+                cancel.clone(),
+            ));
+            Some(event_send)
+        }
+        None => None,
+    };
+
+    let messenger = Messenger::new(
+        identity,
+        config.contact,
+        "messenger",
+        PlatformJni {
+            jni,
+            sessions,
+            event_send,
+        },
+    );
+
+    messenger.set_retransmit_config(config.retransmit).await;
+    messenger.set_send_queue_limit(send_limit).await;
 
     // Setup all interfaces
     for connection in &config.connections {
@@ -725,6 +1551,23 @@ async fn messenger_task(
         }
     }
 
+    // File chunks wait for messenger queue space in their own task,
+    // so a busy transfer never holds back interactive commands
+    let file_cmd_send = messenger.file_command_sender();
+    let file_cancel = cancel.clone();
+    tokio::spawn(async move {
+        loop {
+            tokio::select! {
+                _ = file_cancel.cancelled() => {
+                    break;
+                },
+                Some(cmd) = file_cmd_rx.recv() => {
+                    let _ = file_cmd_send.send(cmd).await;
+                },
+            }
+        }
+    });
+
     loop {
         tokio::select! {
             _ = cancel.cancelled() => {
@@ -737,6 +1580,82 @@ async fn messenger_task(
     }
 }
 
+/// Collects serialized events and delivers them to the platform as one JSON array
+async fn event_batch_task(
+    jni: Arc<Mutex<KaonicJni>>,
+    config: EventBatchConfig,
+    mut event_recv: UnboundedReceiver<String>,
+    cancel: CancellationToken,
+) {
+    let mut batch = Vec::with_capacity(config.max_events);
+
+    loop {
+        // Wait for the first event of the batch
+        tokio::select! {
+            _ = cancel.cancelled() => {
+                break;
+            },
+            event = event_recv.recv() => {
+                match event {
+                    Some(event) => batch.push(event),
+                    None => break,
+                }
+            },
+        }
+
+        let window = tokio::time::sleep(config.window);
+        tokio::pin!(window);
+
+        while batch.len() < config.max_events {
+            tokio::select! {
+                _ = &mut window => {
+                    break;
+                },
+                Some(event) = event_recv.recv() => {
+                    batch.push(event);
+                },
+            }
+        }
+
+        deliver_event_batch(&jni, &batch);
+        batch.clear();
+    }
+}
+
+fn deliver_event_batch(jni: &Arc<Mutex<KaonicJni>>, batch: &[String]) {
+    let mut json = String::with_capacity(batch.iter().map(|event| event.len() + 1).sum::<usize>() + 2);
+
+    json.push('[');
+    for (index, event) in batch.iter().enumerate() {
+        if index > 0 {
+            json.push(',');
+        }
+        json.push_str(event);
+    }
+    json.push(']');
+
+    let jni = jni.lock().expect("jni locked");
+
+    let mut env = jni
+        .jvm
+        .attach_current_thread_permanently()
+        .expect("failed to attach thread");
+
+    let batch_json_str = env.new_string(json).unwrap();
+
+    let arguments = [JValue::Object(&batch_json_str).as_jni()];
+
+    unsafe {
+        env.call_method_unchecked(
+            &jni.obj,
+            jni.receive_batch_method,
+            ReturnType::Primitive(Primitive::Void),
+            &arguments[..],
+        )
+        .unwrap()
+    };
+}
+
 fn parse_json_param<T: serde::de::DeserializeOwned>(
     env: &mut JNIEnv,
     input_json: &JString,
@@ -756,3 +1675,31 @@ fn parse_json_param<T: serde::de::DeserializeOwned>(
 
     Ok(result.unwrap())
 }
+
+/// Copy `length` bytes starting at `offset` out of a direct byte buffer.
+/// The memory is read in place, without pinning or converting a Java array.
+fn read_direct_buffer(
+    env: &JNIEnv,
+    buffer: &JByteBuffer,
+    offset: jint,
+    length: jint,
+) -> Option<Vec<u8>> {
+    let address = match env.get_direct_buffer_address(buffer) {
+        Ok(address) => address,
+        Err(_) => {
+            log::error!("buffer is not direct");
+            return None;
+        }
+    };
+
+    let capacity = env.get_direct_buffer_capacity(buffer).unwrap_or(0);
+
+    if offset < 0 || length < 0 || offset as usize + length as usize > capacity {
+        log::error!("invalid buffer range {}+{} of {}", offset, length, capacity);
+        return None;
+    }
+
+    let data = unsafe { std::slice::from_raw_parts(address.add(offset as usize), length as usize) };
+
+    Some(data.to_vec())
+}
@@ -3,7 +3,10 @@ use serde::{Deserialize, Serialize};
 
 use crate::model::{
     Acknowledge, AcknowledgeKind, Broadcast, CallAnswer, CallAudioData, CallInvoke, CallReject, ChatCreate,
-    Contact, ContactConnect, FileChunk, FileStart, Message,
+    Contact, ContactConnect, DeliveryStats, FileChunk, FileEnd, FileReject, FileResume, FileStart, FileStatus,
+    Message,
+    MessageStatus,
+    SendQueueState,
 };
 
 #[derive(Serialize, Deserialize)]
@@ -14,6 +17,9 @@ pub enum Event {
     Acknowledge(Acknowledge),
     FileStart(FileStart),
     FileChunk(FileChunk),
+    FileResume(FileResume),
+    FileEnd(FileEnd),
+    FileReject(FileReject),
     ContactConnect(ContactConnect),
     ChatCreate(ChatCreate),
     Broadcast(Broadcast),
@@ -22,6 +28,14 @@ pub enum Event {
     CallReject(CallReject),
     CallAudioData(CallAudioData),
     CallVideoData(CallVideoData),
+    /// Local only, reported to the platform when a destination send queue changes
+    SendQueue(SendQueueState),
+    /// Local only, round trip and retransmits of a destination
+    DeliveryStats(DeliveryStats),
+    /// Local only, delivery state of an acknowledged event
+    MessageStatus(MessageStatus),
+    /// Local only, outgoing file delivered or given up
+    FileStatus(FileStatus),
 }
 
 impl Event {
@@ -32,6 +46,9 @@ impl Event {
             Event::Acknowledge(acknowledge) => acknowledge.id.clone(),
             Event::FileStart(file_start) => file_start.id.clone(),
             Event::FileChunk(file_chunk) => file_chunk.id.clone(),
+            Event::FileResume(file_resume) => file_resume.id.clone(),
+            Event::FileEnd(file_end) => file_end.id.clone(),
+            Event::FileReject(file_reject) => file_reject.id.clone(),
             Event::ContactConnect(connect) => connect.address.clone(),
             Event::ChatCreate(chat) => chat.chat_id.clone(),
             Event::Broadcast(broadcast) => broadcast.id.clone(),
@@ -40,6 +57,10 @@ impl Event {
             Event::CallReject(call) => call.id.clone(),
             Event::CallAudioData(call) => call.call_id.clone(),
             Event::CallVideoData(call) => call.call_id.clone(),
+            Event::SendQueue(queue) => queue.address.clone(),
+            Event::DeliveryStats(stats) => stats.address.clone(),
+            Event::MessageStatus(status) => status.id.clone(),
+            Event::FileStatus(status) => status.file_id.clone(),
         }
     }
 
@@ -49,9 +70,16 @@ impl Event {
             Event::ChatCreate(_) => AcknowledgeKind::Chat,
             Event::FileStart(_) => AcknowledgeKind::FileStart,
             Event::FileChunk(_) => AcknowledgeKind::FileChunk,
+            Event::FileResume(_) => AcknowledgeKind::FileResume,
+            Event::FileEnd(_) => AcknowledgeKind::FileEnd,
+            Event::FileReject(_) => AcknowledgeKind::FileReject,
             Event::ContactFound(_) => AcknowledgeKind::Generic,
             Event::CallAudioData(_) => AcknowledgeKind::Generic,
             Event::CallVideoData(_) => AcknowledgeKind::Generic,
+            Event::SendQueue(_) => AcknowledgeKind::Generic,
+            Event::DeliveryStats(_) => AcknowledgeKind::Generic,
+            Event::MessageStatus(_) => AcknowledgeKind::Generic,
+            Event::FileStatus(_) => AcknowledgeKind::Generic,
             Event::ContactConnect(_) => AcknowledgeKind::Generic,
             Event::Broadcast(_) => AcknowledgeKind::Generic,
             Event::CallInvoke(_) => AcknowledgeKind::CallInvoke,
@@ -82,6 +110,15 @@ impl Event {
             Event::FileChunk(file_chunk) => {
                 file_chunk.address = address;
             }
+            Event::FileResume(file_resume) => {
+                file_resume.address = address;
+            }
+            Event::FileEnd(file_end) => {
+                file_end.address = address;
+            }
+            Event::FileReject(file_reject) => {
+                file_reject.address = address;
+            }
             Event::ContactConnect(connect) => {
                 connect.address = address;
             }
@@ -100,6 +137,18 @@ impl Event {
             Event::CallReject(call) => {
                 call.address = address;
             }
+            Event::SendQueue(queue) => {
+                queue.address = address;
+            }
+            Event::DeliveryStats(stats) => {
+                stats.address = address;
+            }
+            Event::MessageStatus(status) => {
+                status.address = address;
+            }
+            Event::FileStatus(status) => {
+                status.address = address;
+            }
             Event::Acknowledge(_) => {}
         }
     }
@@ -110,6 +159,9 @@ impl Event {
             Event::Message(message) => AddressHash::new_from_hex_string(&message.address),
             Event::FileStart(file_start) => AddressHash::new_from_hex_string(&file_start.address),
             Event::FileChunk(file_chunk) => AddressHash::new_from_hex_string(&file_chunk.address),
+            Event::FileResume(file_resume) => AddressHash::new_from_hex_string(&file_resume.address),
+            Event::FileEnd(file_end) => AddressHash::new_from_hex_string(&file_end.address),
+            Event::FileReject(file_reject) => AddressHash::new_from_hex_string(&file_reject.address),
             Event::ContactConnect(connect) => AddressHash::new_from_hex_string(&connect.address),
             Event::ChatCreate(chat) => AddressHash::new_from_hex_string(&chat.address),
             Event::Broadcast(_) => Ok(AddressHash::new_empty()),
@@ -122,6 +174,10 @@ impl Event {
             Event::CallVideoData(video_data) => {
                 AddressHash::new_from_hex_string(&video_data.address)
             },
+            Event::SendQueue(queue) => AddressHash::new_from_hex_string(&queue.address),
+            Event::DeliveryStats(stats) => AddressHash::new_from_hex_string(&stats.address),
+            Event::MessageStatus(status) => AddressHash::new_from_hex_string(&status.address),
+            Event::FileStatus(status) => AddressHash::new_from_hex_string(&status.address),
             Event::Acknowledge(_) => Ok(AddressHash::new_empty()),
         }
         .unwrap_or(AddressHash::new_empty())
@@ -2,6 +2,9 @@
 
 mod ack_manager;
 mod cache;
+mod retransmit;
+#[cfg(feature = "android")]
+mod session;
 
 pub mod event;
 pub mod messenger;
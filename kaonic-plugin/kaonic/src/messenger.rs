@@ -1,4 +1,8 @@
-use std::{sync::Arc, time::Duration};
+use std::{
+    collections::HashMap,
+    sync::{Arc, Mutex as StdMutex},
+    time::{Duration, Instant},
+};
 
 use audio_codec_algorithms::encode_alaw;
 use rand_core::OsRng;
@@ -27,8 +31,10 @@ use crate::{
     event::Event,
     model::{
         Acknowledge, AnnounceData, Broadcast, CallAnswer, CallVideoData, CallAudioData, CallInvoke, CallReject,
-        ChatCreate, Contact, ContactData, FileChunk, FileStart, Message, MessengerError,
+        ChatCreate, Contact, ContactData, FileChunk, FileEnd, FileReject, FileResume, FileStart, FileStatus, Message,
+        MessengerError, MessageStatus, RetransmitConfig, SendQueueState,
     },
+    retransmit::RetransmitTimer,
 };
 
 struct MessengerHandler<T: Platform> {
@@ -38,6 +44,146 @@ struct MessengerHandler<T: Platform> {
     platform: Arc<Mutex<T>>,
     known_ids: CacheSet<String>,
     ack_manager: AckManager<String>,
+    outgoing_files: HashMap<String, OutgoingFile>,
+    /// Acknowledged events waiting for delivery by destination address
+    send_queues: HashMap<String, SendQueue>,
+    retransmit: RetransmitConfig,
+    /// Round trip estimate and delivery counters by destination address
+    retransmit_timers: HashMap<String, RetransmitTimer>,
+    send_limit: Arc<SendQueueLimit>,
+}
+
+/// Events for one destination, delivered in order by their own task
+struct SendQueue {
+    events: Sender<(String, Event)>,
+    /// Events queued and not acknowledged yet, the one being sent included
+    depth: usize,
+}
+
+/// Sliding window state of a file being sent
+struct OutgoingFile {
+    address: String,
+    file_size: u64,
+    /// Bytes handed over by the platform so far
+    sent: u64,
+    /// Chunks sent and not acknowledged yet
+    in_flight: usize,
+    next_seq: u64,
+    /// Stops chunks of this attempt when the transfer is restarted
+    cancel: CancellationToken,
+    /// Size of the next requested chunk, adapted to the link
+    chunk_size: usize,
+    max_chunk_size: usize,
+    /// Smoothed ack round trip of chunks acked on the first attempt
+    srtt: Option<Duration>,
+    retransmits: u32,
+    /// Last chunk sent when the chunk size was halved, losses up to it belong to the same window
+    recovery_seq: u64,
+}
+
+impl OutgoingFile {
+    /// AIMD: retransmits halve the chunk size once per window, a chunk acked on the first
+    /// attempt without extra queueing delay grows it by one step
+    fn on_chunk_acked(&mut self, seq: u64, rtt: Duration, retransmits: usize) {
+        if retransmits > 0 {
+            // Round trip of a retransmitted chunk is ambiguous, only the size reacts
+            self.retransmits += retransmits as u32;
+            if seq > self.recovery_seq {
+                self.chunk_size = (self.chunk_size / 2).max(MIN_FILE_CHUNK_SIZE);
+                self.recovery_seq = self.next_seq - 1;
+            }
+            return;
+        }
+
+        let srtt = match self.srtt {
+            Some(srtt) => (srtt * 7 + rtt) / 8,
+            None => rtt,
+        };
+        self.srtt = Some(srtt);
+
+        if rtt <= srtt * 3 / 2 {
+            self.chunk_size = (self.chunk_size + FILE_CHUNK_STEP).min(self.max_chunk_size);
+        }
+    }
+
+    fn link_stats(&self) -> FileLinkStats {
+        FileLinkStats {
+            retransmits: self.retransmits,
+            ack_rtt_ms: self.srtt.map(|srtt| srtt.as_millis() as u32).unwrap_or(0),
+        }
+    }
+}
+
+/// Link state of a file transfer reported with every chunk request
+#[derive(Clone, Copy)]
+pub struct FileLinkStats {
+    /// Chunk retransmits since the transfer started
+    pub retransmits: u32,
+    /// Smoothed chunk ack round trip, 0 until the first ack
+    pub ack_rtt_ms: u32,
+}
+
+/// Chunk size a transfer starts with
+const FILE_CHUNK_SIZE: usize = PACKET_MDU / 4;
+/// Largest chunk that fits one packet together with the chunk header
+const MAX_FILE_CHUNK_SIZE: usize = PACKET_MDU / 2;
+const MIN_FILE_CHUNK_SIZE: usize = PACKET_MDU / 16;
+/// Additive increase of the chunk size per chunk acked on the first attempt
+const FILE_CHUNK_STEP: usize = PACKET_MDU / 32;
+const MAX_FILE_WINDOW: usize = 32;
+/// Commands waiting for the handler, messages and call signalling
+const COMMAND_QUEUE_SIZE: usize = 16;
+/// File chunks waiting for the handler, a full queue holds back the platform
+const FILE_COMMAND_QUEUE_SIZE: usize = 4;
+/// Events waiting for one destination, the one being sent included, more are rejected
+pub const SEND_QUEUE_SIZE: usize = 32;
+
+/// Events accepted for each destination and not delivered or dropped yet. Shared with the
+/// platform, which counts an event before its command is queued and can refuse it right away
+/// instead of learning later that the send queue rejected it
+pub struct SendQueueLimit {
+    capacity: usize,
+    pending: StdMutex<HashMap<String, usize>>,
+}
+
+impl SendQueueLimit {
+    pub fn new(capacity: usize) -> Self {
+        Self {
+            capacity: capacity.max(1),
+            pending: StdMutex::new(HashMap::new()),
+        }
+    }
+
+    pub fn capacity(&self) -> usize {
+        self.capacity
+    }
+
+    /// Counts an event for the destination, false if the destination already has capacity events
+    pub fn try_acquire(&self, address: &str) -> bool {
+        let mut pending = self.pending.lock().unwrap();
+        let count = pending.entry(address.to_lowercase()).or_insert(0);
+        if *count >= self.capacity {
+            return false;
+        }
+        *count += 1;
+        true
+    }
+
+    /// Counts an event over the capacity as well, the send queue rejects it if it is still full
+    pub fn acquire(&self, address: &str) {
+        *self.pending.lock().unwrap().entry(address.to_lowercase()).or_insert(0) += 1;
+    }
+
+    pub fn release(&self, address: &str, count: usize) {
+        let mut pending = self.pending.lock().unwrap();
+        let key = address.to_lowercase();
+        if let Some(pending_count) = pending.get_mut(&key) {
+            *pending_count = pending_count.saturating_sub(count);
+            if *pending_count == 0 {
+                pending.remove(&key);
+            }
+        }
+    }
 }
 
 pub enum MessengerCommand {
@@ -49,13 +195,36 @@ pub enum MessengerCommand {
     CallVideoData(CallVideoData),
     SendFileStart(FileStart),
     SendFileChunk(FileChunk),
+    SendFileResume(FileResume),
+    SendFileEnd(FileEnd),
+    SendFileReject(FileReject),
     Broadcast(Broadcast),
     ChatCreate(ChatCreate),
 }
 
+impl MessengerCommand {
+    /// Bulk data that must not delay interactive commands
+    pub fn is_bulk(&self) -> bool {
+        matches!(self, MessengerCommand::SendFileChunk(_))
+    }
+
+    /// Destination of a command delivered through its send queue
+    pub fn send_queue_address(&self) -> Option<&str> {
+        match self {
+            MessengerCommand::SendMessage(message) => Some(&message.address),
+            MessengerCommand::ChatCreate(chat) => Some(&chat.address),
+            MessengerCommand::CallInvoke(call) => Some(&call.address),
+            MessengerCommand::CallAnswer(call) => Some(&call.address),
+            MessengerCommand::CallReject(call) => Some(&call.address),
+            _ => None,
+        }
+    }
+}
+
 pub struct Messenger<T: Platform> {
     handler: Arc<Mutex<MessengerHandler<T>>>,
     cmd_send: Sender<MessengerCommand>,
+    file_cmd_send: Sender<MessengerCommand>,
     cancel: CancellationToken,
 }
 
@@ -78,7 +247,8 @@ impl<T: Platform + Send + 'static> Messenger<T> {
             false,
         ));
 
-        let (cmd_send, cmd_recv) = tokio::sync::mpsc::channel::<MessengerCommand>(1);
+        let (cmd_send, cmd_recv) = tokio::sync::mpsc::channel::<MessengerCommand>(COMMAND_QUEUE_SIZE);
+        let (file_cmd_send, file_cmd_recv) = tokio::sync::mpsc::channel::<MessengerCommand>(FILE_COMMAND_QUEUE_SIZE);
 
         let handler = MessengerHandler::<T> {
             identity,
@@ -87,17 +257,23 @@ impl<T: Platform + Send + 'static> Messenger<T> {
             platform: Arc::new(Mutex::new(platform)),
             known_ids: CacheSet::new(512),
             ack_manager: AckManager::new(),
+            outgoing_files: HashMap::new(),
+            send_queues: HashMap::new(),
+            retransmit: RetransmitConfig::default(),
+            retransmit_timers: HashMap::new(),
+            send_limit: Arc::new(SendQueueLimit::new(SEND_QUEUE_SIZE)),
         };
 
         let handler = Arc::new(Mutex::new(handler));
         let cancel = CancellationToken::new();
 
-        tokio::spawn(handle_messenger(handler.clone(), cancel.clone(), cmd_recv));
+        tokio::spawn(handle_messenger(handler.clone(), cancel.clone(), cmd_recv, file_cmd_recv));
 
         Self {
             handler,
             cancel,
             cmd_send,
+            file_cmd_send,
         }
     }
 
@@ -118,7 +294,27 @@ impl<T: Platform + Send + 'static> Messenger<T> {
     }
 
     pub async fn send(&self, command: MessengerCommand) {
-        let _ = self.cmd_send.send(command).await;
+        if command.is_bulk() {
+            let _ = self.file_cmd_send.send(command).await;
+        } else {
+            let _ = self.cmd_send.send(command).await;
+        }
+    }
+
+    /// Applies to events sent from now on, round trip estimates of destinations are kept
+    pub async fn set_retransmit_config(&self, config: RetransmitConfig) {
+        self.handler.lock().await.retransmit = config.sanitized();
+    }
+
+    /// Limit the platform counts send queue commands against, replaces the default one
+    pub async fn set_send_queue_limit(&self, limit: Arc<SendQueueLimit>) {
+        self.handler.lock().await.send_limit = limit;
+    }
+
+    /// Sender for bulk commands, lets the caller wait for file queue space
+    /// without holding back interactive commands
+    pub fn file_command_sender(&self) -> Sender<MessengerCommand> {
+        self.file_cmd_send.clone()
     }
 }
 
@@ -126,8 +322,9 @@ pub trait Platform {
     fn send_event(&mut self, event: &Event);
     fn feed_audio(&mut self, address: &String, call_id: &String, audio_data: &[u8]);
     fn feed_video(&mut self, address: &String, call_id: &String, video_data: &[u8]);
-    fn request_file_chunk(&mut self, address: &String, file_id: &String, chunk_size: usize);
-    fn receive_file_chunk(&mut self, address: &String, file_id: &String, data: &[u8]);
+    fn request_file_chunk(&mut self, address: &String, file_id: &String, chunk_size: usize, stats: FileLinkStats);
+    /// offset is None for chunks of senders that don't number them, they are appended
+    fn receive_file_chunk(&mut self, address: &String, file_id: &String, offset: Option<u64>, data: &[u8]);
     fn receive_broadcast(&mut self, address: &String, id: &String, topic: &String, data: &[u8]);
 }
 
@@ -170,6 +367,47 @@ impl<T: Platform> MessengerHandler<T> {
     async fn send_ack(&self, address: &AddressHash, ack: Acknowledge) {
         self.send_out(address, &Event::Acknowledge(ack)).await;
     }
+
+    /// Ask the platform for the next chunk unless the whole file is already sent,
+    /// forgets the file and reports it completed once the last chunk is acknowledged
+    fn request_next_chunk(&mut self, file_id: &String) {
+        let file = match self.outgoing_files.get_mut(file_id) {
+            Some(file) => file,
+            None => return,
+        };
+
+        if file.sent >= file.file_size {
+            if file.in_flight == 0 {
+                log::debug!("messenger: file {} sent", file_id);
+                if let Some(file) = self.outgoing_files.remove(file_id) {
+                    self.report_file_status(&file.address, file_id, FileStatus::COMPLETED);
+                }
+            }
+            return;
+        }
+
+        let address = file.address.clone();
+        let file_id = file_id.clone();
+        let chunk_size = file.chunk_size;
+        let stats = file.link_stats();
+        let platform = self.platform.clone();
+        tokio::spawn(async move {
+            platform.lock().await.request_file_chunk(&address, &file_id, chunk_size, stats);
+        });
+    }
+
+    /// The platform keeps an outgoing file until it is told the file is delivered or given up
+    fn report_file_status(&self, address: &String, file_id: &String, state: &str) {
+        let status = Event::FileStatus(FileStatus {
+            address: address.clone(),
+            file_id: file_id.clone(),
+            state: state.into(),
+        });
+        let platform = self.platform.clone();
+        tokio::spawn(async move {
+            platform.lock().await.send_event(&status);
+        });
+    }
 }
 
 /// Entry point for messenger async handler's
@@ -177,6 +415,7 @@ async fn handle_messenger<T: Platform + Send + 'static>(
     handler: Arc<Mutex<MessengerHandler<T>>>,
     cancel: CancellationToken,
     cmd_recv: Receiver<MessengerCommand>,
+    file_cmd_recv: Receiver<MessengerCommand>,
 ) {
     let transport = handler.lock().await.transport.clone();
 
@@ -204,7 +443,8 @@ async fn handle_messenger<T: Platform + Send + 'static>(
             handler.clone(),
             cancel.clone(),
             contact_destination.clone(),
-            cmd_recv
+            cmd_recv,
+            file_cmd_recv
         ),
     );
 }
@@ -259,45 +499,265 @@ async fn handle_announces<T: Platform + Send + 'static>(
     }
 }
 
-/// Send's event to destination and wait for acknowledge
+/// Send's event to destination and wait for acknowledge,
+/// returns the number of retransmits it took.
+/// The first attempt waits for the round trip timeout of the destination, every next one
+/// waits longer by the backoff factor, all timeouts are spread by random jitter
 async fn send_ack_event<T: Platform>(
     event_id: &String,
     event: Event,
     address: &AddressHash,
     handler: Arc<Mutex<MessengerHandler<T>>>,
-) -> Result<(), MessengerError> {
-    const MAX_REPEATS: usize = 8;
+) -> Result<usize, MessengerError> {
+    let address_str = address.to_hex_string();
+
+    let (config, mut attempt_timeout) = {
+        let mut handler = handler.lock().await;
+        let config = handler.retransmit.clone();
+        let attempt_timeout = handler
+            .retransmit_timers
+            .entry(address_str.clone())
+            .or_insert_with(|| RetransmitTimer::new(&config))
+            .timeout();
+        (config, attempt_timeout)
+    };
 
+    let max_attempts = config.max_attempts.max(1) as usize;
     let mut result = Err(MessengerError::Timeout);
 
-    for repeat in 0..MAX_REPEATS {
+    for repeat in 0..max_attempts {
         let rx = {
             let handler = handler.lock().await;
             handler.send_out(&address, &event).await;
             handler.ack_manager.wait_for_ack(&event_id).await
         };
 
-        // TODO: change to backoff random timeout
-        match timeout(Duration::from_millis(888), rx).await {
+        let sent = Instant::now();
+        match timeout(config.jitter(attempt_timeout), rx).await {
             Ok(_) => {
-                result = Ok(());
+                if repeat == 0 {
+                    let mut handler = handler.lock().await;
+                    if let Some(timer) = handler.retransmit_timers.get_mut(&address_str) {
+                        timer.on_sample(sent.elapsed(), &config);
+                    }
+                }
+                result = Ok(repeat);
                 break;
             }
             Err(_) => {
-                log::warn!("messenger: message({}) = {} nack", event_id, repeat)
+                log::warn!("messenger: message({}) = {} nack", event_id, repeat);
+                attempt_timeout = config.backoff(attempt_timeout);
             }
         }
     }
 
+    let mut handler = handler.lock().await;
+    let report = match handler.retransmit_timers.get_mut(&address_str) {
+        Some(timer) => {
+            match result {
+                Ok(retransmits) => timer.on_delivered(retransmits),
+                Err(_) => {
+                    timer.on_timeout(attempt_timeout, &config);
+                    timer.on_failed(max_attempts - 1);
+                }
+            }
+            timer.take_report(&address_str, result.is_err())
+        }
+        None => None,
+    };
+
+    if let Some(report) = report {
+        let platform = handler.platform.clone();
+        drop(handler);
+        platform.lock().await.send_event(&Event::DeliveryStats(report));
+    }
+
     result
 }
 
+/// Queue event for delivery to the destination. Every destination has its own queue and task:
+/// events to one destination keep their order, an unreachable destination only holds back itself.
+/// A full queue rejects the event, which is reported to the platform
+async fn enqueue_ack_event<T: Platform + Send + 'static>(
+    handler: &Arc<Mutex<MessengerHandler<T>>>,
+    cancel: &CancellationToken,
+    address: AddressHash,
+    event_id: String,
+    event: Event,
+) {
+    let key = address.to_hex_string();
+
+    let (platform, depth) = {
+        let mut handler_guard = handler.lock().await;
+        let send_limit = handler_guard.send_limit.clone();
+        let capacity = send_limit.capacity();
+
+        // Task of the queue panicked or was cancelled, its events are gone and a new task takes over
+        if handler_guard.send_queues.get(&key).map_or(false, |queue| queue.events.is_closed()) {
+            log::error!("messenger: send queue to {} stopped, starting a new one", key);
+            if let Some(queue) = handler_guard.send_queues.remove(&key) {
+                send_limit.release(&key, queue.depth);
+            }
+        }
+
+        let queue = handler_guard.send_queues.entry(key.clone()).or_insert_with(|| {
+            // The task holds the event it is sending, the channel the ones behind it
+            let (events, events_recv) = tokio::sync::mpsc::channel(capacity);
+            tokio::spawn(handle_send_queue(handler.clone(), cancel.clone(), address, events_recv));
+            SendQueue { events, depth: 0 }
+        });
+
+        let depth = if queue.depth < capacity && queue.events.try_send((event_id.clone(), event)).is_ok() {
+            queue.depth += 1;
+            Some(queue.depth)
+        } else {
+            send_limit.release(&key, 1);
+            None
+        };
+
+        (handler_guard.platform.clone(), depth)
+    };
+
+    match depth {
+        Some(depth) => {
+            report_message_status(&platform, &key, &event_id, MessageStatus::QUEUED, 0, None).await;
+            report_send_queue(platform, &key, depth).await;
+        }
+        None => {
+            log::warn!("messenger: send queue to {} is full, event {} rejected", key, event_id);
+            report_message_status(&platform, &key, &event_id, MessageStatus::REJECTED, 0, None).await;
+        }
+    }
+}
+
+/// Delivers queued events to one destination, one ack at a time.
+/// Quits when the queue is empty, the next event starts a new task
+async fn handle_send_queue<T: Platform + Send + 'static>(
+    handler: Arc<Mutex<MessengerHandler<T>>>,
+    cancel: CancellationToken,
+    address: AddressHash,
+    mut events: Receiver<(String, Event)>,
+) {
+    let key = address.to_hex_string();
+
+    loop {
+        let (event_id, event) = tokio::select! {
+            _ = cancel.cancelled() => {
+                break;
+            },
+            event = events.recv() => match event {
+                Some(event) => event,
+                None => break,
+            },
+        };
+
+        let result = tokio::select! {
+            result = send_tracked_event(&event_id, &event_id, event, &address, handler.clone()) => result,
+            _ = cancel.cancelled() => {
+                break;
+            },
+        };
+
+        if let Err(_) = result {
+            log::error!("messenger: event {} to {} is not acknowledged", event_id, key);
+        }
+
+        // Enqueue holds the handler lock as well, so an empty queue can't get a new event here
+        let (platform, depth) = {
+            let mut handler = handler.lock().await;
+
+            let depth = match handler.send_queues.get_mut(&key) {
+                Some(queue) => {
+                    queue.depth = queue.depth.saturating_sub(1);
+                    queue.depth
+                }
+                None => 0,
+            };
+            handler.send_limit.release(&key, 1);
+
+            if depth == 0 {
+                handler.send_queues.remove(&key);
+            }
+
+            (handler.platform.clone(), depth)
+        };
+
+        report_send_queue(platform, &key, depth).await;
+
+        if depth == 0 {
+            break;
+        }
+    }
+}
+
+/// Sends event like send_ack_event and reports its delivery to the platform:
+/// sent on the first attempt, then acked with the retransmits and the time from
+/// the first attempt to the ack, or failed after the last attempt
+async fn send_tracked_event<T: Platform>(
+    status_id: &String,
+    event_id: &String,
+    event: Event,
+    address: &AddressHash,
+    handler: Arc<Mutex<MessengerHandler<T>>>,
+) -> Result<usize, MessengerError> {
+    let address_str = address.to_hex_string();
+    let (platform, max_attempts) = {
+        let handler = handler.lock().await;
+        (handler.platform.clone(), handler.retransmit.max_attempts.max(1) as usize)
+    };
+
+    report_message_status(&platform, &address_str, status_id, MessageStatus::SENT, 0, None).await;
+
+    let started = Instant::now();
+    let result = send_ack_event(event_id, event, address, handler).await;
+
+    match result {
+        Ok(retransmits) => {
+            report_message_status(
+                &platform, &address_str, status_id, MessageStatus::ACKED, retransmits, Some(started.elapsed()),
+            ).await;
+        }
+        Err(_) => {
+            report_message_status(
+                &platform, &address_str, status_id, MessageStatus::FAILED, max_attempts - 1, None,
+            ).await;
+        }
+    }
+
+    result
+}
+
+async fn report_message_status<T: Platform>(
+    platform: &Arc<Mutex<T>>,
+    address: &String,
+    id: &String,
+    state: &str,
+    retries: usize,
+    ack_rtt: Option<Duration>,
+) {
+    platform.lock().await.send_event(&Event::MessageStatus(MessageStatus {
+        address: address.clone(),
+        id: id.clone(),
+        state: state.into(),
+        retries: retries as u32,
+        ack_rtt_ms: ack_rtt.map(|rtt| rtt.as_millis() as u32).unwrap_or(0),
+    }));
+}
+
+async fn report_send_queue<T: Platform>(platform: Arc<Mutex<T>>, address: &String, depth: usize) {
+    platform.lock().await.send_event(&Event::SendQueue(SendQueueState {
+        address: address.clone(),
+        depth: depth as u32,
+    }));
+}
+
 /// Manages commands from platform client
 async fn handle_commands<T: Platform + Send + 'static>(
     handler: Arc<Mutex<MessengerHandler<T>>>,
     cancel: CancellationToken,
     contact_destination: Arc<Mutex<SingleInputDestination>>,
     mut cmd_recv: Receiver<MessengerCommand>,
+    mut file_cmd_recv: Receiver<MessengerCommand>,
 ) {
     let contact_address = contact_destination
         .lock()
@@ -309,138 +769,276 @@ async fn handle_commands<T: Platform + Send + 'static>(
     let mut audio_buffer = Vec::new();
 
     loop {
-        tokio::select! {
+        // Interactive commands always go before queued file chunks
+        let cmd = tokio::select! {
+            biased;
             _ = cancel.cancelled() => {
                 break;
             },
-            Some(cmd) = cmd_recv.recv() => {
-                match cmd {
-                    MessengerCommand::CallAudioData(call) => {
-
-                        let address_str = call.address.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+            Some(cmd) = cmd_recv.recv() => cmd,
+            Some(cmd) = file_cmd_recv.recv() => cmd,
+        };
 
-                        let handler = handler.lock().await;
+        match cmd {
+            MessengerCommand::CallAudioData(call) => {
 
-                        let audio_data = call.data;
-                        let audio_stream: &[i16] = unsafe { std::mem::transmute(&audio_data[..]) };
+                let address_str = call.address.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
 
-                        audio_buffer.resize(audio_stream.len(), 0);
+                let handler = handler.lock().await;
 
-                        for i in 0..audio_buffer.len() {
-                            audio_buffer[i] = encode_alaw(audio_stream[i]);
-                        }
+                let audio_data = call.data;
+                let audio_stream: &[i16] = unsafe { std::mem::transmute(&audio_data[..]) };
 
-                        handler.send_out(&address, &Event::CallAudioData(CallAudioData{
-                            call_id: call.call_id.clone(),
-                            address: contact_address.clone(),
-                            data: audio_buffer.clone(),
-                        })).await;
-                    },
-                    MessengerCommand::CallVideoData(call) => {
+                audio_buffer.resize(audio_stream.len(), 0);
 
-                        let address_str = call.address.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+                for i in 0..audio_buffer.len() {
+                    audio_buffer[i] = encode_alaw(audio_stream[i]);
+                }
 
-                        let handler = handler.lock().await;
+                handler.send_out(&address, &Event::CallAudioData(CallAudioData{
+                    call_id: call.call_id.clone(),
+                    address: contact_address.clone(),
+                    data: audio_buffer.clone(),
+                })).await;
+            },
+            MessengerCommand::CallVideoData(call) => {
 
-                        handler.send_out(&address, &Event::CallVideoData(CallVideoData{
-                            call_id: call.call_id.clone(),
-                            address: contact_address.clone(),
-                            data: call.data,
-                        })).await;
-                    },
-                    MessengerCommand::CallInvoke(mut call) => {
-                        let address_str = call.address.clone();
-                        let call_id = call.call_id.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+                let address_str = call.address.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
 
-                        log::info!("messenger: call invoke addr:{} call-id:{}", address, call_id);
+                let handler = handler.lock().await;
 
-                        call.address = contact_address.clone();
+                handler.send_out(&address, &Event::CallVideoData(CallVideoData{
+                    call_id: call.call_id.clone(),
+                    address: contact_address.clone(),
+                    data: call.data,
+                })).await;
+            },
+            MessengerCommand::CallInvoke(mut call) => {
+                let address_str = call.address.clone();
+                let call_id = call.call_id.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
 
-                        let _ = send_ack_event(&call.id.clone(), Event::CallInvoke(call), &address, handler.clone()).await;
-                    },
-                    MessengerCommand::CallAnswer(mut call) => {
-                        let address_str = call.address.clone();
-                        let call_id = call.call_id.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+                log::info!("messenger: call invoke addr:{} call-id:{}", address, call_id);
 
-                        log::info!("messenger: call answer addr:{} call-id:{}", address, call_id);
+                call.address = contact_address.clone();
 
-                        call.address = contact_address.clone();
+                // Ordered with the messages to the contact, an answer never overtakes its invoke
+                enqueue_ack_event(&handler, &cancel, address, call.id.clone(), Event::CallInvoke(call)).await;
+            },
+            MessengerCommand::CallAnswer(mut call) => {
+                let address_str = call.address.clone();
+                let call_id = call.call_id.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
 
-                        let _ = send_ack_event(&call.id.clone(), Event::CallAnswer(call), &address, handler.clone()).await;
-                    },
-                    MessengerCommand::Broadcast(mut broadcast) => {
-                        broadcast.address = contact_address.clone();
-                        handler.lock().await.send_out_all(&Event::Broadcast(broadcast)).await;
-                    },
-                    MessengerCommand::CallReject(mut call) => {
-                        let address_str = call.address.clone();
-                        let call_id = call.call_id.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+                log::info!("messenger: call answer addr:{} call-id:{}", address, call_id);
 
-                        log::info!("messenger: call reject addr:{} call-id:{}", address, call_id);
+                call.address = contact_address.clone();
 
-                        call.address = contact_address.clone();
+                enqueue_ack_event(&handler, &cancel, address, call.id.clone(), Event::CallAnswer(call)).await;
+            },
+            MessengerCommand::Broadcast(mut broadcast) => {
+                broadcast.address = contact_address.clone();
+                handler.lock().await.send_out_all(&Event::Broadcast(broadcast)).await;
+            },
+            MessengerCommand::CallReject(mut call) => {
+                let address_str = call.address.clone();
+                let call_id = call.call_id.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
 
-                        let _ = send_ack_event(&call.id.clone(), Event::CallReject(call), &address, handler.clone()).await;
-                    },
-                    MessengerCommand::SendFileStart(mut file) => {
-                        let address_str = file.address.clone();
-                        let file_id = file.file_id.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+                log::info!("messenger: call reject addr:{} call-id:{}", address, call_id);
 
-                        log::debug!("messenger: send file {}({}) {}kBytes to {}", file.file_name, file.file_id, file.file_size / 1024, address);
+                call.address = contact_address.clone();
 
-                        file.address = contact_address.clone();
+                enqueue_ack_event(&handler, &cancel, address, call.id.clone(), Event::CallReject(call)).await;
+            },
+            MessengerCommand::SendFileStart(mut file) => {
+                let address_str = file.address.clone();
+                let file_id = file.file_id.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+
+                log::debug!("messenger: send file {}({}) {}kBytes to {}", file.file_name, file.file_id, file.file_size / 1024, address);
+
+                file.address = contact_address.clone();
+
+                let window = (file.window as usize).clamp(1, MAX_FILE_WINDOW);
+                // Length of a compressed stream is known when the platform ends it with an empty chunk
+                let file_size = if file.compression.is_empty() { file.file_size } else { u64::MAX };
+                let offset = file.offset;
+                let max_chunk_size = match file.chunk_size {
+                    0 => MAX_FILE_CHUNK_SIZE,
+                    chunk_size => (chunk_size as usize).clamp(MIN_FILE_CHUNK_SIZE, MAX_FILE_CHUNK_SIZE),
+                };
+
+                // Waiting for the ack must not hold back messages and other transfers
+                let handler = handler.clone();
+                tokio::spawn(async move {
+                    let result = send_tracked_event(&file_id, &file.id.clone(), Event::FileStart(file), &address, handler.clone()).await;
+                    if result.is_err() {
+                        handler.lock().await.report_file_status(&address_str, &file_id, FileStatus::FAILED);
+                    } else {
+                        let mut handler = handler.lock().await;
+                        let previous = handler.outgoing_files.insert(file_id.clone(), OutgoingFile {
+                            address: address_str,
+                            file_size,
+                            sent: offset,
+                            in_flight: 0,
+                            next_seq: 1,
+                            cancel: CancellationToken::new(),
+                            chunk_size: FILE_CHUNK_SIZE.min(max_chunk_size),
+                            max_chunk_size,
+                            srtt: None,
+                            retransmits: 0,
+                            recovery_seq: 0,
+                        });
+
+                        // Transfer is resumed, chunks of the previous attempt must not be retransmitted
+                        if let Some(previous) = previous {
+                            previous.cancel.cancel();
+                        }
 
-                        let result = send_ack_event(&file.id.clone(), Event::FileStart(file), &address, handler.clone()).await;
-                        if let Ok(_) = result {
-                            let platform = handler.lock().await.platform.clone();
-                            tokio::spawn(async move {
-                                platform.lock().await.request_file_chunk(&address_str, &file_id, PACKET_MDU / 2);
-                            });
+                        for _ in 0..window {
+                            handler.request_next_chunk(&file_id);
                         }
-                    },
-                    MessengerCommand::SendFileChunk(mut file) => {
+                    }
+                });
+            },
+            MessengerCommand::SendFileChunk(mut file) => {
 
-                        let address_str = file.address.clone();
-                        let file_id = file.file_id.clone();
-                        let address = AddressHash::new_from_hex_string(&address_str).unwrap();
+                let address_str = file.address.clone();
+                let file_id = file.file_id.clone();
+                let address = AddressHash::new_from_hex_string(&address_str).unwrap();
 
-                        log::trace!("messenger: send file chunk {}  to {}", file.file_id, address);
+                log::trace!("messenger: send file chunk {}  to {}", file.file_id, address);
 
-                        file.address = contact_address.clone();
+                file.address = contact_address.clone();
 
-                        let result = send_ack_event(&file.id.clone(), Event::FileChunk(file), &address, handler.clone()).await;
-                        if let Ok(_) = result {
-                            let platform = handler.lock().await.platform.clone();
-                            tokio::spawn(async move {
-                                platform.lock().await.request_file_chunk(&address_str, &file_id, PACKET_MDU / 4);
-                            });
+                if file.data.is_empty() {
+                    let mut handler = handler.lock().await;
+                    if let Some(outgoing) = handler.outgoing_files.get_mut(&file_id) {
+                        outgoing.file_size = outgoing.sent;
+                    }
+                    handler.request_next_chunk(&file_id);
+                    continue;
+                }
+
+                let transfer_cancel = {
+                    let mut handler = handler.lock().await;
+                    match handler.outgoing_files.get_mut(&file_id) {
+                        Some(outgoing) => {
+                            file.seq = outgoing.next_seq;
+                            file.offset = outgoing.sent;
+                            outgoing.next_seq += 1;
+                            outgoing.in_flight += 1;
+                            outgoing.sent += file.data.len() as u64;
+                            outgoing.cancel.clone()
                         }
-                    },
-                    MessengerCommand::SendMessage(mut message) => {
+                        None => {
+                            // Transfer rejected, failed or not restarted yet, the chunk has no sequence to take
+                            log::debug!("messenger: chunk of file {} to {} dropped, no transfer", file_id, address);
+                            continue;
+                        }
+                    }
+                };
+
+                // Every chunk waits for its own ack, so only lost chunks are retransmitted
+                // while the rest of the window keeps moving
+                let handler = handler.clone();
+                tokio::spawn(async move {
+                    let started = Instant::now();
+                    let seq = file.seq;
+                    let result = tokio::select! {
+                        result = send_ack_event(&file.id.clone(), Event::FileChunk(file), &address, handler.clone()) => result,
+                        _ = transfer_cancel.cancelled() => return,
+                    };
 
-                        let address = AddressHash::new_from_hex_string(&message.address).unwrap();
-                        log::debug!("messenger: send message to {}", address);
+                    let mut handler = handler.lock().await;
+                    if transfer_cancel.is_cancelled() {
+                        return;
+                    }
 
-                        message.address = contact_address.clone();
+                    match result {
+                        Ok(retransmits) => {
+                            if let Some(outgoing) = handler.outgoing_files.get_mut(&file_id) {
+                                outgoing.in_flight = outgoing.in_flight.saturating_sub(1);
+                                outgoing.on_chunk_acked(seq, started.elapsed(), retransmits);
+                            }
+                            handler.request_next_chunk(&file_id);
+                        }
+                        Err(_) => {
+                            log::error!("messenger: file {} chunk to {} is lost, transfer stopped", file_id, address_str);
+                            if handler.outgoing_files.remove(&file_id).is_some() {
+                                handler.report_file_status(&address_str, &file_id, FileStatus::FAILED);
+                            }
+                        }
+                    }
+                });
+            },
+            MessengerCommand::SendFileResume(mut resume) => {
+                let address = AddressHash::new_from_hex_string(&resume.address).unwrap();
+                log::debug!("messenger: resume file {} from {} with {}", resume.file_id, resume.offset, address);
 
-                        let _ = send_ack_event(&message.id.clone(), Event::Message(message), &address, handler.clone()).await;
-                    },
-                    MessengerCommand::ChatCreate(mut chat) => {
+                resume.address = contact_address.clone();
 
-                        let address = AddressHash::new_from_hex_string(&chat.address).unwrap();
-                        log::debug!("messenger: create chat with {}", address);
+                let handler = handler.clone();
+                tokio::spawn(async move {
+                    let _ = send_ack_event(&resume.id.clone(), Event::FileResume(resume), &address, handler).await;
+                });
+            },
+            MessengerCommand::SendFileEnd(mut end) => {
+                let address = AddressHash::new_from_hex_string(&end.address).unwrap();
+                log::debug!("messenger: end of file {} to {}", end.file_id, address);
 
-                        chat.address = contact_address.clone();
+                end.address = contact_address.clone();
 
-                        let _ = send_ack_event(&chat.chat_id.clone(), Event::ChatCreate(chat), &address, handler.clone()).await;
-                    },
+                let handler = handler.clone();
+                tokio::spawn(async move {
+                    let _ = send_ack_event(&end.id.clone(), Event::FileEnd(end), &address, handler).await;
+                });
+            },
+            MessengerCommand::SendFileReject(mut reject) => {
+                let address = AddressHash::new_from_hex_string(&reject.address).unwrap();
+                log::debug!("messenger: reject file {} from {}: {}", reject.file_id, address, reject.reason);
+
+                {
+                    // The platform gave up its own file, stop the chunks in flight
+                    let mut handler = handler.lock().await;
+                    let outgoing = handler
+                        .outgoing_files
+                        .get(&reject.file_id)
+                        .map_or(false, |outgoing| outgoing.address == reject.address);
+                    if outgoing {
+                        if let Some(outgoing) = handler.outgoing_files.remove(&reject.file_id) {
+                            outgoing.cancel.cancel();
+                        }
+                    }
                 }
+
+                reject.address = contact_address.clone();
+
+                let handler = handler.clone();
+                tokio::spawn(async move {
+                    let _ = send_ack_event(&reject.id.clone(), Event::FileReject(reject), &address, handler).await;
+                });
+            },
+            MessengerCommand::SendMessage(mut message) => {
+
+                let address = AddressHash::new_from_hex_string(&message.address).unwrap();
+                log::debug!("messenger: send message to {}", address);
+
+                message.address = contact_address.clone();
+
+                enqueue_ack_event(&handler, &cancel, address, message.id.clone(), Event::Message(message)).await;
+            },
+            MessengerCommand::ChatCreate(mut chat) => {
+
+                let address = AddressHash::new_from_hex_string(&chat.address).unwrap();
+                log::debug!("messenger: create chat with {}", address);
+
+                chat.address = contact_address.clone();
+
+                enqueue_ack_event(&handler, &cancel, address, chat.chat_id.clone(), Event::ChatCreate(chat)).await;
             },
         }
     }
@@ -491,16 +1089,35 @@ async fn handle_ack_event<T: Platform + Send + 'static>(
 
     if handler.known_ids.insert(&id) {
         match event {
-            Event::ChatCreate(_) | Event::Message(_) | Event::FileStart(_) => {
+            Event::ChatCreate(_) | Event::Message(_) | Event::FileStart(_) | Event::FileResume(_) | Event::FileEnd(_) => {
                 handler.platform.lock().await.send_event(&event);
             }
             Event::CallInvoke(_) | Event::CallAnswer(_) | Event::CallReject(_) => {
                 handler.platform.lock().await.send_event(&event);
             }
+            Event::FileReject(ref reject) => {
+                log::warn!("messenger: file {} rejected by {}: {}", reject.file_id, reject.address, reject.reason);
+                let rejected = handler
+                    .outgoing_files
+                    .get(&reject.file_id)
+                    .map_or(false, |outgoing| outgoing.address == reject.address);
+                if rejected {
+                    if let Some(outgoing) = handler.outgoing_files.remove(&reject.file_id) {
+                        outgoing.cancel.cancel();
+                        handler.report_file_status(&outgoing.address, &reject.file_id, FileStatus::REJECTED);
+                    }
+                } else {
+                    // The sender gave the file up, the platform stops receiving it
+                    handler.platform.lock().await.send_event(&event);
+                }
+            }
             Event::FileChunk(chunk) => {
+                // Numbered chunks carry their offset and are placed by the platform in any order
+                let offset = if chunk.seq != 0 { Some(chunk.offset) } else { None };
                 handler.platform.lock().await.receive_file_chunk(
                     &chunk.address,
                     &chunk.file_id,
+                    offset,
                     &chunk.data,
                 );
             }
@@ -559,7 +1176,8 @@ async fn handle_in_data<T: Platform + Send + 'static>(
                                     handler.platform.lock().await.feed_video(&call.address, &call.call_id, &call.data[..]);
                                 },
                                 Event::ChatCreate(_) | Event::Message(_) |
-                                Event::FileStart(_) | Event::FileChunk(_) |
+                                Event::FileStart(_) | Event::FileChunk(_) | Event::FileResume(_) | Event::FileEnd(_) |
+                                Event::FileReject(_) |
                                 Event::CallInvoke(_) | Event::CallAnswer(_) | Event::CallReject(_) => {
                                     let mut handler = handler.lock().await;
                                     handle_ack_event(&mut handler, event).await;
@@ -569,6 +1187,10 @@ async fn handle_in_data<T: Platform + Send + 'static>(
                                 },
                                 Event::ContactFound(_) => {},
                                 Event::ContactConnect(_) => {},
+                                Event::SendQueue(_) => {},
+                                Event::DeliveryStats(_) => {},
+                                Event::MessageStatus(_) => {},
+                                Event::FileStatus(_) => {},
                                 Event::Broadcast(broadcast) => {
                                     let mut handler = handler.lock().await;
                                     if handler.known_ids.insert(&broadcast.id) {
@@ -37,6 +37,96 @@ pub struct ContactConnect {
     pub address: String,
 }
 
+/// Retransmit timers of acknowledged events
+#[derive(Clone, Serialize, Deserialize)]
+#[serde(default)]
+pub struct RetransmitConfig {
+    /// Timeout of the first attempt until the destination has a round trip estimate
+    pub initial_timeout_ms: u32,
+    pub min_timeout_ms: u32,
+    pub max_timeout_ms: u32,
+    /// Timeout multiplier after every attempt without ack
+    pub backoff_factor: f32,
+    /// Random spread of every timeout, 0.25 waits 75%..125% of it
+    pub jitter: f32,
+    pub max_attempts: u32,
+}
+
+impl Default for RetransmitConfig {
+    fn default() -> Self {
+        Self {
+            initial_timeout_ms: 1000,
+            min_timeout_ms: 300,
+            max_timeout_ms: 16000,
+            backoff_factor: 2.0,
+            jitter: 0.25,
+            max_attempts: 8,
+        }
+    }
+}
+
+/// Delivery of acknowledged events to a destination, reported to the platform only
+#[derive(Serialize, Deserialize)]
+pub struct DeliveryStats {
+    pub address: String,
+    /// Smoothed ack round trip, 0 until the first sample
+    pub srtt_ms: u32,
+    pub rttvar_ms: u32,
+    /// Retransmit timeout of the next event
+    pub timeout_ms: u32,
+    pub delivered: u32,
+    pub retransmits: u32,
+    /// Events given up after the last attempt
+    pub failed: u32,
+}
+
+/// Delivery of a message, chat creation, call signal or file start to a destination, reported to the platform only
+#[derive(Serialize, Deserialize)]
+pub struct MessageStatus {
+    /// Destination of the event
+    pub address: String,
+    /// Message id, chat id of a chat creation, file id of a file start
+    pub id: String,
+    pub state: String,
+    /// Retransmits until acked or given up
+    pub retries: u32,
+    /// Time from the first attempt to the ack, 0 unless acked
+    pub ack_rtt_ms: u32,
+}
+
+impl MessageStatus {
+    pub const QUEUED: &'static str = "queued";
+    pub const SENT: &'static str = "sent";
+    pub const ACKED: &'static str = "acked";
+    pub const FAILED: &'static str = "failed";
+    /// Send queue of the destination is full, the event is dropped
+    pub const REJECTED: &'static str = "rejected";
+}
+
+/// Outcome of an outgoing file, reported to the platform only once the last chunk
+/// is acknowledged or the transfer is given up
+#[derive(Serialize, Deserialize)]
+pub struct FileStatus {
+    /// Destination of the file
+    pub address: String,
+    pub file_id: String,
+    pub state: String,
+}
+
+impl FileStatus {
+    pub const COMPLETED: &'static str = "completed";
+    pub const FAILED: &'static str = "failed";
+    /// Receiver refused the file, resuming it won't help
+    pub const REJECTED: &'static str = "rejected";
+}
+
+/// Events waiting for delivery to a destination
+#[derive(Serialize, Deserialize)]
+pub struct SendQueueState {
+    pub address: String,
+    pub depth: u32,
+}
+
 #[derive(Clone, Copy, Serialize, Deserialize)]
 pub enum AcknowledgeKind {
     Generic,
@@ -47,6 +137,9 @@ pub enum AcknowledgeKind {
     CallInvoke,
     CallAnswer,
     CallReject,
+    FileResume,
+    FileEnd,
+    FileReject,
 }
 
 #[derive(Serialize, Deserialize)]
@@ -110,8 +203,55 @@ pub struct FileStart {
     pub id: String,
     pub file_id: String,
     pub chat_id: String,
-    pub file_size: usize,
+    /// 64 bit on every target, usize is 32 bit on armeabi-v7a
+    pub file_size: u64,
     pub file_name: String,
+    /// Number of chunks the sender keeps in flight, 0 and 1 mean stop-and-wait
+    #[serde(default)]
+    pub window: u32,
+    /// Position the transfer continues from when it is resumed
+    #[serde(default)]
+    pub offset: u64,
+    /// Sender follows the last chunk with a FileEnd carrying the file hash
+    #[serde(default)]
+    pub checksum: bool,
+    /// Upper limit of the adaptive chunk size, 0 uses the messenger limit
+    #[serde(default)]
+    pub chunk_size: u32,
+    /// Chunks carry a compressed stream, empty when they carry the file as it is.
+    /// Passed through to the platform which inflates it
+    #[serde(default)]
+    pub compression: String,
+}
+
+/// Sent after the last chunk of a file
+#[derive(Serialize, Deserialize)]
+pub struct FileEnd {
+    pub address: String,
+    pub id: String,
+    pub file_id: String,
+    /// Hex SHA-256 of the whole file
+    pub sha256: String,
+}
+
+/// Asks the sender to continue an interrupted transfer from offset
+#[derive(Serialize, Deserialize)]
+pub struct FileResume {
+    pub address: String,
+    pub id: String,
+    pub file_id: String,
+    pub offset: u64,
+}
+
+/// Receiver refuses a file it can't take, the sender stops the transfer
+#[derive(Serialize, Deserialize)]
+pub struct FileReject {
+    pub address: String,
+    pub id: String,
+    pub file_id: String,
+    /// Why the file is refused, for logs
+    #[serde(default)]
+    pub reason: String,
 }
 
 #[derive(Serialize, Deserialize)]
@@ -122,6 +262,12 @@ pub struct FileChunk {
     pub chat_id: String,
     #[serde(with = "serde_bytes")]
     pub data: Vec<u8>,
+    /// Position of the chunk in the file starting from 1, 0 if the sender doesn't number chunks
+    #[serde(default)]
+    pub seq: u64,
+    /// Byte offset of the chunk in the file, valid for numbered chunks only
+    #[serde(default)]
+    pub offset: u64,
 }
 
 #[derive(Serialize, Deserialize)]
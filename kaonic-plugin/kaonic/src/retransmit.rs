@@ -0,0 +1,154 @@
+use std::time::{Duration, Instant};
+
+use rand_core::{OsRng, RngCore};
+
+use crate::model::{DeliveryStats, RetransmitConfig};
+
+/// Retransmit timer of one destination, RFC 6298 estimator with Karn's rule:
+/// only events acknowledged on the first attempt give a round trip sample
+pub struct RetransmitTimer {
+    srtt: Option<Duration>,
+    rttvar: Duration,
+    rto: Duration,
+    delivered: u32,
+    retransmits: u32,
+    failed: u32,
+    last_report: Option<Instant>,
+}
+
+/// Granularity term of the timeout, keeps it above the srtt when rttvar settles near zero
+const CLOCK_GRANULARITY: Duration = Duration::from_millis(50);
+/// Stats of a destination are reported at most this often, failures are reported right away
+const STATS_INTERVAL: Duration = Duration::from_secs(1);
+
+impl RetransmitTimer {
+    pub fn new(config: &RetransmitConfig) -> Self {
+        Self {
+            srtt: None,
+            rttvar: Duration::ZERO,
+            rto: config.initial_timeout(),
+            delivered: 0,
+            retransmits: 0,
+            failed: 0,
+            last_report: None,
+        }
+    }
+
+    /// Timeout of the first attempt
+    pub fn timeout(&self) -> Duration {
+        self.rto
+    }
+
+    pub fn on_sample(&mut self, rtt: Duration, config: &RetransmitConfig) {
+        match self.srtt {
+            None => {
+                self.srtt = Some(rtt);
+                self.rttvar = rtt / 2;
+            }
+            Some(srtt) => {
+                let error = if srtt > rtt { srtt - rtt } else { rtt - srtt };
+                self.rttvar = (self.rttvar * 3 + error) / 4;
+                self.srtt = Some((srtt * 7 + rtt) / 8);
+            }
+        }
+
+        let rto = self.srtt.unwrap_or(rtt) + (self.rttvar * 4).max(CLOCK_GRANULARITY);
+        self.rto = rto.clamp(config.min_timeout(), config.max_timeout());
+    }
+
+    /// An attempt timed out, following events to the destination start from the longer
+    /// timeout until a new sample arrives
+    pub fn on_timeout(&mut self, timeout: Duration, config: &RetransmitConfig) {
+        self.rto = self.rto.max(config.backoff(timeout));
+    }
+
+    pub fn on_delivered(&mut self, retransmits: usize) {
+        self.delivered += 1;
+        self.retransmits += retransmits as u32;
+    }
+
+    pub fn on_failed(&mut self, retransmits: usize) {
+        self.failed += 1;
+        self.retransmits += retransmits as u32;
+    }
+
+    /// Stats to report now or None if the last report is recent
+    pub fn take_report(&mut self, address: &String, force: bool) -> Option<DeliveryStats> {
+        let now = Instant::now();
+        if !force {
+            if let Some(last_report) = self.last_report {
+                if now.duration_since(last_report) < STATS_INTERVAL {
+                    return None;
+                }
+            }
+        }
+        self.last_report = Some(now);
+
+        Some(DeliveryStats {
+            address: address.clone(),
+            srtt_ms: self.srtt.map(|srtt| srtt.as_millis() as u32).unwrap_or(0),
+            rttvar_ms: self.rttvar.as_millis() as u32,
+            timeout_ms: self.rto.as_millis() as u32,
+            delivered: self.delivered,
+            retransmits: self.retransmits,
+            failed: self.failed,
+        })
+    }
+}
+
+impl RetransmitConfig {
+    pub fn initial_timeout(&self) -> Duration {
+        Duration::from_millis(self.initial_timeout_ms as u64).clamp(self.min_timeout(), self.max_timeout())
+    }
+
+    pub fn min_timeout(&self) -> Duration {
+        Duration::from_millis(self.min_timeout_ms as u64)
+    }
+
+    pub fn max_timeout(&self) -> Duration {
+        Duration::from_millis(self.max_timeout_ms.max(self.min_timeout_ms) as u64)
+    }
+
+    /// Config with factors the timers can use, non-finite ones are replaced by the defaults
+    pub fn sanitized(mut self) -> Self {
+        let defaults = Self::default();
+        if !self.backoff_factor.is_finite() {
+            self.backoff_factor = defaults.backoff_factor;
+        }
+        if !self.jitter.is_finite() {
+            self.jitter = defaults.jitter;
+        }
+        self.backoff_factor = self.backoff_factor.max(1.0);
+        self.jitter = self.jitter.clamp(0.0, 1.0);
+        self
+    }
+
+    /// Timeout of the next attempt
+    pub fn backoff(&self, timeout: Duration) -> Duration {
+        scale(timeout, self.backoff_factor.max(1.0)).min(self.max_timeout())
+    }
+
+    /// Spreads the timeout by +-jitter so nodes that lost the same packet don't retry together
+    pub fn jitter(&self, timeout: Duration) -> Duration {
+        let jitter = self.jitter.clamp(0.0, 1.0);
+        if jitter == 0.0 {
+            return timeout;
+        }
+
+        let random = OsRng.next_u32() as f32 / u32::MAX as f32;
+        scale(timeout, 1.0 - jitter + 2.0 * jitter * random)
+    }
+}
+
+/// timeout * factor, saturating where Duration::mul_f32 would panic
+fn scale(timeout: Duration, factor: f32) -> Duration {
+    if factor.is_nan() {
+        return timeout;
+    }
+
+    Duration::try_from_secs_f32(timeout.as_secs_f32() * factor).unwrap_or(if factor > 0.0 {
+        Duration::MAX
+    } else {
+        Duration::ZERO
+    })
+}
@@ -0,0 +1,119 @@
+use std::collections::HashMap;
+use std::sync::Mutex;
+
+/// Call or file transfer registered by the platform, addressed by a numeric handle
+/// so hot-path calls don't need to pass address and id strings.
+#[derive(Clone)]
+pub struct Session {
+    pub address: String,
+    pub id: String,
+}
+
+struct Entry {
+    session: Session,
+    /// number of opens not matched by a close yet
+    references: usize,
+}
+
+struct Sessions {
+    next_handle: i32,
+    by_handle: HashMap<i32, Entry>,
+    by_id: HashMap<String, i32>,
+}
+
+pub struct SessionRegistry {
+    sessions: Mutex<Sessions>,
+}
+
+impl SessionRegistry {
+    /// Handle value which never refers to a session
+    pub const INVALID_HANDLE: i32 = 0;
+
+    pub fn new() -> Self {
+        Self {
+            sessions: Mutex::new(Sessions {
+                next_handle: 1,
+                by_handle: HashMap::new(),
+                by_id: HashMap::new(),
+            }),
+        }
+    }
+
+    /// Register session for call/file id. Opening an id which is already registered returns
+    /// the existing handle and takes another reference, every open must be matched by a close
+    pub fn open(&self, address: String, id: String) -> i32 {
+        let mut sessions = self.sessions.lock().expect("sessions locked");
+
+        if let Some(handle) = sessions.by_id.get(&id).copied() {
+            if let Some(entry) = sessions.by_handle.get_mut(&handle) {
+                if entry.session.address != address {
+                    log::warn!(
+                        "session {} reopened for {} but registered for {}",
+                        id,
+                        address,
+                        entry.session.address
+                    );
+                }
+                entry.references += 1;
+            }
+            return handle;
+        }
+
+        let handle = sessions.next_handle;
+        sessions.next_handle = match handle.checked_add(1) {
+            Some(next) => next,
+            None => 1,
+        };
+
+        sessions.by_id.insert(id.clone(), handle);
+        sessions.by_handle.insert(
+            handle,
+            Entry {
+                session: Session { address, id },
+                references: 1,
+            },
+        );
+
+        handle
+    }
+
+    /// Drop one reference, the session is removed once every open was closed
+    pub fn close(&self, handle: i32) {
+        let mut sessions = self.sessions.lock().expect("sessions locked");
+
+        let removed = match sessions.by_handle.get_mut(&handle) {
+            Some(entry) if entry.references > 1 => {
+                entry.references -= 1;
+                None
+            }
+            Some(_) => sessions.by_handle.remove(&handle),
+            None => {
+                log::warn!("close of unknown session {}", handle);
+                None
+            }
+        };
+
+        if let Some(entry) = removed {
+            sessions.by_id.remove(&entry.session.id);
+        }
+    }
+
+    pub fn get(&self, handle: i32) -> Option<Session> {
+        self.sessions
+            .lock()
+            .expect("sessions locked")
+            .by_handle
+            .get(&handle)
+            .map(|entry| entry.session.clone())
+    }
+
+    /// Find handle of the session registered for call/file id
+    pub fn find(&self, id: &str) -> Option<i32> {
+        self.sessions
+            .lock()
+            .expect("sessions locked")
+            .by_id
+            .get(id)
+            .copied()
+    }
+}
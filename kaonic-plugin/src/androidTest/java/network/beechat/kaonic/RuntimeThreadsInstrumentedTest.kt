@@ -0,0 +1,45 @@
+package network.beechat.kaonic
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import network.beechat.kaonic.impl.KaonicLib
+import network.beechat.kaonic.impl.KaonicRuntimeConfig
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Thread counts reported by the native runtime. The library is a process wide singleton,
+ * the requested config applies only if no other test created it first, so the checks hold
+ * for any config.
+ */
+@RunWith(AndroidJUnit4::class)
+class RuntimeThreadsInstrumentedTest {
+
+    @Test
+    fun reportedThreadCountsAreConsistent() {
+        val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+        val kaonicLib = KaonicLib.getInstance(appContext, KaonicRuntimeConfig(WORKER_THREADS))
+
+        val workers = kaonicLib.workerThreadCount
+        assertTrue("no runtime workers", workers >= 1)
+
+        // workers count themselves once they are running
+        val deadline = System.currentTimeMillis() + WAIT_MS
+        while (kaonicLib.runtimeThreadCount < workers && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        val runtimeThreads = kaonicLib.runtimeThreadCount
+        assertTrue("$runtimeThreads runtime threads for $workers workers", runtimeThreads >= workers)
+
+        // only runtime threads attach to deliver callbacks, and they stay attached
+        val attached = kaonicLib.attachedThreadCount
+        assertTrue("negative attached thread count", attached >= 0)
+        assertTrue("$attached attached of $runtimeThreads runtime threads", attached <= runtimeThreads)
+    }
+
+    companion object {
+        private const val WORKER_THREADS = 2
+        private const val WAIT_MS = 2_000L
+    }
+}
@@ -0,0 +1,84 @@
+package network.beechat.kaonic
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.fasterxml.jackson.databind.ObjectMapper
+import network.beechat.kaonic.communication.base.KaonicBaseManager
+import network.beechat.kaonic.impl.KaonicLib
+import network.beechat.kaonic.models.KaonicEvent
+import network.beechat.kaonic.models.KaonicEventType
+import network.beechat.kaonic.models.connection.ConnectionConfig
+import network.beechat.kaonic.models.connection.ConnectionContact
+import network.beechat.kaonic.models.messages.MessageTextEvent
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.UUID
+
+/**
+ * Floods one unreachable contact from the test thread, trySendEvent must return right away
+ * with the event queued or rejected instead of waiting for queue space. Messages waiting for
+ * the contact count against its send queue, so the flood is rejected once that is full.
+ */
+@RunWith(AndroidJUnit4::class)
+class SendQueueInstrumentedTest {
+    private val objectMapper = ObjectMapper()
+
+    @Test
+    fun trySendEventNeverBlocks() {
+        val appContext = InstrumentationRegistry.getInstrumentation().targetContext
+        val kaonicLib = KaonicLib.getInstance(appContext)
+        val manager = KaonicBaseManager(kaonicLib)
+
+        kaonicLib.setCommandQueueSize(QUEUE_SIZE)
+        kaonicLib.setDestinationQueueSize(DESTINATION_QUEUE_SIZE)
+        val creds = manager.generateSecret()
+        assertNotNull(creds)
+        assertTrue(manager.start(creds!!.secret, ConnectionConfig(ConnectionContact("test"), arrayListOf())))
+
+        // nobody answers this address, every message waits for acks that never come
+        val address = UUID.randomUUID().toString().replace("-", "")
+        val results = IntArray(4)
+        var slowestNanos = 0L
+
+        try {
+            repeat(FLOOD_SIZE) { index ->
+                val started = System.nanoTime()
+                val result = kaonicLib.trySendEvent(message(address, index))
+                slowestNanos = maxOf(slowestNanos, System.nanoTime() - started)
+
+                assertTrue(
+                    "unexpected result $result",
+                    result == KaonicLib.SEND_QUEUED || result == KaonicLib.SEND_QUEUE_FULL
+                )
+                results[result]++
+            }
+
+            assertTrue("trySendEvent blocked for ${slowestNanos / 1_000_000} ms",
+                slowestNanos < MAX_CALL_NANOS)
+            assertTrue(results[KaonicLib.SEND_QUEUED] > 0)
+            assertTrue("${results[KaonicLib.SEND_QUEUED]} messages queued for one contact",
+                results[KaonicLib.SEND_QUEUED] <= DESTINATION_QUEUE_SIZE)
+            assertTrue(results[KaonicLib.SEND_QUEUE_FULL] > 0)
+            assertEquals(KaonicLib.SEND_INVALID, kaonicLib.trySendEvent("{}"))
+        } finally {
+            manager.stop()
+        }
+
+        assertEquals(KaonicLib.SEND_NOT_STARTED, kaonicLib.trySendEvent(message(address, FLOOD_SIZE)))
+    }
+
+    private fun message(address: String, index: Int): String = objectMapper.writeValueAsString(
+        KaonicEvent(
+            KaonicEventType.MESSAGE_TEXT,
+            MessageTextEvent(address, System.currentTimeMillis(), "flood", "message $index")
+        )
+    )
+
+    companion object {
+        private const val QUEUE_SIZE = 4
+        private const val DESTINATION_QUEUE_SIZE = 8
+        private const val FLOOD_SIZE = 2000
+        private const val MAX_CALL_NANOS = 50_000_000L
+    }
+}
@@ -0,0 +1,51 @@
+package network.beechat.kaonic.audio;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-size PCM buffer borrowed from {@link AudioFramePool}.
+ * The holder owns the frame until {@link #release()} is called,
+ * so it can be handed to another thread without copying.
+ * The buffer is direct, so it can be passed to native code as is.
+ */
+public final class AudioFrame {
+    public final @NonNull ByteBuffer buffer;
+
+    private final AudioFramePool pool;
+    private boolean acquired = false;
+
+    AudioFrame(AudioFramePool pool, int size) {
+        this.pool = pool;
+        this.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /// return the frame to its pool, the frame must not be used afterwards
+    public void release() {
+        pool.release(this);
+    }
+
+    /// number of valid bytes, same as the buffer limit
+    public int getLength() {
+        return buffer.limit();
+    }
+
+    /// set number of valid bytes and rewind the buffer
+    public void setLength(int length) {
+        buffer.clear();
+        buffer.limit(length);
+    }
+
+    synchronized void markAcquired() {
+        acquired = true;
+        setLength(0);
+    }
+
+    synchronized boolean markReleased() {
+        if (!acquired) return false;
+        acquired = false;
+        return true;
+    }
+}
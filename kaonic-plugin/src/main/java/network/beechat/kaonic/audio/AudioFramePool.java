@@ -0,0 +1,57 @@
+package network.beechat.kaonic.audio;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized {@link AudioFrame}s.
+ * Frames are created up front, when the pool is exhausted a new frame is allocated
+ * and counted so leaks or slow consumers are visible via {@link #getAllocatedCount()}.
+ */
+public class AudioFramePool {
+    private final int frameSize;
+    private final ArrayBlockingQueue<AudioFrame> freeFrames;
+    private final AtomicLong allocatedCount = new AtomicLong();
+
+    public AudioFramePool(int frameSize, int capacity) {
+        this.frameSize = frameSize;
+        this.freeFrames = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            freeFrames.offer(allocate());
+        }
+    }
+
+    @NonNull
+    public AudioFrame acquire() {
+        AudioFrame frame = freeFrames.poll();
+        if (frame == null) {
+            frame = allocate();
+        }
+        frame.markAcquired();
+        return frame;
+    }
+
+    void release(@NonNull AudioFrame frame) {
+        if (!frame.markReleased()) {
+            throw new IllegalStateException("Audio frame released twice");
+        }
+        // frames above capacity are left to the garbage collector
+        freeFrames.offer(frame);
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /// number of frames created since the pool was built, including the initial ones
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    private AudioFrame allocate() {
+        allocatedCount.incrementAndGet();
+        return new AudioFrame(this, frameSize);
+    }
+}
@@ -22,13 +22,18 @@ public class AudioService {
     private final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 
     private final int SAMPLE_BUFFER_SIZE = 256;
+    /// max time the player thread parks before re-checking the playing state
+    private final long PLAYBACK_WAIT_NANOS = 100_000_000L;
+    private final int RECORD_FRAME_SIZE = SAMPLE_BUFFER_SIZE * 3;
+    private final int RECORD_POOL_SIZE = 8;
 
     private final AudioRecord audioRecord;
     private final AudioTrack audioTrack;
     private AcousticEchoCanceler echoCanceler = null;
-    private boolean isRecording = false;
-    private boolean isPlaying = false;
-    private final CircularBuffer circularBuffer;
+    private volatile boolean isRecording = false;
+    private volatile boolean isPlaying = false;
+    private final JitterBuffer jitterBuffer;
+    private final AudioFramePool recordFramePool = new AudioFramePool(RECORD_FRAME_SIZE, RECORD_POOL_SIZE);
     private Thread recordingThread = null;
     private Thread playingThread = null;
     private AudioStreamCallback audioStreamCallback = null;
@@ -36,7 +41,7 @@ public class AudioService {
     public AudioService() {
         final int bufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_IN, AUDIO_ENCODING);
 
-        circularBuffer = new CircularBuffer(bufferSize * 64);
+        jitterBuffer = new JitterBuffer(bufferSize * 64, SAMPLE_RATE);
 
         audioRecord = new AudioRecord.Builder()
                 .setAudioSource(MediaRecorder.AudioSource.MIC)
@@ -80,6 +85,7 @@ public class AudioService {
             return;
         }
 
+        jitterBuffer.reset();
         audioTrack.play();
         isPlaying = true;
 
@@ -98,6 +104,7 @@ public class AudioService {
         }
 
         isPlaying = false;
+        jitterBuffer.wakeUp();
 
         if (playingThread != null) {
             try {
@@ -110,7 +117,11 @@ public class AudioService {
     }
 
     public void play(byte[] data, int length) {
-       circularBuffer.write(data, 0, length);
+        jitterBuffer.put(data, length);
+    }
+
+    public JitterBufferStats getPlaybackStats() {
+        return jitterBuffer.getStats();
     }
 
     public void startRecording() {
@@ -155,37 +166,38 @@ public class AudioService {
 //        short[] audioStream = new short[audioBuffer.length / 2];
 
         while (isPlaying) {
-            if (circularBuffer.hasSufficientData(audioBuffer.length)) {
-                int read = circularBuffer.read(audioBuffer, 0, audioBuffer.length);
-                if (read > 0) {
-
-//                    for (int i = 0; i < (read / 2); i++) {
-//                        int low = audioBuffer[2 * i] & 0xFF;
-//                        int high = audioBuffer[2 * i + 1]; // already signed
-//                        audioStream[i] = (short) ((high << 8) | low);
-//                    }
-
-                    audioTrack.write(audioBuffer, 0, read);
-                }
+            int read = jitterBuffer.read(audioBuffer, audioBuffer.length, PLAYBACK_WAIT_NANOS);
+            if (read > 0) {
+
+//                for (int i = 0; i < (read / 2); i++) {
+//                    int low = audioBuffer[2 * i] & 0xFF;
+//                    int high = audioBuffer[2 * i + 1]; // already signed
+//                    audioStream[i] = (short) ((high << 8) | low);
+//                }
+
+                audioTrack.write(audioBuffer, 0, read);
             }
         }
     }
 
     private void readAudioData() {
-        byte[] audioBuffer = new byte[SAMPLE_BUFFER_SIZE * 3];
-//        short[] audioStream = new short[audioBuffer.length/2];
+//        short[] audioStream = new short[RECORD_FRAME_SIZE / 2];
 
         while (isRecording) {
-            int read = audioRecord.read(audioBuffer, 0, audioBuffer.length);
+            final AudioFrame frame = recordFramePool.acquire();
+            int read = audioRecord.read(frame.buffer, frame.buffer.capacity());
 
-            if (read > 0 && audioStreamCallback != null) {
+            final AudioStreamCallback callback = audioStreamCallback;
+            if (read > 0 && callback != null) {
 
-//                for (int i = 0; i < read; i++) {
-//                    audioBuffer[2 * i]     = (byte) (audioStream[i] & 0xFF);         // low byte
-//                    audioBuffer[2 * i + 1] = (byte) ((audioStream[i] >> 8) & 0xFF);  // high byte
+//                for (int i = 0; i < read / 2; i++) {
+//                    frame.buffer.putShort(2 * i, audioStream[i]);
 //                }
 
-                audioStreamCallback.onResult(read, audioBuffer);
+                frame.setLength(read);
+                callback.onResult(frame);
+            } else {
+                frame.release();
             }
         }
     }
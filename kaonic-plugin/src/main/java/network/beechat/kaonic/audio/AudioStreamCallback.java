@@ -1,5 +1,12 @@
 package network.beechat.kaonic.audio;
 
+import androidx.annotation.NonNull;
+
 public interface AudioStreamCallback {
-    void onResult(int size, byte[] buffer);
-}
\ No newline at end of file
+    /**
+     * Recorded audio frame, the callback owns the frame and must release it
+     * once the data is consumed (possibly on another thread).
+     * Callers of the former byte[] variant can wrap it in {@link ByteArrayAudioStreamCallback}
+     */
+    void onResult(@NonNull AudioFrame frame);
+}
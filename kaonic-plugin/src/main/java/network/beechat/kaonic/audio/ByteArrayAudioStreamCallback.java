@@ -0,0 +1,33 @@
+package network.beechat.kaonic.audio;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Adapter for consumers written against the old {@code onResult(int size, byte[] buffer)}
+ * callback. Every frame is copied into a new array of the recorded size, which the listener
+ * may keep, and the frame goes straight back to its pool.
+ * Costs one allocation per frame, use {@link AudioStreamCallback} directly where it matters.
+ */
+public final class ByteArrayAudioStreamCallback implements AudioStreamCallback {
+    public interface Listener {
+        void onResult(int size, @NonNull byte[] buffer);
+    }
+
+    private final Listener listener;
+
+    public ByteArrayAudioStreamCallback(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onResult(@NonNull AudioFrame frame) {
+        final byte[] data;
+        try {
+            data = new byte[frame.getLength()];
+            frame.buffer.get(data);
+        } finally {
+            frame.release();
+        }
+        listener.onResult(data.length, data);
+    }
+}
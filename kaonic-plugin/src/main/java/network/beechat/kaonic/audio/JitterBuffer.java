@@ -0,0 +1,199 @@
+package network.beechat.kaonic.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive playout buffer for incoming call audio (PCM 16 bit little-endian).
+ * <p>
+ * Network thread calls {@link #put(byte[], int)}: inter-arrival jitter is estimated
+ * (RFC 3550 style) and the target depth follows it. Frames arriving while the buffer
+ * is already far above the target are late - they are dropped to keep latency bounded.
+ * <p>
+ * Player thread calls {@link #read(byte[], int, long)}: playback starts once the target
+ * depth is buffered. When the buffer runs dry the last played block is repeated with a
+ * fading gain (packet loss concealment), after {@link #MAX_CONCEALED_BLOCKS} blocks the
+ * buffer goes quiet and waits for the target depth again.
+ * <p>
+ * {@link #reset()} may be called from any thread, each side drops its own state
+ * the next time it enters put or read so the ring keeps one writer and one reader.
+ */
+public class JitterBuffer {
+    public static final int MAX_CONCEALED_BLOCKS = 6;
+
+    private static final int MIN_TARGET_MS = 40;
+    private static final int JITTER_FACTOR = 3;
+
+    private final SpscRingBuffer ringBuffer;
+    private final int bytesPerSecond;
+    private final int minTargetBytes;
+    private final int maxTargetBytes;
+
+    /// bumped by reset, each side compares it with the generation it last saw
+    private final AtomicLong resetGeneration = new AtomicLong();
+
+    /// network thread state
+    private long putGeneration = 0;
+    private long lastArrivalNanos = 0;
+    private long lastFrameNanos = 0;
+    private double jitterNanos = 0;
+
+    /// player thread state
+    private long readGeneration = 0;
+    private boolean primed = false;
+    private int concealedBlocks = 0;
+    private byte[] lastBlock = new byte[0];
+    private int lastBlockLength = 0;
+
+    private volatile int targetBytes;
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong concealed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public JitterBuffer(int capacity, int sampleRate) {
+        this.ringBuffer = new SpscRingBuffer(capacity);
+        this.bytesPerSecond = sampleRate * 2;
+        this.minTargetBytes = alignToSample(bytesPerSecond * MIN_TARGET_MS / 1000);
+        this.maxTargetBytes = alignToSample(ringBuffer.capacity() / 2);
+        this.targetBytes = minTargetBytes;
+    }
+
+    /**
+     * Queue received frame, called from the network thread
+     */
+    public void put(byte[] data, int length) {
+        if (length <= 0) return;
+
+        final long generation = resetGeneration.get();
+        if (putGeneration != generation) {
+            putGeneration = generation;
+            lastArrivalNanos = 0;
+            lastFrameNanos = 0;
+            jitterNanos = 0;
+        }
+
+        final long now = System.nanoTime();
+        final long frameNanos = length * 1_000_000_000L / bytesPerSecond;
+
+        if (lastArrivalNanos != 0) {
+            final long deviation = Math.abs((now - lastArrivalNanos) - lastFrameNanos);
+            jitterNanos += (deviation - jitterNanos) / 16.0;
+        }
+        lastArrivalNanos = now;
+        lastFrameNanos = frameNanos;
+
+        final long jitterBytes = (long) (jitterNanos * JITTER_FACTOR * bytesPerSecond / 1_000_000_000L);
+        final int target = (int) Math.min(maxTargetBytes,
+                Math.max(minTargetBytes, alignToSample((int) jitterBytes + length)));
+        targetBytes = target;
+
+        if (ringBuffer.available() > target * 2) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        ringBuffer.write(data, 0, length);
+    }
+
+    /**
+     * Fill data with the next playback block, called from the player thread.
+     * Parks up to waitNanos when nothing can be played yet
+     *
+     * @return number of bytes to play, 0 if nothing should be played
+     */
+    public int read(byte[] data, int length, long waitNanos) {
+        final long generation = resetGeneration.get();
+        if (readGeneration != generation) {
+            readGeneration = generation;
+            ringBuffer.clear();
+            primed = false;
+            concealedBlocks = 0;
+            lastBlockLength = 0;
+        }
+
+        if (!primed) {
+            if (!ringBuffer.awaitData(targetBytes, waitNanos)) return 0;
+            primed = true;
+        }
+
+        final long blockNanos = length * 1_000_000_000L / bytesPerSecond;
+        if (ringBuffer.awaitData(length, blockNanos)) {
+            final int read = ringBuffer.read(data, 0, length);
+            rememberBlock(data, read);
+            concealedBlocks = 0;
+            return read;
+        }
+
+        if (concealedBlocks == 0) {
+            underruns.incrementAndGet();
+        }
+
+        if (concealedBlocks >= MAX_CONCEALED_BLOCKS || lastBlockLength == 0) {
+            primed = false;
+            return 0;
+        }
+
+        concealedBlocks++;
+        concealed.incrementAndGet();
+        return conceal(data, length);
+    }
+
+    /**
+     * Drop buffered audio and adaptation state before a new call. Statistics are cleared
+     * right away, the network and player threads drop their state on their next call
+     */
+    public void reset() {
+        targetBytes = minTargetBytes;
+        underruns.set(0);
+        concealed.set(0);
+        dropped.set(0);
+        resetGeneration.incrementAndGet();
+    }
+
+    /// unpark the player thread waiting in read
+    public void wakeUp() {
+        ringBuffer.wakeUp();
+    }
+
+    public JitterBufferStats getStats() {
+        return new JitterBufferStats(
+                toMillis(ringBuffer.available()),
+                toMillis(targetBytes),
+                underruns.get(),
+                concealed.get(),
+                dropped.get());
+    }
+
+    private void rememberBlock(byte[] data, int length) {
+        if (lastBlock.length < length) {
+            lastBlock = new byte[length];
+        }
+        System.arraycopy(data, 0, lastBlock, 0, length);
+        lastBlockLength = length;
+    }
+
+    /// repeat the last block with a linear fade towards silence
+    private int conceal(byte[] data, int length) {
+        final int count = Math.min(length, lastBlockLength) & ~1;
+        final int gainFrom = MAX_CONCEALED_BLOCKS + 1 - concealedBlocks;
+        final int gainTo = gainFrom - 1;
+        final int samples = count / 2;
+
+        for (int i = 0; i < samples; i++) {
+            final int sample = (short) ((lastBlock[2 * i] & 0xFF) | (lastBlock[2 * i + 1] << 8));
+            final int gain = gainFrom * samples - (gainFrom - gainTo) * i;
+            final int faded = sample * gain / (samples * (MAX_CONCEALED_BLOCKS + 1));
+            data[2 * i] = (byte) (faded & 0xFF);
+            data[2 * i + 1] = (byte) ((faded >> 8) & 0xFF);
+        }
+
+        return count;
+    }
+
+    private int toMillis(int bytes) {
+        return (int) (bytes * 1000L / bytesPerSecond);
+    }
+
+    private static int alignToSample(int bytes) {
+        return bytes & ~1;
+    }
+}
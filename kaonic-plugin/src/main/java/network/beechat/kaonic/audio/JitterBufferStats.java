@@ -0,0 +1,26 @@
+package network.beechat.kaonic.audio;
+
+import androidx.annotation.Keep;
+
+@Keep
+public class JitterBufferStats {
+    /// audio currently buffered for playback
+    public final int depthMs;
+    /// depth the buffer adapts to from measured jitter
+    public final int targetDepthMs;
+    /// times playback ran out of data
+    public final long underruns;
+    /// blocks synthesized by packet loss concealment
+    public final long concealedBlocks;
+    /// frames dropped because they arrived too late
+    public final long droppedFrames;
+
+    public JitterBufferStats(int depthMs, int targetDepthMs, long underruns,
+                             long concealedBlocks, long droppedFrames) {
+        this.depthMs = depthMs;
+        this.targetDepthMs = targetDepthMs;
+        this.underruns = underruns;
+        this.concealedBlocks = concealedBlocks;
+        this.droppedFrames = droppedFrames;
+    }
+}
@@ -0,0 +1,157 @@
+package network.beechat.kaonic.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free byte ring for exactly one writer thread and one reader thread.
+ * The writer never blocks and overwrites the oldest data when the reader falls behind.
+ * <p>
+ * Indices grow monotonically and are masked into the power-of-two storage.
+ * The writer publishes the written range ({@code writeIndex}) after copying, so a reader
+ * that keeps up always sees complete data. A reader lapped by the writer retries when a
+ * finished write overwrote the range it copied, but a write still in progress can't be
+ * detected without a store fence (not available at this API level): such a read may
+ * return a mix of old and new bytes. For call audio that is one glitched block in a
+ * stream that already dropped data.
+ * <p>
+ * The reader may park in {@link #awaitData(int, long)} instead of polling,
+ * every write wakes it up.
+ */
+public class SpscRingBuffer {
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+
+    /// end of the data visible to the reader
+    private final AtomicLong writeIndex = new AtomicLong();
+    /// start of the data not consumed yet
+    private final AtomicLong readIndex = new AtomicLong();
+    /// reader thread parked in awaitData
+    private volatile Thread waiter = null;
+
+    /**
+     * @param size minimal capacity in bytes, rounded up to the next power of two
+     */
+    public SpscRingBuffer(int size) {
+        if (size <= 0 || size > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring size " + size);
+        }
+        capacity = size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        mask = capacity - 1;
+        buffer = new byte[capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Must only be called from the writer thread
+     */
+    public void write(byte[] data, int offset, int length) {
+        if (length <= 0) return;
+
+        // only the newest bytes can survive in the ring
+        if (length > capacity) {
+            offset += length - capacity;
+            length = capacity;
+        }
+
+        final long start = writeIndex.get();
+        final long end = start + length;
+
+        final int position = (int) (start & mask);
+        final int first = Math.min(length, capacity - position);
+        System.arraycopy(data, offset, buffer, position, first);
+        if (first < length) {
+            System.arraycopy(data, offset + first, buffer, 0, length - first);
+        }
+
+        // volatile store: the copied bytes are visible to the reader that sees the new index,
+        // and it is published before checking for a parked reader
+        writeIndex.set(end);
+        wakeUp();
+    }
+
+    /**
+     * Must only be called from the reader thread
+     *
+     * @return number of bytes copied into data
+     */
+    public int read(byte[] data, int offset, int length) {
+        while (true) {
+            final long end = writeIndex.get();
+            long start = readIndex.get();
+
+            if (end - start > capacity) {
+                // Overwritten old data
+                start = end - capacity;
+            }
+
+            final int count = (int) Math.min(length, end - start);
+            if (count <= 0) return 0;
+
+            final int position = (int) (start & mask);
+            final int first = Math.min(count, capacity - position);
+            System.arraycopy(buffer, position, data, offset, first);
+            if (first < count) {
+                System.arraycopy(buffer, 0, data, offset + first, count - first);
+            }
+
+            readIndex.set(start + count);
+
+            if (writeIndex.get() - start <= capacity) {
+                return count;
+            }
+            // a finished write overwrote part of the copied range, retry with newer data
+        }
+    }
+
+    /**
+     * Drop everything written so far.
+     * Must only be called from the reader thread
+     */
+    public void clear() {
+        readIndex.set(writeIndex.get());
+    }
+
+    /// number of bytes available for reading
+    public int available() {
+        final long available = writeIndex.get() - readIndex.get();
+        return (int) Math.min(available, capacity);
+    }
+
+    public boolean hasSufficientData(int requiredSize) {
+        return available() >= requiredSize;
+    }
+
+    /**
+     * Parks the reader thread until the next write, {@link #wakeUp()} or timeout,
+     * unless requiredSize bytes are already available.
+     * Must only be called from the reader thread
+     *
+     * @return true if requiredSize bytes are available
+     */
+    public boolean awaitData(int requiredSize, long timeoutNanos) {
+        if (hasSufficientData(requiredSize)) return true;
+
+        // the volatile store pairs with the writer: it either sees the waiter or we see its data
+        waiter = Thread.currentThread();
+        try {
+            if (hasSufficientData(requiredSize)) return true;
+            LockSupport.parkNanos(this, timeoutNanos);
+            return hasSufficientData(requiredSize);
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /// unpark the reader waiting for data, if any
+    public void wakeUp() {
+        final Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
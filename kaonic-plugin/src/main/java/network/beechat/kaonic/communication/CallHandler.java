@@ -8,6 +8,7 @@ import java.util.UUID;
 
 import network.beechat.kaonic.audio.AudioService;
 import network.beechat.kaonic.audio.AudioStreamCallback;
+import network.beechat.kaonic.audio.JitterBufferStats;
 import network.beechat.kaonic.models.KaonicEvent;
 import network.beechat.kaonic.models.KaonicEventData;
 import network.beechat.kaonic.models.KaonicEventType;
@@ -59,6 +60,10 @@ public class CallHandler {
         audioService.play(bytes, size);
     }
 
+    JitterBufferStats getPlaybackStats() {
+        return audioService.getPlaybackStats();
+    }
+
     private void onCallInvoke(String address, String callId) {
         activeCallId = callId;
         activeAddress = address;
@@ -0,0 +1,80 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate stage between the read file and the sent chunks.
+ * The stream keeps its dictionary across chunks and is flushed after every read block,
+ * so the receiver inflates chunks as soon as they are in order. Chunks are filled up
+ * to the requested size with compressed data.
+ */
+class ChunkDeflater {
+    interface Source {
+        /// next block of the file, empty at the end
+        @NonNull
+        ByteBuffer read() throws IOException;
+    }
+
+    private final Source source;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+    private ByteBuffer chunk = ByteBuffer.allocateDirect(0);
+    private boolean inputEnded = false;
+
+    ChunkDeflater(@NonNull Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Next compressed chunk, the direct buffer is reused by the next call
+     *
+     * @return at most chunkSize bytes, empty when the stream is finished
+     */
+    @NonNull
+    ByteBuffer nextChunk(int chunkSize) throws IOException {
+        if (output.length < chunkSize) {
+            output = new byte[chunkSize];
+            chunk = ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        int length = 0;
+        while (length < chunkSize && !deflater.finished()) {
+            if (deflater.needsInput() && !inputEnded) {
+                final ByteBuffer raw = source.read();
+                if (raw.hasRemaining()) {
+                    final int count = raw.remaining();
+                    if (input.length < count) {
+                        input = new byte[count];
+                    }
+                    raw.get(input, 0, count);
+                    deflater.setInput(input, 0, count);
+                } else {
+                    deflater.finish();
+                    inputEnded = true;
+                }
+            }
+
+            length += deflater.deflate(output, length, chunkSize - length,
+                    inputEnded ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        }
+
+        chunk.clear();
+        chunk.put(output, 0, length);
+        chunk.flip();
+        return chunk;
+    }
+
+    /// true when the whole compressed stream was handed out
+    boolean isFinished() {
+        return deflater.finished();
+    }
+
+    void close() {
+        deflater.end();
+    }
+}
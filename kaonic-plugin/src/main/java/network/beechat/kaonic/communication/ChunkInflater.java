@@ -0,0 +1,95 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a compressed transfer. Chunks are placed by their offset in the compressed
+ * stream and may come in any order and repeat, chunks ahead of the stream position wait
+ * in memory until the gap before them is filled, that is at most the sender window.
+ * Inflated data comes out in file order.
+ */
+class ChunkInflater {
+    private static final int INFLATE_BUFFER_SIZE = 16 * 1024;
+
+    interface Output {
+        void write(long offset, @NonNull byte[] data) throws IOException;
+    }
+
+    private final Inflater inflater = new Inflater(false);
+    private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+    private final byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+    private long streamPosition;
+    private long outputPosition;
+
+    /**
+     * @param start file offset the transfer starts from, the compressed stream is numbered
+     *              from the same value
+     */
+    ChunkInflater(long start) {
+        this.streamPosition = start;
+        this.outputPosition = start;
+    }
+
+    /**
+     * @param offset position of the chunk in the compressed stream, negative to append
+     */
+    void add(long offset, @NonNull byte[] data, @NonNull Output output) throws IOException {
+        if (offset < 0) {
+            offset = streamPosition;
+        }
+        if (offset + data.length <= streamPosition) return;
+
+        if (offset > streamPosition) {
+            pending.put(offset, data);
+            return;
+        }
+
+        inflate(offset, data, output);
+
+        Map.Entry<Long, byte[]> next;
+        while ((next = pending.firstEntry()) != null && next.getKey() <= streamPosition) {
+            pending.remove(next.getKey());
+            if (next.getKey() + next.getValue().length > streamPosition) {
+                inflate(next.getKey(), next.getValue(), output);
+            }
+        }
+    }
+
+    /// true when the end of the compressed stream was inflated
+    boolean isFinished() {
+        return inflater.finished();
+    }
+
+    void close() {
+        pending.clear();
+        inflater.end();
+    }
+
+    private void inflate(long offset, byte[] data, Output output) throws IOException {
+        final int skip = (int) (streamPosition - offset);
+        inflater.setInput(data, skip, data.length - skip);
+        streamPosition = offset + data.length;
+
+        try {
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) throw new ZipException("Unexpected dictionary");
+                    break;
+                }
+                output.write(outputPosition, Arrays.copyOf(buffer, count));
+                outputPosition += count;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+}
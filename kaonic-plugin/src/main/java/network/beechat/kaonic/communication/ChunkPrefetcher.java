@@ -0,0 +1,173 @@
+package network.beechat.kaonic.communication;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the file to send ahead of the native chunk requests.
+ * A background task keeps up to {@link #BLOCK_COUNT} blocks filled from a fixed set of
+ * direct buffers, so a chunk request is answered from memory instead of waiting for
+ * the disk or content provider. A {@link FileChannel} is read with positional reads,
+ * other sources are read sequentially.
+ * <p>
+ * {@link #nextChunk(int)} must be called from one thread at a time.
+ */
+class ChunkPrefetcher {
+    final private String TAG = "KaonicChunkPrefetcher";
+
+    static final int BLOCK_SIZE = 8 * 1024;
+    static final int BLOCK_COUNT = 4;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "KaonicPrefetch-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /// marks the end of data in the ready queue
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel channel;
+    private final @Nullable FileChannel fileChannel;
+    private final BlockingQueue<ByteBuffer> freeBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT);
+    private final BlockingQueue<ByteBuffer> readyBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT + 1);
+    private ByteBuffer chunk = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    private ByteBuffer currentBlock = null;
+    private boolean endOfFile = false;
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+    private Future<?> task = null;
+
+    /**
+     * @param channel file to read, positional reads are used if it is a {@link FileChannel}
+     */
+    ChunkPrefetcher(@NonNull ReadableByteChannel channel) {
+        this.channel = channel;
+        this.fileChannel = channel instanceof FileChannel ? (FileChannel) channel : null;
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            freeBlocks.add(ByteBuffer.allocateDirect(BLOCK_SIZE));
+        }
+    }
+
+    /**
+     * Start reading from position, the channel must already be at position
+     * if it is not a {@link FileChannel}
+     */
+    void start(long position) {
+        task = executor.submit(() -> readAhead(position));
+    }
+
+    /**
+     * Next chunk of the file, waits only if the prefetcher is behind.
+     * The returned buffer is reused by the next call
+     *
+     * @return chunk with at most chunkSize bytes, empty at the end of the file
+     */
+    @NonNull
+    ByteBuffer nextChunk(int chunkSize) throws IOException {
+        if (chunk.capacity() < chunkSize) {
+            chunk = ByteBuffer.allocateDirect(chunkSize);
+        }
+        chunk.clear();
+        chunk.limit(chunkSize);
+
+        while (chunk.hasRemaining() && !endOfFile) {
+            if (currentBlock == null || !currentBlock.hasRemaining()) {
+                if (currentBlock != null) {
+                    freeBlocks.offer(currentBlock);
+                }
+                currentBlock = takeReadyBlock();
+                if (currentBlock == END) {
+                    currentBlock = null;
+                    endOfFile = true;
+                    if (error != null) throw error;
+                    break;
+                }
+            }
+
+            final int count = Math.min(chunk.remaining(), currentBlock.remaining());
+            final int limit = currentBlock.limit();
+            currentBlock.limit(currentBlock.position() + count);
+            chunk.put(currentBlock);
+            currentBlock.limit(limit);
+        }
+
+        chunk.flip();
+        return chunk;
+    }
+
+    /// true when the whole file was handed out
+    boolean isEndOfFile() {
+        return endOfFile;
+    }
+
+    void close() {
+        closed = true;
+        if (task != null) {
+            task.cancel(true);
+        }
+        readyBlocks.clear();
+        readyBlocks.offer(END);
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private ByteBuffer takeReadyBlock() throws IOException {
+        try {
+            return readyBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file data");
+        }
+    }
+
+    private void readAhead(long position) {
+        try {
+            while (!closed) {
+                final ByteBuffer block = freeBlocks.take();
+                block.clear();
+
+                int read = 0;
+                while (block.hasRemaining()) {
+                    read = fileChannel != null ? fileChannel.read(block, position + block.position())
+                            : channel.read(block);
+                    if (read < 0) break;
+                }
+
+                block.flip();
+                position += block.remaining();
+                if (block.hasRemaining()) {
+                    readyBlocks.put(block);
+                }
+                if (read < 0) break;
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (IOException e) {
+            if (!closed) {
+                Log.e(TAG, e.toString());
+                error = e;
+            }
+        }
+
+        if (!closed) {
+            readyBlocks.offer(END);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package network.beechat.kaonic.communication;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Byte ranges of a file that are already present, kept as merged [start, end) ranges.
+ * Chunks may be added in any order and more than once.
+ */
+class CoverageMap {
+    /// range start -> range end, ranges never touch or overlap
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long coveredBytes = 0;
+
+    /**
+     * Mark [start, end) as present
+     *
+     * @return number of bytes that were not covered before
+     */
+    synchronized long add(long start, long end) {
+        if (end <= start) return 0;
+
+        long added = end - start;
+
+        // merge with a range starting before and reaching start
+        final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            if (before.getValue() >= end) return 0;
+            added -= before.getValue() - start;
+            start = before.getKey();
+            ranges.remove(before.getKey());
+        }
+
+        // swallow ranges starting inside the new one
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            final long overlapEnd = Math.min(next.getValue(), end);
+            added -= overlapEnd - next.getKey();
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+        coveredBytes += added;
+        return added;
+    }
+
+    synchronized long getCoveredBytes() {
+        return coveredBytes;
+    }
+
+    /// length of the gapless range at the start of the file
+    synchronized long getPrefixLength() {
+        final Long end = ranges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    /// true if [0, size) is covered completely
+    synchronized boolean isComplete(long size) {
+        return getPrefixLength() >= size;
+    }
+}
@@ -0,0 +1,69 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compression of file transfers announced in the file start
+ */
+public final class FileCompression {
+    public static final String NONE = "";
+    /// Deflate stream, flushed after every read block so chunks inflate as they arrive in order
+    public static final String DEFLATE = "deflate";
+
+    /// formats that are compressed already, deflate only costs time on them
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip",
+            "application/gzip",
+            "application/x-gzip",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/vnd.rar",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/zstd",
+            "application/x-compress",
+            "application/java-archive",
+            "application/vnd.android.package-archive",
+            "application/epub+zip",
+            "application/pdf",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.oasis.opendocument.text",
+            "application/vnd.oasis.opendocument.spreadsheet",
+            "font/woff",
+            "font/woff2"));
+
+    /// media types that are worth compressing despite their top-level type
+    private static final Set<String> UNCOMPRESSED_MEDIA = new HashSet<>(Arrays.asList(
+            "image/bmp",
+            "image/x-ms-bmp",
+            "image/svg+xml",
+            "image/tiff",
+            "audio/wav",
+            "audio/x-wav",
+            "audio/vnd.wave"));
+
+    private FileCompression() {
+    }
+
+    /// true unless the MIME type is a compressed format, unknown types are compressed
+    public static boolean isCompressible(@Nullable String mimeType) {
+        if (mimeType == null) return true;
+
+        final String type = mimeType.toLowerCase(Locale.ROOT);
+        if (UNCOMPRESSED_MEDIA.contains(type)) return true;
+        if (type.startsWith("image/") || type.startsWith("video/") || type.startsWith("audio/")) return false;
+
+        return !COMPRESSED_TYPES.contains(type);
+    }
+
+    public static boolean isSupported(@Nullable String compression) {
+        return compression == null || NONE.equals(compression) || DEFLATE.equals(compression);
+    }
+}
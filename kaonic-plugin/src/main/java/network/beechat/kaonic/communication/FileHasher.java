@@ -0,0 +1,111 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-256 of a file computed from the chunks passing through, the file is never read
+ * back. Chunks ahead of the hashed position are kept in memory until the gap before
+ * them is filled, that is at most the sender window.
+ */
+class FileHasher {
+    private static final int PREFIX_READ_SIZE = 64 * 1024;
+
+    private final MessageDigest digest;
+    private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+    private long hashedLength = 0;
+
+    FileHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /// hash the next bytes of the file
+    void update(@NonNull ByteBuffer data) {
+        hashedLength += data.remaining();
+        digest.update(data);
+    }
+
+    /// hash a chunk placed at offset, chunks may come in any order and repeat
+    void update(long offset, @NonNull byte[] data) {
+        if (offset + data.length <= hashedLength) return;
+
+        if (offset > hashedLength) {
+            pending.put(offset, data);
+            return;
+        }
+
+        updateFrom(offset, data);
+
+        Map.Entry<Long, byte[]> next;
+        while ((next = pending.firstEntry()) != null && next.getKey() <= hashedLength) {
+            pending.remove(next.getKey());
+            if (next.getKey() + next.getValue().length > hashedLength) {
+                updateFrom(next.getKey(), next.getValue());
+            }
+        }
+    }
+
+    /**
+     * Hash the file start that was transferred before, used once when a transfer is resumed
+     */
+    void updatePrefix(@NonNull FileChannel channel, long length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(PREFIX_READ_SIZE);
+        while (hashedLength < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - hashedLength));
+            if (channel.read(buffer, hashedLength) < 0) {
+                throw new EOFException("File is shorter than " + length);
+            }
+            buffer.flip();
+            update(buffer);
+        }
+    }
+
+    /// same as {@link #updatePrefix(FileChannel, long)} for sources without positional reads
+    void updatePrefix(@NonNull InputStream inputStream, long length) throws IOException {
+        final byte[] buffer = new byte[PREFIX_READ_SIZE];
+        while (hashedLength < length) {
+            final int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length - hashedLength));
+            if (read < 0) {
+                throw new EOFException("File is shorter than " + length);
+            }
+            digest.update(buffer, 0, read);
+            hashedLength += read;
+        }
+    }
+
+    long getHashedLength() {
+        return hashedLength;
+    }
+
+    /// hex SHA-256 of the hashed bytes, the hasher can't be used afterwards
+    @NonNull
+    String finish() {
+        final byte[] hash = digest.digest();
+        final StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private void updateFrom(long offset, byte[] data) {
+        final int skip = (int) (hashedLength - offset);
+        digest.update(data, skip, data.length - skip);
+        hashedLength = offset + data.length;
+    }
+}
@@ -6,38 +6,81 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
+import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import network.beechat.kaonic.impl.KaonicLib;
 
 public class FileManager {
+    final private String TAG = "KaonicFileManager";
+    private static final ByteBuffer EMPTY_CHUNK = ByteBuffer.allocateDirect(0);
+
     protected Uri fileUri;
-    protected OutputStream outputStream;
     protected InputStream inputStream;
+    protected FileChannel fileChannel;
+    protected ChunkPrefetcher prefetcher;
     protected boolean initialized = false;
-    protected int fileSize = 0;
-    protected int processedBytes = 0;
+    protected long fileSize = 0;
+    protected long processedBytes = 0;
     protected String fileName;
     protected String fileId;
     protected String chatId;
     protected String address;
+    protected int session = KaonicLib.INVALID_SESSION;
+    protected long lastActivity = SystemClock.elapsedRealtime();
+    protected int writeBufferSize = FileWriteBehind.DEFAULT_BUFFER_SIZE;
+    protected long writeFlushIntervalMs = FileWriteBehind.DEFAULT_FLUSH_INTERVAL_MS;
+    protected FileWriteBehind writeBehind;
+    protected CoverageMap coverage;
+    protected FileHasher hasher = new FileHasher();
+    protected String sha256;
+    protected String expectedSha256;
+    protected boolean checksumExpected = false;
+    protected long startTime = SystemClock.elapsedRealtime();
+    protected long startOffset = 0;
+    protected volatile int chunkSize = 0;
+    protected volatile int retransmits = 0;
+    protected volatile int ackRttMs = 0;
+    protected String mimeType;
+    protected String compression = FileCompression.NONE;
+    protected ChunkDeflater deflater;
+    protected ChunkInflater inflater;
+    protected long compressedBytes = 0;
+
+    /**
+     * Buffer received chunks and write them on a background thread,
+     * applied by the next startWrite/resumeWrite
+     *
+     * @param bufferSize      bytes collected before a write, 0 writes every chunk directly
+     * @param flushIntervalMs max time buffered data waits for a write
+     */
+    public void setWriteBehind(int bufferSize, long flushIntervalMs) {
+        this.writeBufferSize = bufferSize;
+        this.writeFlushIntervalMs = flushIntervalMs;
+    }
 
-    public void startWrite(ContentResolver resolver, String fileName, int fileSize, String fileId, String chatId, String address) throws IOException {
+    public void startWrite(ContentResolver resolver, String fileName, long fileSize, String fileId, String chatId, String address) throws IOException {
         this.fileSize = fileSize;
         this.fileName = fileName;
         this.chatId = chatId;
         this.fileId = fileId;
         this.address = address;
         close();
+        resetHash();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             ContentValues contentValues = new ContentValues();
             contentValues.put(MediaStore.Downloads.DISPLAY_NAME, fileName);
@@ -46,8 +89,7 @@ public class FileManager {
 
             fileUri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, contentValues);
             if (fileUri != null) {
-                outputStream = resolver.openOutputStream(fileUri, "wa");
-                initialized = true;
+                startWriting(openWriteChannel(resolver), 0);
             }
         } else {
             File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
@@ -55,31 +97,97 @@ public class FileManager {
             File file = new File(path, fileName);
             if(!file.exists()) file.createNewFile();
             fileUri = Uri.fromFile(file);
-            outputStream = new FileOutputStream(file, true);
-            initialized = true;
+            startWriting(openWriteChannel(resolver), 0);
         }
 
     }
 
-    /// return true if the file write operation if finished
-    public boolean writeChunk(byte[] chunk) {
-        if (!initialized || outputStream == null) return true;
+    /**
+     * Continue writing a partially received file, everything after offset is discarded
+     */
+    public void resumeWrite(ContentResolver resolver, Uri fileUri, String fileName, long fileSize, long offset,
+                            String fileId, String chatId, String address) throws IOException {
+        close();
+        resetHash();
+        this.fileSize = fileSize;
+        this.fileName = fileName;
+        this.chatId = chatId;
+        this.fileId = fileId;
+        this.address = address;
+        this.fileUri = fileUri;
 
-        try {
-            outputStream.write(chunk);
-            outputStream.flush(); // optional: call less often for better performance
-            processedBytes = processedBytes + chunk.length;
-            return processedBytes >= fileSize;
-        } catch (IOException e) {
-            e.printStackTrace();
+        // the write channel of a descriptor can't read, the received part is read through its own
+        final ParcelFileDescriptor prefixDescriptor = resolver.openFileDescriptor(fileUri, "r");
+        if (prefixDescriptor == null) throw new FileNotFoundException(fileUri.toString());
+        try (FileChannel prefixChannel = new ParcelFileDescriptor.AutoCloseInputStream(prefixDescriptor).getChannel()) {
+            resumeWrite(openWriteChannel(resolver), prefixChannel, offset);
         }
+    }
 
-        return false;
+    /**
+     * Continue writing on an open file, everything after offset is discarded
+     *
+     * @param prefixChannel readable channel of the same file, the write channel may be write only
+     */
+    void resumeWrite(FileChannel writeChannel, FileChannel prefixChannel, long offset) throws IOException {
+        startWriting(writeChannel, offset);
+        // the file hash state is not persisted, the received part is read once to restore it
+        hasher.updatePrefix(prefixChannel, offset);
+        startOffset = offset;
+        lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Place the chunk at its offset, chunks may come in any order and repeat
+     *
+     * @param offset position of the chunk in the file, negative to append after the received data
+     * @return true if the whole file is received
+     * @throws IOException when the chunk or an earlier buffered one can't be written
+     */
+    public boolean writeChunk(long offset, byte[] chunk) throws IOException {
+        if (!initialized || fileChannel == null) return true;
+
+        lastActivity = SystemClock.elapsedRealtime();
+        if (inflater != null) {
+            // offset is a position in the compressed stream, data is placed once inflated
+            inflater.add(offset, chunk, this::placeChunk);
+        } else {
+            placeChunk(offset < 0 ? coverage.getPrefixLength() : offset, chunk);
+        }
+        return coverage.isComplete(fileSize);
+    }
+
+    /**
+     * Wait until the buffered chunks reach the file
+     *
+     * @throws IOException when a buffered write failed
+     */
+    public void flushWrite() throws IOException {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    private void placeChunk(long offset, byte[] chunk) throws IOException {
+        // retransmitted chunk that is already written
+        if (coverage.add(offset, offset + chunk.length) == 0) return;
+
+        hasher.update(offset, chunk);
+        if (writeBehind != null) {
+            writeBehind.write(offset, chunk);
+        } else {
+            final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, offset + buffer.position());
+            }
+        }
+        processedBytes = coverage.getCoveredBytes();
     }
 
 
     public boolean startSend(ContentResolver resolver, String fileId, String chatId, String address, String fileUriString) throws FileNotFoundException {
         close();
+        resetHash();
         this.chatId = chatId;
         this.fileId = fileId;
         this.address = address;
@@ -90,66 +198,282 @@ public class FileManager {
             int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
             int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
             if (cursor.moveToFirst() && sizeIndex != -1 && nameIndex != -1) {
-                fileSize = (int) cursor.getLong(sizeIndex);
+                fileSize = cursor.getLong(sizeIndex);
                 fileName = cursor.getString(nameIndex);
             } else {
                 return false;
             }
         }
 
-        inputStream = resolver.openInputStream(this.fileUri);
-        initialized = true;
+        // positional reads when the provider gives a real file, stream otherwise
+        try {
+            ParcelFileDescriptor descriptor = resolver.openFileDescriptor(this.fileUri, "r");
+            if (descriptor != null) {
+                // pipes and sockets have no size and can't be read at an offset
+                if (descriptor.getStatSize() >= 0) {
+                    fileChannel = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+                } else {
+                    descriptor.close();
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            fileChannel = null;
+        }
+        if (fileChannel == null) {
+            inputStream = resolver.openInputStream(this.fileUri);
+        }
+        mimeType = resolver.getType(this.fileUri);
+        if (mimeType == null && fileName != null && fileName.lastIndexOf('.') >= 0) {
+            mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                    fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+        }
+        initialized = fileChannel != null || inputStream != null;
+
+        return initialized;
+    }
+
+    /**
+     * Start reading the file ahead of chunk requests, call after {@link #skipTo(long)}.
+     * Otherwise started by the first {@link #nextChunk(int)}
+     */
+    public void startPrefetch() {
+        if (!initialized || prefetcher != null) return;
+
+        prefetcher = new ChunkPrefetcher(fileChannel != null ? fileChannel : Channels.newChannel(inputStream));
+        prefetcher.start(processedBytes);
+    }
 
-        return true;
+    /**
+     * Next chunk of the file, normally already read by the prefetcher.
+     * The buffer is direct and reused by the next call
+     */
+    public ByteBuffer nextChunk(int chunkSize) throws IOException {
+        if (!initialized || isFinished()) return EMPTY_CHUNK;
+
+        startPrefetch();
+        if (isCompressed()) {
+            if (deflater == null) {
+                deflater = new ChunkDeflater(() -> readBlock(ChunkPrefetcher.BLOCK_SIZE));
+            }
+            final ByteBuffer chunk = deflater.nextChunk(chunkSize);
+            compressedBytes += chunk.remaining();
+            return chunk;
+        }
+
+        return readBlock(chunkSize);
+    }
+
+    /// next part of the file as it is, counted and hashed
+    private ByteBuffer readBlock(int size) throws IOException {
+        final ByteBuffer block = prefetcher.nextChunk(size);
+        processedBytes += block.remaining();
+        hasher.update(block.duplicate());
+        return block;
     }
 
+    /**
+     * Skip the beginning of the file already delivered to the receiver
+     */
+    public void skipTo(long offset) throws IOException {
+        if (!initialized || prefetcher != null) return;
 
-    /// return true when all chunks are sent the file write operation if finished
-    public byte[] nextChunk(int chunkSize) throws IOException {
-        if (!initialized || inputStream == null || isFinished()) return new byte[]{};
+        // the skipped part is read once to continue the file hash
+        if (inputStream != null) {
+            hasher.updatePrefix(inputStream, offset);
+        } else {
+            hasher.updatePrefix(fileChannel, offset);
+        }
+        processedBytes = offset;
+        startOffset = offset;
+        startTime = SystemClock.elapsedRealtime();
+    }
 
-        byte[] chunk = new byte[chunkSize];
+    /// write only channel of the received file for positional writes
+    private FileChannel openWriteChannel(ContentResolver resolver) throws IOException {
+        final ParcelFileDescriptor descriptor = resolver.openFileDescriptor(fileUri, "rw");
+        if (descriptor == null) throw new FileNotFoundException(fileUri.toString());
 
-        final int readCount = inputStream.read(chunk, 0, chunkSize);
-        processedBytes += readCount;
+        return new ParcelFileDescriptor.AutoCloseOutputStream(descriptor).getChannel();
+    }
 
-        if (readCount < chunkSize) {
-            chunk = Arrays.copyOf(chunk, readCount);
+    /**
+     * Write the received file through channel, the first offset bytes are already present.
+     * "rw" keeps the old content, a file left from an earlier transfer is cut at offset
+     */
+    private void startWriting(FileChannel channel, long offset) throws IOException {
+        fileChannel = channel;
+        fileChannel.truncate(offset);
+        coverage = new CoverageMap();
+        coverage.add(0, offset);
+        if (isCompressed()) {
+            inflater = new ChunkInflater(offset);
         }
+        processedBytes = offset;
+        initialized = true;
+        startWriteBehind(offset);
+    }
 
-        return chunk;
+    private void resetHash() {
+        hasher = new FileHasher();
+        sha256 = null;
+        startTime = SystemClock.elapsedRealtime();
+        startOffset = 0;
+        compressedBytes = 0;
+    }
+
+    private void startWriteBehind(long writtenPrefix) {
+        if (fileChannel != null && writeBufferSize > 0) {
+            writeBehind = new FileWriteBehind(fileChannel, writeBufferSize, writeFlushIntervalMs, writtenPrefix);
+        }
+    }
+
+    /// time since the last received chunk
+    public long getIdleMillis() {
+        return SystemClock.elapsedRealtime() - lastActivity;
     }
 
     public boolean isFinished() {
-        return processedBytes >= fileSize;
+        // the compressed stream still has buffered output when the whole file is read
+        if (isCompressed()) return deflater != null && deflater.isFinished();
+        return processedBytes >= fileSize || (prefetcher != null && prefetcher.isEndOfFile());
     }
 
     public void close() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (deflater != null) {
+            deflater.close();
+        }
+        if (inflater != null) {
+            inflater.close();
+        }
         try {
-            if (outputStream != null) {
-                outputStream.close();
+            if (writeBehind != null) {
+                Log.d(TAG, "File " + fileId + " written: " + writeBehind.getChunkCount() + " chunks in "
+                        + writeBehind.getWriteCount() + " writes");
+                // closes fileChannel after the buffered data is written
+                writeBehind.close();
             }
             if (inputStream != null) {
                 inputStream.close();
             }
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
         } catch (IOException ignored) {
         }
-        outputStream = null;
+        writeBehind = null;
+        coverage = null;
         inputStream = null;
+        fileChannel = null;
+        prefetcher = null;
+        deflater = null;
+        inflater = null;
         fileUri = null;
         initialized = false;
 
     }
 
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
-    public int getProcessedBytes() {
+    public long getProcessedBytes() {
         return processedBytes;
     }
 
+    /// average rate since this transfer attempt started
+    public long getBytesPerSecond() {
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        return elapsed > 0 ? (processedBytes - startOffset) * 1000 / elapsed : 0;
+    }
+
+    /// link state reported by the native side with the last chunk request
+    public void setLinkStats(int chunkSize, int retransmits, int ackRttMs) {
+        this.chunkSize = chunkSize;
+        this.retransmits = retransmits;
+        this.ackRttMs = ackRttMs;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getRetransmits() {
+        return retransmits;
+    }
+
+    public int getAckRttMs() {
+        return ackRttMs;
+    }
+
+    /**
+     * Compression of the transfer, {@link FileCompression#NONE} by default.
+     * Set before the first chunk is sent or before startWrite/resumeWrite
+     */
+    public void setCompression(String compression) {
+        this.compression = compression == null ? FileCompression.NONE : compression;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public boolean isCompressed() {
+        return FileCompression.DEFLATE.equals(compression);
+    }
+
+    /// bytes of the compressed stream sent so far, 0 for uncompressed transfers
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /// MIME type of the sent file, null if the provider doesn't know it
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /// true when every byte of the received file is present
+    public boolean isReceived() {
+        return coverage != null && coverage.isComplete(fileSize);
+    }
+
+    /**
+     * Hex SHA-256 of the file, available once all chunks are sent or received
+     */
+    public String getSha256() {
+        if (sha256 == null && hasher.getHashedLength() >= fileSize) {
+            sha256 = hasher.finish();
+        }
+        return sha256;
+    }
+
+    /// hash announced by the sender
+    public String getExpectedSha256() {
+        return expectedSha256;
+    }
+
+    public void setExpectedSha256(String expectedSha256) {
+        this.expectedSha256 = expectedSha256;
+    }
+
+    /// true if the sender sends the file hash after the last chunk
+    public boolean isChecksumExpected() {
+        return checksumExpected;
+    }
+
+    public void setChecksumExpected(boolean checksumExpected) {
+        this.checksumExpected = checksumExpected;
+    }
+
+    /// gapless received file start that already reached the file, lags behind processed bytes
+    public long getWrittenBytes() {
+        if (writeBehind != null) return writeBehind.getWrittenPrefix();
+        return coverage != null ? coverage.getPrefixLength() : processedBytes;
+    }
+
     public Uri getFileUri() {
         return fileUri;
     }
@@ -169,4 +493,13 @@ public class FileManager {
     public String getFileName() {
         return fileName;
     }
+
+    /// native session handle of the transfer
+    public int getSession() {
+        return session;
+    }
+
+    public void setSession(int session) {
+        this.session = session;
+    }
 }
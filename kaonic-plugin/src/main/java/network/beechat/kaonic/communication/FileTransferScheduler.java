@@ -0,0 +1,246 @@
+package network.beechat.kaonic.communication;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import network.beechat.kaonic.models.messages.MessageFileStartEvent;
+
+/**
+ * Runs outgoing file transfers side by side.
+ * Up to maxActiveTransfers are announced and sent at the same time, the rest wait in
+ * priority order. Chunk requests of active transfers are served by one thread in weighted
+ * round-robin: a transfer with priority p sends up to p chunks per round, so files share
+ * the link instead of queueing behind each other.
+ * <p>
+ * Messages and call signalling don't pass through here, the native side sends them
+ * ahead of queued file chunks.
+ */
+class FileTransferScheduler {
+    final private String TAG = "KaonicFileScheduler";
+
+    interface Callback {
+        /// the transfer got a slot, announce it to the receiver
+        void onTransferStarted(@NonNull FileManager sender, @NonNull MessageFileStartEvent startEvent);
+
+        /// send the next chunk of an active transfer
+        void onChunkRequested(@NonNull FileManager sender, int chunkSize);
+    }
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "KaonicFileScheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Transfer {
+        final FileManager sender;
+        final MessageFileStartEvent startEvent;
+        final int priority;
+        final long order;
+        final ArrayDeque<Integer> chunkRequests = new ArrayDeque<>();
+        boolean active = false;
+        /// queued in readyTransfers
+        boolean ready = false;
+
+        Transfer(FileManager sender, MessageFileStartEvent startEvent, int priority, long order) {
+            this.sender = sender;
+            this.startEvent = startEvent;
+            this.priority = priority;
+            this.order = order;
+        }
+    }
+
+    private final Callback callback;
+    private final Object lock = new Object();
+    /// all transfers by file id, guarded by lock
+    private final Map<String, Transfer> transfers = new HashMap<>();
+    /// higher priority first, then in order of adding
+    private final PriorityQueue<Transfer> waitingTransfers = new PriorityQueue<>(
+            Comparator.<Transfer>comparingInt(transfer -> -transfer.priority)
+                    .thenComparingLong(transfer -> transfer.order));
+    /// active transfers with pending chunk requests in round-robin order
+    private final ArrayDeque<Transfer> readyTransfers = new ArrayDeque<>();
+    private int maxActiveTransfers;
+    private int activeCount = 0;
+    private long nextOrder = 0;
+    private boolean draining = false;
+
+    FileTransferScheduler(@NonNull Callback callback, int maxActiveTransfers) {
+        this.callback = callback;
+        this.maxActiveTransfers = Math.max(1, maxActiveTransfers);
+    }
+
+    /**
+     * Add transfer, it starts right away if a slot is free
+     *
+     * @param priority weight of the transfer, chunks sent per round-robin turn
+     * @return true if the transfer started, false if it waits for a slot
+     */
+    boolean add(@NonNull FileManager sender, @NonNull MessageFileStartEvent startEvent, int priority) {
+        final List<Transfer> started;
+        final boolean active;
+        synchronized (lock) {
+            final Transfer transfer = new Transfer(sender, startEvent, Math.max(1, priority), nextOrder++);
+            final Transfer previous = transfers.put(sender.getFileId(), transfer);
+            if (previous != null) {
+                detach(previous);
+            }
+            waitingTransfers.add(transfer);
+            started = promoteWaiting();
+            active = transfer.active;
+        }
+
+        startAll(started);
+        return active;
+    }
+
+    @Nullable
+    FileManager get(@NonNull String fileId) {
+        synchronized (lock) {
+            final Transfer transfer = transfers.get(fileId);
+            return transfer == null ? null : transfer.sender;
+        }
+    }
+
+    /**
+     * Remove finished or replaced transfer, a waiting one takes its slot
+     *
+     * @return sender of the removed transfer
+     */
+    @Nullable
+    FileManager remove(@NonNull String fileId) {
+        final Transfer transfer;
+        final List<Transfer> started;
+        synchronized (lock) {
+            transfer = transfers.remove(fileId);
+            if (transfer == null) return null;
+
+            detach(transfer);
+            started = promoteWaiting();
+        }
+
+        startAll(started);
+        return transfer.sender;
+    }
+
+    /// native side asks for the next chunk of the file, served in round-robin order
+    void requestChunk(@NonNull String fileId, int chunkSize) {
+        synchronized (lock) {
+            final Transfer transfer = transfers.get(fileId);
+            if (transfer == null || !transfer.active) return;
+
+            transfer.chunkRequests.add(chunkSize);
+            if (!transfer.ready) {
+                transfer.ready = true;
+                readyTransfers.add(transfer);
+            }
+            if (!draining) {
+                draining = true;
+                executor.execute(this::drain);
+            }
+        }
+    }
+
+    void setMaxActiveTransfers(int maxActiveTransfers) {
+        final List<Transfer> started;
+        synchronized (lock) {
+            this.maxActiveTransfers = Math.max(1, maxActiveTransfers);
+            started = promoteWaiting();
+        }
+        startAll(started);
+    }
+
+    int getActiveCount() {
+        synchronized (lock) {
+            return activeCount;
+        }
+    }
+
+    int getWaitingCount() {
+        synchronized (lock) {
+            return waitingTransfers.size();
+        }
+    }
+
+    /// free the slot or the waiting place of a removed transfer, must hold lock
+    private void detach(Transfer transfer) {
+        if (transfer.active) {
+            activeCount--;
+            readyTransfers.remove(transfer);
+        } else {
+            waitingTransfers.remove(transfer);
+        }
+    }
+
+    /// move waiting transfers to free slots, must hold lock
+    private List<Transfer> promoteWaiting() {
+        final List<Transfer> started = new ArrayList<>();
+        while (activeCount < maxActiveTransfers && !waitingTransfers.isEmpty()) {
+            final Transfer transfer = waitingTransfers.poll();
+            transfer.active = true;
+            activeCount++;
+            started.add(transfer);
+        }
+        return started;
+    }
+
+    private void startAll(List<Transfer> started) {
+        for (Transfer transfer : started) {
+            try {
+                callback.onTransferStarted(transfer.sender, transfer.startEvent);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Can't start file " + transfer.sender.getFileId(), e);
+                remove(transfer.sender.getFileId());
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Transfer transfer;
+            synchronized (lock) {
+                transfer = readyTransfers.poll();
+                if (transfer == null) {
+                    draining = false;
+                    return;
+                }
+                transfer.ready = false;
+            }
+
+            for (int i = 0; i < transfer.priority; i++) {
+                final Integer chunkSize;
+                synchronized (lock) {
+                    if (transfers.get(transfer.sender.getFileId()) != transfer) break;
+                    chunkSize = transfer.chunkRequests.poll();
+                }
+                if (chunkSize == null) break;
+
+                try {
+                    callback.onChunkRequested(transfer.sender, chunkSize);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Chunk of file " + transfer.sender.getFileId() + " failed", e);
+                }
+            }
+
+            synchronized (lock) {
+                if (!transfer.ready && !transfer.chunkRequests.isEmpty()
+                        && transfers.get(transfer.sender.getFileId()) == transfer) {
+                    transfer.ready = true;
+                    readyTransfers.add(transfer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects received chunks and writes them to the file on a background thread.
+ * Chunks following each other are gathered into one block, a block is written at its
+ * offset when it is full, when the next chunk is not adjacent, when its first chunk
+ * waited for the flush interval, or on {@link #close()}. Two blocks are used: while one
+ * is written the next one is filled, the caller only waits when both are busy.
+ * <p>
+ * {@link #write(long, byte[])} must be called from one thread at a time.
+ */
+class FileWriteBehind {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final long DEFAULT_FLUSH_INTERVAL_MS = 500;
+
+    private static final int BLOCK_COUNT = 2;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "KaonicFileWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+    private final int bufferSize;
+    private final long flushIntervalMs;
+    private final BlockingQueue<byte[]> freeBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT);
+
+    /// block being filled, guarded by this
+    private byte[] current = null;
+    private long currentOffset = 0;
+    private int length = 0;
+    private ScheduledFuture<?> flushTimer = null;
+
+    /// ranges that reached the file
+    private final CoverageMap written = new CoverageMap();
+    private final AtomicLong chunkCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private volatile IOException error = null;
+
+    /**
+     * @param writtenPrefix length of the file start already written before, for resumed files
+     */
+    FileWriteBehind(@NonNull FileChannel channel, int bufferSize, long flushIntervalMs, long writtenPrefix) {
+        this.channel = channel;
+        this.bufferSize = bufferSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.written.add(0, writtenPrefix);
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            freeBlocks.add(new byte[bufferSize]);
+        }
+    }
+
+    void write(long position, @NonNull byte[] data) throws IOException {
+        checkError();
+        chunkCount.incrementAndGet();
+
+        int offset = 0;
+        while (offset < data.length) {
+            boolean needBlock;
+            synchronized (this) {
+                if (current != null && currentOffset + length != position + offset) {
+                    submitCurrent();
+                }
+                needBlock = current == null;
+            }
+
+            // never wait for a block while holding the lock, the flush timer needs it
+            byte[] spare = needBlock ? takeBlock() : null;
+
+            synchronized (this) {
+                if (current == null) {
+                    current = spare;
+                    currentOffset = position + offset;
+                    spare = null;
+                }
+
+                final int count = Math.min(data.length - offset, bufferSize - length);
+                System.arraycopy(data, offset, current, length, count);
+                length += count;
+                offset += count;
+
+                if (length == bufferSize) {
+                    submitCurrent();
+                } else if (flushTimer == null) {
+                    flushTimer = executor.schedule(this::flushByTime, flushIntervalMs, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            if (spare != null) {
+                freeBlocks.offer(spare);
+            }
+        }
+    }
+
+    /**
+     * Write everything buffered and wait for the writer thread
+     *
+     * @throws IOException when a write failed, the file misses data
+     */
+    void flush() throws IOException {
+        final Future<?> done;
+        synchronized (this) {
+            if (length > 0) {
+                submitCurrent();
+            }
+            done = executor.submit(() -> {
+            });
+        }
+
+        await(done);
+        checkError();
+    }
+
+    /**
+     * Write everything buffered and close the channel, waits for the writer thread
+     */
+    void close() throws IOException {
+        final Future<?> done;
+        synchronized (this) {
+            if (length > 0) {
+                submitCurrent();
+            }
+            if (flushTimer != null) {
+                flushTimer.cancel(false);
+                flushTimer = null;
+            }
+            done = executor.submit(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            });
+        }
+
+        await(done);
+        checkError();
+    }
+
+    /// length of the gapless file start that reached the file
+    long getWrittenPrefix() {
+        return written.getPrefixLength();
+    }
+
+    long getChunkCount() {
+        return chunkCount.get();
+    }
+
+    /// number of block writes, each one is a syscall or IPC
+    long getWriteCount() {
+        return writeCount.get();
+    }
+
+    private void submitCurrent() {
+        final byte[] block = current;
+        final long blockOffset = currentOffset;
+        final int blockLength = length;
+        current = null;
+        length = 0;
+
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+            flushTimer = null;
+        }
+
+        executor.execute(() -> writeBlock(block, blockOffset, blockLength));
+    }
+
+    private void flushByTime() {
+        synchronized (this) {
+            flushTimer = null;
+            if (length > 0) {
+                submitCurrent();
+            }
+        }
+    }
+
+    private void writeBlock(byte[] block, long blockOffset, int blockLength) {
+        try {
+            if (error == null) {
+                final ByteBuffer buffer = ByteBuffer.wrap(block, 0, blockLength);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, blockOffset + buffer.position());
+                }
+                written.add(blockOffset, blockOffset + blockLength);
+                writeCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            freeBlocks.offer(block);
+        }
+    }
+
+    private static void await(Future<?> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing file");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] takeBlock() throws IOException {
+        try {
+            return freeBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for write buffer");
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) throw error;
+    }
+}
@@ -2,59 +2,173 @@ package network.beechat.kaonic.communication;
 
 import android.content.ContentResolver;
 import android.media.Ringtone;
+import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import network.beechat.kaonic.audio.AudioStreamCallback;
+import network.beechat.kaonic.audio.JitterBufferStats;
 import network.beechat.kaonic.communication.base.KaonicBaseManager;
 import network.beechat.kaonic.impl.KaonicLib;
 import network.beechat.kaonic.models.BroadcastEventData;
 import network.beechat.kaonic.models.KaonicEvent;
 import network.beechat.kaonic.models.KaonicEventData;
 import network.beechat.kaonic.models.KaonicEventType;
-import network.beechat.kaonic.models.ContactFoundEvent;
+import network.beechat.kaonic.models.SendQueueEvent;
 import network.beechat.kaonic.models.calls.CallEventData;
 import network.beechat.kaonic.models.messages.ChatCreateEvent;
 import network.beechat.kaonic.models.messages.MessageFileEvent;
+import network.beechat.kaonic.models.messages.MessageFileEndEvent;
+import network.beechat.kaonic.models.messages.MessageFileRejectEvent;
+import network.beechat.kaonic.models.messages.MessageFileResumeEvent;
 import network.beechat.kaonic.models.messages.MessageFileStartEvent;
-import network.beechat.kaonic.models.messages.MessageLocationEvent;
+import network.beechat.kaonic.models.messages.MessageFileStatusEvent;
 import network.beechat.kaonic.models.messages.MessageTextEvent;
 
 @Keep
 public class KaonicCommunicationManager extends KaonicBaseManager {
+    public static final int DEFAULT_FILE_WINDOW = 1;
+    /// weight of a file in the round-robin between concurrent transfers
+    public static final int DEFAULT_FILE_PRIORITY = 1;
+    /// files sent at the same time, the rest wait for a free slot
+    public static final int DEFAULT_MAX_ACTIVE_FILES = 3;
+    /// receiver asks to resume a transfer that got no chunk for this long
+    public static final long RESUME_IDLE_MS = 30_000;
+    /// received bytes between journal updates
+    private static final int JOURNAL_SYNC_BYTES = 64 * 1024;
+    private static final ByteBuffer EMPTY_CHUNK = ByteBuffer.allocateDirect(0);
+
     final private String TAG = "LibCommunicationHandler";
     final private @NonNull ContentResolver contentResolver;
-    final private Map<String, FileManager> fileReceivers = new HashMap<>();
-    final private Map<String, FileManager> fileSenders = new HashMap<>();
-    private KaonicEventListener eventListener;
+    final private Map<String, FileManager> fileReceivers = new ConcurrentHashMap<>();
+    /// files handed to native completely, kept until it reports the last chunk acknowledged or lost
+    final private Map<String, FileManager> deliveringFiles = new ConcurrentHashMap<>();
+    final private FileTransferScheduler fileScheduler;
+    final private KaonicEventBus eventBus = new KaonicEventBus();
+    final private TransferJournal transferJournal;
+    /// messages waiting for delivery by contact address
+    final private Map<String, Integer> sendQueueDepths = new ConcurrentHashMap<>();
     private CallHandler callHandler = new CallHandler();
     private String myAddress = "1234567890";
-    private AudioStreamCallback audioStreamCallback = (size, buffer) ->
-            sendCallData(callHandler.getActiveCallAddress(),
-                    callHandler.getActiveCallId(), buffer);
+    private int fileWriteBufferSize = FileWriteBehind.DEFAULT_BUFFER_SIZE;
+    private long fileWriteFlushIntervalMs = FileWriteBehind.DEFAULT_FLUSH_INTERVAL_MS;
+    private volatile int fileChunkSizeLimit = 0;
+    private volatile boolean fileCompression = false;
+    private String callSessionId = null;
+    private volatile int callSession = KaonicLib.INVALID_SESSION;
+    private AudioStreamCallback audioStreamCallback = frame -> {
+        try {
+            // native side copies the data before returning, so the frame can be reused
+            final int session = callSession;
+            if (session != KaonicLib.INVALID_SESSION) {
+                kaonicLib.sendCallAudio(session, frame.buffer);
+            } else {
+                kaonicLib.sendCallAudio(callHandler.getActiveCallAddress(), callHandler.getActiveCallId(),
+                        frame.buffer);
+            }
+        } finally {
+            frame.release();
+        }
+    };
 
 
     public KaonicCommunicationManager(@NonNull KaonicLib kaonicLib, @NonNull ContentResolver resolver,
                                       @NonNull Ringtone ringtone) {
+        this(kaonicLib, resolver, ringtone, null);
+    }
+
+    /**
+     * @param journalDirectory app storage directory for the transfer journal,
+     *                         unfinished transfers are resumed after restart only when it is set
+     */
+    public KaonicCommunicationManager(@NonNull KaonicLib kaonicLib, @NonNull ContentResolver resolver,
+                                      @NonNull Ringtone ringtone, @Nullable File journalDirectory) {
         super(kaonicLib);
         this.contentResolver = resolver;
+        this.transferJournal = new TransferJournal(journalDirectory, objectMapper);
+        this.fileScheduler = new FileTransferScheduler(new FileTransferScheduler.Callback() {
+            @Override
+            public void onTransferStarted(@NonNull FileManager sender, @NonNull MessageFileStartEvent startEvent) {
+                startFileSending(sender, startEvent);
+            }
+
+            @Override
+            public void onChunkRequested(@NonNull FileManager sender, int chunkSize) {
+                sendFileChunk(sender, chunkSize);
+            }
+        }, DEFAULT_MAX_ACTIVE_FILES);
         callHandler.initHandler(audioStreamCallback, ringtone);
 
+        // handlers that send to native or open files leave the runtime thread delivering the event,
+        // file ones run in order with the chunks of the file
+        eventBus.subscribe(KaonicEventType.MESSAGE_FILE_START, event -> {
+            final MessageFileStartEvent fileStartEvent = (MessageFileStartEvent) event.data;
+            kaonicLib.dispatch(fileStartEvent.fileId, () -> startFileReceiving(fileStartEvent));
+            return true;
+        });
+        eventBus.subscribe(KaonicEventType.MESSAGE_FILE_RESUME, event -> {
+            final MessageFileResumeEvent resumeEvent = (MessageFileResumeEvent) event.data;
+            kaonicLib.dispatch(resumeEvent.fileId, () -> resumeFileSending(resumeEvent));
+            return true;
+        });
+        eventBus.subscribe(KaonicEventType.MESSAGE_FILE_END, event -> {
+            final MessageFileEndEvent fileEndEvent = (MessageFileEndEvent) event.data;
+            kaonicLib.dispatch(fileEndEvent.fileId, () -> endFileReceiving(fileEndEvent));
+            return true;
+        });
+        eventBus.subscribe(KaonicEventType.MESSAGE_FILE_REJECT, event -> {
+            final MessageFileRejectEvent rejectEvent = (MessageFileRejectEvent) event.data;
+            kaonicLib.dispatch(rejectEvent.fileId, () -> cancelFileReceiving(rejectEvent));
+            return true;
+        });
+        eventBus.subscribe(KaonicEventType.MESSAGE_FILE_STATUS, event -> {
+            // removing the file from the scheduler may start the next queued one
+            final MessageFileStatusEvent statusEvent = (MessageFileStatusEvent) event.data;
+            kaonicLib.dispatch(statusEvent.fileId, () -> finishFileSending(statusEvent));
+            return true;
+        });
+        eventBus.subscribe(KaonicEventType.SEND_QUEUE, event -> {
+            final SendQueueEvent queueEvent = (SendQueueEvent) event.data;
+            if (queueEvent.depth > 0) {
+                sendQueueDepths.put(queueEvent.address, queueEvent.depth);
+            } else {
+                sendQueueDepths.remove(queueEvent.address);
+            }
+            return false;
+        });
+        eventBus.subscribe(KaonicEventType.CONTACT_FOUND, event -> {
+            final String address = event.data.address;
+            kaonicLib.dispatch(address, () -> resumeFileReceiving(address));
+            return false;
+        });
+        final KaonicEventBus.Handler callEventHandler = event -> {
+            callHandler.onCallEventReceived((KaonicEvent<KaonicEventData>) event);
+            updateCallSession();
+            return false;
+        };
+        eventBus.subscribe(KaonicEventType.CALL_INVOKE, callEventHandler);
+        eventBus.subscribe(KaonicEventType.CALL_ANSWER, callEventHandler);
+        eventBus.subscribe(KaonicEventType.CALL_REJECT, callEventHandler);
+
         kaonicLib.setEventListener(new KaonicLib.EventListener() {
             @Override
             public void onEventReceived(String jsonData) {
@@ -62,8 +176,13 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
             }
 
             @Override
-            public void onFileChunkRequest(String fileId, int chunkSize) {
-                kaonicOnFileChunkRequest(fileId, chunkSize);
+            public void onEventBatchReceived(@NonNull String jsonArray) {
+                kaonicOnEventBatchReceived(jsonArray);
+            }
+
+            @Override
+            public void onFileChunkRequest(String fileId, int chunkSize, int retransmits, int ackRttMs) {
+                kaonicOnFileChunkRequest(fileId, chunkSize, retransmits, ackRttMs);
             }
 
             @Override
@@ -73,8 +192,8 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
             }
 
             @Override
-            public void onFileChunkReceived(String fileId, byte[] bytes) {
-                kaonicOnFileChunkReceived(fileId, bytes);
+            public void onFileChunkReceived(String fileId, long offset, byte[] bytes) {
+                kaonicOnFileChunkReceived(fileId, offset, bytes);
             }
 
             @Override
@@ -95,18 +214,68 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
     }
 
     public void setEventListener(KaonicEventListener eventListener) {
-        this.eventListener = eventListener;
+        eventBus.setListener(eventListener);
     }
 
     @Keep
     public void removePacketListener() {
-        this.eventListener = null;
+        eventBus.setListener(null);
     }
 
     public String getMyAddress() {
         return myAddress;
     }
 
+    /**
+     * Receive native events in batches, see {@link KaonicEventListener#onEventsReceived}.
+     * Applied on the next start
+     */
+    public void setEventBatching(int windowMs, int maxEvents) {
+        kaonicLib.setEventBatching(windowMs, maxEvents);
+    }
+
+    /**
+     * Write-behind of received files, applied to the next incoming transfers.
+     * Chunks are collected into blocks of bufferSize bytes and written on a background
+     * thread when a block is full, after flushIntervalMs or when the file is complete.
+     * bufferSize 0 writes every chunk directly
+     */
+    public void setFileWriteBehind(int bufferSize, long flushIntervalMs) {
+        this.fileWriteBufferSize = bufferSize;
+        this.fileWriteFlushIntervalMs = flushIntervalMs;
+    }
+
+    /**
+     * Number of files sent at the same time, chunks of active files are interleaved.
+     * Files above the limit wait and start by priority when a transfer finishes
+     */
+    public void setMaxActiveFiles(int maxActiveFiles) {
+        fileScheduler.setMaxActiveTransfers(maxActiveFiles);
+    }
+
+    /**
+     * Upper limit of the chunk size for the next outgoing files, 0 uses the native limit.
+     * Within the limit the chunk size adapts to the link: it grows while chunks are acked on
+     * the first attempt and halves once per window with retransmits
+     */
+    public void setFileChunkSizeLimit(int chunkSizeLimit) {
+        this.fileChunkSizeLimit = Math.max(0, chunkSizeLimit);
+    }
+
+    /// messages to the contact waiting for delivery, native side sends to every contact on its own
+    public int getSendQueueDepth(@NonNull String address) {
+        final Integer depth = sendQueueDepths.get(address);
+        return depth == null ? 0 : depth;
+    }
+
+    /**
+     * Deflate the next outgoing files, except compressed formats (images, video, audio, archives).
+     * The receiver must run a library version that understands the compression of the file start
+     */
+    public void setFileCompression(boolean enabled) {
+        this.fileCompression = enabled;
+    }
+
     public void sendConfig(String  jsonConfig) {
         kaonicLib.sendConfig(jsonConfig);
     }
@@ -121,40 +290,96 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
         }
     }
 
-    public void sendMessage(String address, String message, String chatId) {
+    /**
+     * Create chat without blocking the caller
+     *
+     * @return KaonicLib.SEND_* result, the chat is not sent unless it is SEND_QUEUED
+     */
+    public int tryCreateChat(String address, String chatId) {
+        return tryTransmitData(new KaonicEvent(KaonicEventType.CHAT_CREATE, new ChatCreateEvent(address, chatId)));
+    }
+
+    /**
+     * @return message id, delivery is reported by MESSAGE_STATUS events with the same id
+     */
+    public String sendMessage(String address, String message, String chatId) {
+        final String id = UUID.randomUUID().toString();
+        final long timestamp = System.currentTimeMillis();
         transmitData(new KaonicEvent(KaonicEventType.MESSAGE_TEXT,
-                new MessageTextEvent(address, System.currentTimeMillis(), chatId, message)));
-        try {
-            kaonicOnEventReceived(objectMapper.writeValueAsString(new KaonicEvent(KaonicEventType.MESSAGE_TEXT,
-                    new MessageTextEvent(myAddress, System.currentTimeMillis(), chatId, message))));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+                new MessageTextEvent(address, timestamp, id, chatId, message)));
+        eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_TEXT,
+                new MessageTextEvent(myAddress, timestamp, id, chatId, message)));
+        return id;
+    }
+
+    /**
+     * Send message without blocking the caller, safe on the UI thread.
+     * When the native queue is full the message is dropped and the caller decides
+     * whether to retry later, see {@link KaonicLib#setCommandQueueSize(int)}
+     *
+     * @return KaonicLib.SEND_* result, the message is published locally only when it is SEND_QUEUED
+     */
+    public int trySendMessage(String address, String message, String chatId) {
+        final String id = UUID.randomUUID().toString();
+        final long timestamp = System.currentTimeMillis();
+        final int result = tryTransmitData(new KaonicEvent(KaonicEventType.MESSAGE_TEXT,
+                new MessageTextEvent(address, timestamp, id, chatId, message)));
+        if (result == KaonicLib.SEND_QUEUED) {
+            // same id as the sent message, so MESSAGE_STATUS events can be matched to it
+            eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_TEXT,
+                    new MessageTextEvent(myAddress, timestamp, id, chatId, message)));
         }
+        return result;
     }
 
     public void sendFile(String filePath, String address, String chatId) {
+        sendFile(filePath, address, chatId, DEFAULT_FILE_WINDOW);
+    }
+
+    /**
+     * Send file keeping up to window chunks in flight, lost chunks are retransmitted
+     * one by one while the rest of the window keeps moving.
+     * Window 1 waits for every chunk ack before sending the next one
+     */
+    public void sendFile(String filePath, String address, String chatId, int window) {
+        sendFile(filePath, address, chatId, window, DEFAULT_FILE_PRIORITY);
+    }
+
+    /**
+     * Send file alongside other transfers, see {@link #setMaxActiveFiles(int)}
+     *
+     * @param priority weight of the file, chunks sent per round-robin turn between active files
+     *                 and start order of waiting files
+     */
+    public void sendFile(String filePath, String address, String chatId, int window, int priority) {
         FileManager fileSender = new FileManager();
         String fileId = UUID.randomUUID().toString();
         try {
             boolean canStart = fileSender.startSend(contentResolver, fileId, chatId, address, filePath);
             if (canStart) {
-                fileSenders.put(fileId, fileSender);
+                TransferJournalEntry journalEntry = new TransferJournalEntry(fileId, true, address, chatId,
+                        fileSender.getFileName(), fileSender.getFileSize(), filePath);
+                journalEntry.window = Math.max(1, window);
+                journalEntry.priority = Math.max(1, priority);
+                journalEntry.compression = fileCompression && FileCompression.isCompressible(fileSender.getMimeType())
+                        ? FileCompression.DEFLATE : FileCompression.NONE;
+                fileSender.setCompression(journalEntry.compression);
+                transferJournal.put(journalEntry);
+
                 MessageFileStartEvent messageFileEvent = new MessageFileStartEvent(fileSender.getAddress(),
                         System.currentTimeMillis(), fileSender.getFileId(), fileSender.getChatId(),
                         fileSender.getFileName(), fileSender.getFileSize());
-                try {
-                    KaonicEvent<MessageFileStartEvent> kaonicEvent = new KaonicEvent<>(KaonicEventType.MESSAGE_FILE_START,
-                            messageFileEvent);
-                    transmitFile(kaonicEvent);
-
-                    kaonicOnEventReceived(objectMapper.writeValueAsString(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE,
-                            new MessageFileEvent(myAddress,
-                                    System.currentTimeMillis(), fileSender.getFileId(), fileSender.getChatId(),
-                                    fileSender.getFileName(), fileSender.getFileSize()))));
-
-                } catch (JsonProcessingException e) {
-                    Log.e(TAG, e.toString());
-                }
+                messageFileEvent.window = journalEntry.window;
+                messageFileEvent.checksum = true;
+                messageFileEvent.chunkSize = fileChunkSizeLimit;
+                messageFileEvent.compression = journalEntry.compression;
+                final boolean started = fileScheduler.add(fileSender, messageFileEvent, journalEntry.priority);
+
+                MessageFileEvent fileEvent = new MessageFileEvent(myAddress,
+                        System.currentTimeMillis(), fileSender.getFileId(), fileSender.getChatId(),
+                        fileSender.getFileName(), fileSender.getFileSize());
+                fileEvent.status = started ? MessageFileEvent.STATUS_IN_PROGRESS : MessageFileEvent.STATUS_QUEUED;
+                eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, fileEvent));
             }
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
@@ -173,6 +398,7 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
                 case KaonicEventType.CALL_REJECT:
                     kaonicLib.sendCallEvent(objectMapper.writeValueAsString(event));
                     callHandler.onCallEventReceived(event);
+                    updateCallSession();
 
             }
         } catch (JsonProcessingException e) {
@@ -183,6 +409,11 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
     public void sendCallData(String address, String callId, byte[] buffer) {
         kaonicLib.sendCallAudio(address, callId, buffer);
     }
+
+    /// playback buffer statistics of the active call
+    public JitterBufferStats getCallPlaybackStats() {
+        return callHandler.getPlaybackStats();
+    }
     //endregion
 
     public void sendBroadcast(String id, String topic, byte[] data) {
@@ -199,6 +430,15 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
         }
     }
 
+    private int tryTransmitData(KaonicEvent kaonicEvent) {
+        try {
+            return kaonicLib.trySendEvent(objectMapper.writeValueAsString(kaonicEvent));
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, Objects.requireNonNull(e.getMessage()));
+            return KaonicLib.SEND_INVALID;
+        }
+    }
+
     private void transmitFile(KaonicEvent kaonicEvent) {
         try {
             String jsonString = objectMapper.writeValueAsString(kaonicEvent);
@@ -213,125 +453,430 @@ public class KaonicCommunicationManager extends KaonicBaseManager {
     private void kaonicOnEventReceived(String dataJson) {
         // Log.i(TAG, "\uD83D\uDD3D Kaonic data received:" + dataJson);
         try {
-            JSONObject eventObject = new JSONObject(dataJson);
-            String eventType = eventObject.getString("type");
-            JSONObject eventData = eventObject.getJSONObject("data");
-            String address = eventData.getString("address");
-            long timestamp = System.currentTimeMillis();//eventData.get("timestamp");
-            KaonicEventData kaonicEventData = null;
-            switch (eventType) {
-                case KaonicEventType.CONTACT_FOUND:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), ContactFoundEvent.class);
-                    break;
-                case KaonicEventType.CHAT_CREATE:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), ChatCreateEvent.class);
-                    break;
-                case KaonicEventType.MESSAGE_TEXT:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), MessageTextEvent.class);
-                    break;
-                case KaonicEventType.MESSAGE_LOCATION:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), MessageLocationEvent.class);
-                    break;
-                case KaonicEventType.MESSAGE_FILE_START:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), MessageFileStartEvent.class);
-                    startFileReceiving((MessageFileStartEvent) kaonicEventData);
-                    return;
-                case KaonicEventType.MESSAGE_FILE:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), MessageFileEvent.class);
-                    break;
-                case KaonicEventType.CALL_INVOKE:
-                case KaonicEventType.CALL_ANSWER:
-                case KaonicEventType.CALL_REJECT:
-                    kaonicEventData = objectMapper.readValue(eventData.toString(), CallEventData.class);
-                    callHandler.onCallEventReceived(new KaonicEvent(eventType, kaonicEventData));
-                    break;
-            }
-            if (kaonicEventData != null) {
-                final KaonicEvent event = new KaonicEvent(eventType, kaonicEventData);
+            eventBus.publish(objectMapper.readValue(dataJson, KaonicEvent.class));
+        } catch (IOException e) {
+            Log.e(TAG, Objects.requireNonNull(e.getMessage()));
+        }
+    }
 
-                if (eventListener != null) {
-                    eventListener.onEventReceived(event);
-                }
+    private void kaonicOnEventBatchReceived(String batchJson) {
+        final List<KaonicEvent<?>> events = new ArrayList<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(batchJson)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                Log.e(TAG, "Event batch is not an array");
+                return;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                events.add(objectMapper.readValue(parser, KaonicEvent.class));
             }
-        } catch (JSONException | JsonProcessingException e) {
+        } catch (IOException e) {
             Log.e(TAG, Objects.requireNonNull(e.getMessage()));
         }
+
+        eventBus.publishAll(events);
     }
 
-    private void kaonicOnFileChunkRequest(String fileId, int chunkSize) {
-        FileManager fileSender = fileSenders.get(fileId);
+    private void kaonicOnFileChunkRequest(String fileId, int chunkSize, int retransmits, int ackRttMs) {
+        final FileManager fileSender = fileScheduler.get(fileId);
         if (fileSender == null) return;
 
+        fileSender.setLinkStats(chunkSize, retransmits, ackRttMs);
+        fileScheduler.requestChunk(fileId, chunkSize);
+    }
+
+    /// the scheduler gave the file a slot, announce it and start reading ahead
+    private void startFileSending(FileManager fileSender, MessageFileStartEvent startEvent) {
+        fileSender.setSession(kaonicLib.openSession(fileSender.getAddress(), fileSender.getFileId()));
+        fileSender.startPrefetch();
+        transmitFile(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE_START, startEvent));
+    }
+
+    private void sendFileChunk(FileManager fileSender, int chunkSize) {
+        final String fileId = fileSender.getFileId();
         MessageFileEvent messageFileEvent = new MessageFileEvent(myAddress,
                 System.currentTimeMillis(), fileSender.getFileId(), fileSender.getChatId(),
                 fileSender.getFileName(), fileSender.getFileSize());
         messageFileEvent.path = fileSender.getFileUri().toString();
 
         try {
-            byte[] chunk = fileSender.nextChunk(chunkSize);
-            kaonicLib.sendFileChunk(fileSender.getAddress(), fileId, chunk);
+            final ByteBuffer chunk = fileSender.nextChunk(chunkSize);
+            final boolean finished = fileSender.isFinished();
+            if (finished) {
+                // the outcome may be reported before the last chunk call returns
+                deliveringFiles.put(fileId, fileSender);
+            }
+            transmitFileChunk(fileSender, chunk);
 
-            if (fileSender.isFinished()) {
+            if (finished) {
+                if (fileSender.isCompressed()) {
+                    // compressed stream is shorter than the file, an empty chunk ends it on the native side
+                    transmitFileChunk(fileSender, EMPTY_CHUNK);
+                }
+                final String sha256 = fileSender.getSha256();
+                if (sha256 != null) {
+                    transmitData(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE_END,
+                            new MessageFileEndEvent(fileSender.getAddress(), System.currentTimeMillis(),
+                                    UUID.randomUUID().toString(), fileSender.getChatId(), fileId, sha256)));
+                }
+                // chunks in flight may still be lost, completion is reported by the native side
+                closeFileSession(fileSender);
                 fileSender.close();
-                fileSenders.remove(fileId);
+                fileScheduler.remove(fileId);
             }
 
-            try {
-                messageFileEvent.fileSizeProcessed = fileSender.getProcessedBytes();
-                KaonicEvent<MessageFileEvent> kaonicEvent = new KaonicEvent<>(KaonicEventType.MESSAGE_FILE,
-                        messageFileEvent);
-                kaonicOnEventReceived(objectMapper.writeValueAsString(kaonicEvent));
-            } catch (JsonProcessingException e) {
-                Log.e(TAG, e.toString());
-            }
+            messageFileEvent.fileSizeProcessed = fileSender.getProcessedBytes();
+            setTransferStats(messageFileEvent, fileSender);
+            eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            Log.e(TAG, "Can't read file " + fileId + ": " + e);
+            closeFileSession(fileSender);
+            fileSender.close();
+            fileScheduler.remove(fileId);
+            // the native side drops the chunks in flight and the receiver the file
+            transmitData(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE_REJECT,
+                    new MessageFileRejectEvent(fileSender.getAddress(), System.currentTimeMillis(),
+                            UUID.randomUUID().toString(), fileSender.getChatId(), fileId, e.toString())));
+            transferJournal.remove(fileId);
+
+            messageFileEvent.status = MessageFileEvent.STATUS_FAILED;
+            messageFileEvent.fileSizeProcessed = fileSender.getProcessedBytes();
+            eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
         }
     }
 
-    private void kaonicOnFileChunkReceived(String fileId, byte[] bytes) {
+    /// native side got the last chunk acknowledged or gave the transfer up
+    private void finishFileSending(MessageFileStatusEvent statusEvent) {
+        FileManager fileSender = deliveringFiles.remove(statusEvent.fileId);
+        if (fileSender == null) {
+            // stopped while the file was still read
+            fileSender = fileScheduler.remove(statusEvent.fileId);
+            if (fileSender == null) {
+                Log.w(TAG, "Status of unknown file " + statusEvent.fileId);
+                return;
+            }
+            closeFileSession(fileSender);
+            fileSender.close();
+        }
+
+        final MessageFileEvent messageFileEvent = new MessageFileEvent(myAddress,
+                System.currentTimeMillis(), fileSender.getFileId(), fileSender.getChatId(),
+                fileSender.getFileName(), fileSender.getFileSize());
+        messageFileEvent.path = fileSender.getFileUri().toString();
+        messageFileEvent.fileSizeProcessed = fileSender.getProcessedBytes();
+        setTransferStats(messageFileEvent, fileSender);
+
+        if (MessageFileStatusEvent.STATE_COMPLETED.equals(statusEvent.state)) {
+            messageFileEvent.status = MessageFileEvent.STATUS_COMPLETED;
+            transferJournal.remove(statusEvent.fileId);
+        } else if (MessageFileStatusEvent.STATE_REJECTED.equals(statusEvent.state)) {
+            Log.e(TAG, "File " + statusEvent.fileId + " rejected by " + statusEvent.address);
+            messageFileEvent.status = MessageFileEvent.STATUS_FAILED;
+            transferJournal.remove(statusEvent.fileId);
+        } else {
+            // journal entry stays, the receiver asks to resume once the contact is found again
+            Log.e(TAG, "File " + statusEvent.fileId + " to " + statusEvent.address + " failed");
+            messageFileEvent.status = MessageFileEvent.STATUS_FAILED;
+        }
+
+        eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
+    }
+
+    private void transmitFileChunk(FileManager fileSender, ByteBuffer chunk) {
+        if (fileSender.getSession() != KaonicLib.INVALID_SESSION) {
+            kaonicLib.sendFileChunk(fileSender.getSession(), chunk);
+        } else {
+            kaonicLib.sendFileChunk(fileSender.getAddress(), fileSender.getFileId(), chunk);
+        }
+    }
+
+    private void kaonicOnFileChunkReceived(String fileId, long offset, byte[] bytes) {
         FileManager fileReceiver = fileReceivers.get(fileId);
         if (fileReceiver == null) return;
 
-        boolean fileFinished = fileReceiver.writeChunk(bytes);
-        MessageFileEvent messageFileEvent = new MessageFileEvent(fileReceiver.getAddress(),
+        final MessageFileEvent messageFileEvent = newReceivedFileEvent(fileReceiver);
+        // the file end may be handled on another thread, only one of them finishes the file
+        synchronized (fileReceiver) {
+            final boolean fileFinished;
+            try {
+                fileFinished = fileReceiver.writeChunk(offset, bytes);
+            } catch (IOException e) {
+                Log.e(TAG, "Can't write file " + fileId + ": " + e);
+                // the file end may have finished it on another thread
+                if (fileReceivers.remove(fileId) == null) return;
+                failFileReceiving(fileReceiver, messageFileEvent);
+                eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
+                return;
+            }
+            messageFileEvent.fileSizeProcessed = fileReceiver.getProcessedBytes();
+            messageFileEvent.bytesPerSecond = fileReceiver.getBytesPerSecond();
+            if (!fileFinished || !finishFileReceiving(fileReceiver, messageFileEvent)) {
+                TransferJournalEntry journalEntry = transferJournal.get(fileId);
+                if (journalEntry != null
+                        && fileReceiver.getWrittenBytes() - journalEntry.processedBytes >= JOURNAL_SYNC_BYTES) {
+                    journalEntry.processedBytes = fileReceiver.getWrittenBytes();
+                    transferJournal.put(journalEntry);
+                }
+            }
+        }
+
+        eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
+    }
+
+    private void setTransferStats(MessageFileEvent messageFileEvent, FileManager fileSender) {
+        messageFileEvent.bytesPerSecond = fileSender.getBytesPerSecond();
+        messageFileEvent.chunkSize = fileSender.getChunkSize();
+        messageFileEvent.retransmits = fileSender.getRetransmits();
+        messageFileEvent.ackRttMs = fileSender.getAckRttMs();
+        messageFileEvent.compressedBytes = fileSender.getCompressedBytes();
+    }
+
+    private MessageFileEvent newReceivedFileEvent(FileManager fileReceiver) {
+        return new MessageFileEvent(fileReceiver.getAddress(),
                 System.currentTimeMillis(), fileReceiver.getFileId(), fileReceiver.getChatId(),
                 fileReceiver.getFileName(), fileReceiver.getFileSize());
+    }
+
+    /**
+     * Close a completely received file and compare its hash with the sender one
+     *
+     * @return false while the file end with the expected hash is still on the way
+     */
+    private boolean finishFileReceiving(FileManager fileReceiver, MessageFileEvent messageFileEvent) {
+        if (!fileReceiver.isReceived()) return false;
+        if (fileReceiver.isChecksumExpected() && fileReceiver.getExpectedSha256() == null) return false;
+        if (fileReceivers.remove(fileReceiver.getFileId()) == null) return false;
+
+        try {
+            fileReceiver.flushWrite();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write file " + fileReceiver.getFileId() + ": " + e);
+            failFileReceiving(fileReceiver, messageFileEvent);
+            return true;
+        }
+
+        if (!fileReceiver.isChecksumExpected()) {
+            messageFileEvent.status = MessageFileEvent.STATUS_COMPLETED;
+        } else if (fileReceiver.getExpectedSha256().equalsIgnoreCase(fileReceiver.getSha256())) {
+            messageFileEvent.status = MessageFileEvent.STATUS_VERIFIED;
+        } else {
+            Log.e(TAG, "File " + fileReceiver.getFileId() + " checksum mismatch: expected "
+                    + fileReceiver.getExpectedSha256() + " got " + fileReceiver.getSha256());
+            messageFileEvent.status = MessageFileEvent.STATUS_CHECKSUM_MISMATCH;
+        }
+
+        messageFileEvent.path = fileReceiver.getFileUri().getPath();
         messageFileEvent.fileSizeProcessed = fileReceiver.getProcessedBytes();
-        if (fileFinished) {
-            messageFileEvent.path = fileReceiver.getFileUri().getPath();
-            fileReceiver.close();
-            fileReceivers.remove(fileId);
+        closeFileSession(fileReceiver);
+        fileReceiver.close();
+        transferJournal.remove(fileReceiver.getFileId());
+        return true;
+    }
+
+    /**
+     * Give up a file that can't be written, already removed from the receivers. The journal entry
+     * keeps the part that reached the file, the transfer is resumed from there once the contact
+     * is found again
+     */
+    private void failFileReceiving(FileManager fileReceiver, MessageFileEvent messageFileEvent) {
+        final TransferJournalEntry journalEntry = transferJournal.get(fileReceiver.getFileId());
+        if (journalEntry != null) {
+            journalEntry.processedBytes = fileReceiver.getWrittenBytes();
+            transferJournal.put(journalEntry);
         }
 
-        try {
-            KaonicEvent<MessageFileEvent> kaonicEvent = new KaonicEvent<>(KaonicEventType.MESSAGE_FILE,
-                    messageFileEvent);
-            kaonicOnEventReceived(objectMapper.writeValueAsString(kaonicEvent));
-        } catch (JsonProcessingException e) {
-            Log.e(TAG, e.toString());
+        messageFileEvent.status = MessageFileEvent.STATUS_FAILED;
+        messageFileEvent.fileSizeProcessed = fileReceiver.getWrittenBytes();
+        closeFileSession(fileReceiver);
+        fileReceiver.close();
+    }
+
+    /// the sender hash arrived, it may come before the last chunks
+    private void endFileReceiving(MessageFileEndEvent fileEndEvent) {
+        final FileManager fileReceiver = fileReceivers.get(fileEndEvent.fileId);
+        if (fileReceiver == null || !fileReceiver.getAddress().equals(fileEndEvent.address)) {
+            Log.e(TAG, "Unknown file end " + fileEndEvent.fileId);
+            return;
+        }
+
+        final MessageFileEvent messageFileEvent = newReceivedFileEvent(fileReceiver);
+        synchronized (fileReceiver) {
+            fileReceiver.setExpectedSha256(fileEndEvent.sha256);
+            if (!finishFileReceiving(fileReceiver, messageFileEvent)) return;
+        }
+
+        eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
+    }
+
+    /// the sender gave the file up, it won't be resumed
+    private void cancelFileReceiving(MessageFileRejectEvent rejectEvent) {
+        final FileManager fileReceiver = fileReceivers.get(rejectEvent.fileId);
+        if (fileReceiver == null || !fileReceiver.getAddress().equals(rejectEvent.address)) {
+            Log.w(TAG, "Cancel of unknown file " + rejectEvent.fileId);
+            return;
+        }
+
+        Log.e(TAG, "File " + rejectEvent.fileId + " stopped by " + rejectEvent.address + ": " + rejectEvent.reason);
+        final MessageFileEvent messageFileEvent = newReceivedFileEvent(fileReceiver);
+        synchronized (fileReceiver) {
+            // the file may have been finished by its last chunk
+            if (fileReceivers.remove(rejectEvent.fileId) == null) return;
+            failFileReceiving(fileReceiver, messageFileEvent);
         }
+        transferJournal.remove(rejectEvent.fileId);
 
+        eventBus.publish(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE, messageFileEvent));
     }
 
     private void kaonicOnBroadcastReceived(@NonNull String address, @NonNull String id,
                                            @NonNull String topic, @NonNull byte[] bytes) {
         Log.i(TAG, "OnBroadcastReceived " + address + " " + id + " " + topic + " " + Arrays.toString(bytes));
-        KaonicEvent<BroadcastEventData> kaonicEvent = new KaonicEvent<>(KaonicEventType.BROADCAST,
-                new BroadcastEventData(address, id, topic, bytes));
-        if (eventListener != null) {
-            eventListener.onEventReceived(kaonicEvent);
-        }
+        eventBus.publish(new KaonicEvent<>(KaonicEventType.BROADCAST,
+                new BroadcastEventData(address, id, topic, bytes)));
     }
 
     private void startFileReceiving(MessageFileStartEvent fileStartEvent) {
+        final FileManager previousReceiver = fileReceivers.remove(fileStartEvent.fileId);
+        if (previousReceiver != null) {
+            closeFileSession(previousReceiver);
+            previousReceiver.close();
+        }
+
+        if (!FileCompression.isSupported(fileStartEvent.compression)) {
+            rejectFileReceiving(fileStartEvent, "unknown compression " + fileStartEvent.compression);
+            return;
+        }
+
         FileManager fileReceiver = new FileManager();
+        fileReceiver.setWriteBehind(fileWriteBufferSize, fileWriteFlushIntervalMs);
+        fileReceiver.setChecksumExpected(fileStartEvent.checksum);
+        fileReceiver.setCompression(fileStartEvent.compression);
         try {
-            fileReceiver.startWrite(contentResolver, fileStartEvent.fileName, fileStartEvent.fileSize,
-                    fileStartEvent.fileId, fileStartEvent.chatId, fileReceiver.getAddress());
+            if (fileStartEvent.offset > 0) {
+                TransferJournalEntry journalEntry = transferJournal.get(fileStartEvent.fileId);
+                if (journalEntry == null || journalEntry.outgoing
+                        || !journalEntry.address.equals(fileStartEvent.address)
+                        || journalEntry.fileSize != fileStartEvent.fileSize
+                        || journalEntry.processedBytes < fileStartEvent.offset) {
+                    rejectFileReceiving(fileStartEvent, "can't resume from " + fileStartEvent.offset);
+                    return;
+                }
+                fileReceiver.resumeWrite(contentResolver, Uri.parse(journalEntry.uri), journalEntry.fileName,
+                        journalEntry.fileSize, fileStartEvent.offset, journalEntry.fileId, journalEntry.chatId,
+                        journalEntry.address);
+                journalEntry.processedBytes = fileStartEvent.offset;
+                transferJournal.put(journalEntry);
+            } else {
+                fileReceiver.startWrite(contentResolver, fileStartEvent.fileName, fileStartEvent.fileSize,
+                        fileStartEvent.fileId, fileStartEvent.chatId, fileStartEvent.address);
+                if (fileReceiver.getFileUri() != null) {
+                    transferJournal.put(new TransferJournalEntry(fileStartEvent.fileId, false,
+                            fileStartEvent.address, fileStartEvent.chatId, fileStartEvent.fileName,
+                            fileStartEvent.fileSize, fileReceiver.getFileUri().toString()));
+                }
+            }
             fileReceivers.put(fileStartEvent.fileId, fileReceiver);
+            fileReceiver.setSession(kaonicLib.openSession(fileStartEvent.address, fileStartEvent.fileId));
         } catch (IOException e) {
-            Log.e(TAG, e.toString());
+            fileReceiver.close();
+            rejectFileReceiving(fileStartEvent, e.toString());
+        }
+    }
+
+    /// native side already acknowledged the file start, tell the sender to stop instead
+    private void rejectFileReceiving(MessageFileStartEvent fileStartEvent, String reason) {
+        Log.e(TAG, "File " + fileStartEvent.fileId + " rejected: " + reason);
+        final MessageFileRejectEvent rejectEvent = new MessageFileRejectEvent(fileStartEvent.address,
+                System.currentTimeMillis(), UUID.randomUUID().toString(), fileStartEvent.chatId,
+                fileStartEvent.fileId, reason);
+        transmitData(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE_REJECT, rejectEvent));
+    }
+
+    /// ask the contact to continue files that were interrupted or stalled
+    private void resumeFileReceiving(@NonNull String address) {
+        for (TransferJournalEntry journalEntry : transferJournal.getEntries()) {
+            if (journalEntry.outgoing || !address.equals(journalEntry.address)) continue;
+
+            long offset = journalEntry.processedBytes;
+            final FileManager fileReceiver = fileReceivers.get(journalEntry.fileId);
+            if (fileReceiver != null) {
+                if (fileReceiver.getIdleMillis() < RESUME_IDLE_MS) continue;
+                offset = fileReceiver.getWrittenBytes();
+                journalEntry.processedBytes = offset;
+                transferJournal.put(journalEntry);
+            }
+
+            Log.i(TAG, "Resume file " + journalEntry.fileId + " from " + offset);
+            transmitData(new KaonicEvent<>(KaonicEventType.MESSAGE_FILE_RESUME,
+                    new MessageFileResumeEvent(address, System.currentTimeMillis(), UUID.randomUUID().toString(),
+                            journalEntry.chatId, journalEntry.fileId, offset)));
+        }
+    }
+
+    /// restart sending from the offset the receiver already has
+    private void resumeFileSending(MessageFileResumeEvent resumeEvent) {
+        TransferJournalEntry journalEntry = transferJournal.get(resumeEvent.fileId);
+        if (journalEntry == null || !journalEntry.outgoing || !journalEntry.address.equals(resumeEvent.address)) {
+            Log.e(TAG, "Unknown file to resume " + resumeEvent.fileId);
+            return;
+        }
+
+        // a resumed attempt replaces the one still waiting for acks on the native side
+        deliveringFiles.remove(journalEntry.fileId);
+        final FileManager previousSender = fileScheduler.remove(journalEntry.fileId);
+        if (previousSender != null) {
+            closeFileSession(previousSender);
+            previousSender.close();
+        }
+
+        FileManager fileSender = new FileManager();
+        try {
+            if (!fileSender.startSend(contentResolver, journalEntry.fileId, journalEntry.chatId,
+                    journalEntry.address, journalEntry.uri)) {
+                transferJournal.remove(journalEntry.fileId);
+                return;
+            }
+            fileSender.setCompression(journalEntry.compression);
+            fileSender.skipTo(resumeEvent.offset);
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Can't resume file " + journalEntry.fileId + ": " + e);
+            fileSender.close();
+            transferJournal.remove(journalEntry.fileId);
+            return;
+        }
+
+
+        MessageFileStartEvent messageFileEvent = new MessageFileStartEvent(journalEntry.address,
+                System.currentTimeMillis(), journalEntry.fileId, journalEntry.chatId,
+                fileSender.getFileName(), fileSender.getFileSize());
+        // new message id, the original file start may still be remembered as a duplicate
+        messageFileEvent.id = UUID.randomUUID().toString();
+        messageFileEvent.window = journalEntry.window;
+        messageFileEvent.offset = resumeEvent.offset;
+        messageFileEvent.checksum = true;
+        messageFileEvent.chunkSize = fileChunkSizeLimit;
+        messageFileEvent.compression = journalEntry.compression;
+        fileScheduler.add(fileSender, messageFileEvent, journalEntry.priority);
+    }
+
+    private void closeFileSession(FileManager fileManager) {
+        if (fileManager.getSession() != KaonicLib.INVALID_SESSION) {
+            kaonicLib.closeSession(fileManager.getSession());
+            fileManager.setSession(KaonicLib.INVALID_SESSION);
+        }
+    }
+
+    /// keep native call session in sync with the active call
+    private synchronized void updateCallSession() {
+        final String callId = callHandler.getActiveCallId();
+        if (Objects.equals(callId, callSessionId)) return;
+
+        final int previousSession = callSession;
+        callSessionId = callId;
+        callSession = callId == null ? KaonicLib.INVALID_SESSION
+                : kaonicLib.openSession(callHandler.getActiveCallAddress(), callId);
+
+        if (previousSession != KaonicLib.INVALID_SESSION) {
+            kaonicLib.closeSession(previousSession);
         }
     }
 
@@ -0,0 +1,79 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import network.beechat.kaonic.models.KaonicEvent;
+
+/**
+ * Routes typed events inside the library.
+ * Events decoded from native JSON and events produced locally (own messages,
+ * file progress, broadcasts) go through the same path as objects, JSON is only
+ * used at the native boundary.
+ * <p>
+ * Handlers subscribed for an event type run first, an event that no handler
+ * consumed is then delivered to the {@link KaonicEventListener}.
+ */
+class KaonicEventBus {
+    interface Handler {
+        /**
+         * @return true if the event is consumed and must not reach the listener
+         */
+        boolean onEvent(@NonNull KaonicEvent<?> event);
+    }
+
+    private final Map<String, List<Handler>> handlers = new ConcurrentHashMap<>();
+    private volatile KaonicEventListener listener;
+
+    void subscribe(@NonNull String type, @NonNull Handler handler) {
+        handlers.computeIfAbsent(type, key -> new CopyOnWriteArrayList<>()).add(handler);
+    }
+
+    void setListener(@Nullable KaonicEventListener listener) {
+        this.listener = listener;
+    }
+
+    void publish(@NonNull KaonicEvent<?> event) {
+        if (!route(event)) return;
+
+        final KaonicEventListener listener = this.listener;
+        if (listener != null) {
+            listener.onEventReceived(event);
+        }
+    }
+
+    /// publish events decoded from one native batch, the listener gets them in one call
+    void publishAll(@NonNull List<KaonicEvent<?>> events) {
+        final List<KaonicEvent> delivered = new ArrayList<>(events.size());
+        for (KaonicEvent<?> event : events) {
+            if (route(event)) {
+                delivered.add(event);
+            }
+        }
+
+        final KaonicEventListener listener = this.listener;
+        if (!delivered.isEmpty() && listener != null) {
+            listener.onEventsReceived(delivered);
+        }
+    }
+
+    /// run subscribed handlers, returns true if the event should reach the listener
+    private boolean route(KaonicEvent<?> event) {
+        if (event.data == null) return false;
+
+        final List<Handler> typeHandlers = handlers.get(event.type);
+        if (typeHandlers == null) return true;
+
+        boolean consumed = false;
+        for (Handler handler : typeHandlers) {
+            consumed |= handler.onEvent(event);
+        }
+        return !consumed;
+    }
+}
@@ -2,8 +2,20 @@ package network.beechat.kaonic.communication;
 
 import androidx.annotation.NonNull;
 
+import java.util.List;
+
 import network.beechat.kaonic.models.KaonicEvent;
 
 public interface KaonicEventListener {
     void onEventReceived(@NonNull KaonicEvent event);
+
+    /**
+     * Events delivered together when native event batching is enabled,
+     * override to handle the whole batch at once
+     */
+    default void onEventsReceived(@NonNull List<KaonicEvent> events) {
+        for (KaonicEvent event : events) {
+            onEventReceived(event);
+        }
+    }
 }
@@ -0,0 +1,102 @@
+package network.beechat.kaonic.communication;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps unfinished file transfers in app storage, one JSON file per file id,
+ * so they survive link loss and app restarts and can be resumed.
+ * Without a directory the journal only lives in memory.
+ */
+public class TransferJournal {
+    final private String TAG = "KaonicTransferJournal";
+    private static final String ENTRY_SUFFIX = ".json";
+
+    private final @Nullable File directory;
+    private final ObjectMapper objectMapper;
+    private final Map<String, TransferJournalEntry> entries = new ConcurrentHashMap<>();
+
+    public TransferJournal(@Nullable File directory, @NonNull ObjectMapper objectMapper) {
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+        load();
+    }
+
+    @Nullable
+    public TransferJournalEntry get(@NonNull String fileId) {
+        return entries.get(fileId);
+    }
+
+    @NonNull
+    public List<TransferJournalEntry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /// add or update the entry, the file is replaced atomically
+    public void put(@NonNull TransferJournalEntry entry) {
+        entries.put(entry.fileId, entry);
+        if (directory == null || !isValidId(entry.fileId)) return;
+
+        final File file = entryFile(entry.fileId);
+        final File tmpFile = new File(directory, entry.fileId + ".tmp");
+        try {
+            objectMapper.writeValue(tmpFile, entry);
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Can't update journal entry " + entry.fileId);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
+    public void remove(@NonNull String fileId) {
+        entries.remove(fileId);
+        if (directory == null || !isValidId(fileId)) return;
+
+        final File file = entryFile(fileId);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Can't remove journal entry " + fileId);
+        }
+    }
+
+    private void load() {
+        if (directory == null) return;
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Can't create journal directory " + directory);
+            return;
+        }
+
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (files == null) return;
+
+        for (File file : files) {
+            try {
+                TransferJournalEntry entry = objectMapper.readValue(file, TransferJournalEntry.class);
+                entries.put(entry.fileId, entry);
+            } catch (IOException e) {
+                Log.e(TAG, "Broken journal entry " + file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    /// file ids come from the remote side, they must not escape the journal directory
+    private static boolean isValidId(String fileId) {
+        return fileId != null && fileId.matches("[A-Za-z0-9_-]+");
+    }
+
+    private File entryFile(String fileId) {
+        return new File(directory, fileId + ENTRY_SUFFIX);
+    }
+}
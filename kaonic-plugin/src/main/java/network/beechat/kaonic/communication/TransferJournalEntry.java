@@ -0,0 +1,56 @@
+package network.beechat.kaonic.communication;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Persisted state of an unfinished file transfer
+ */
+@Keep
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TransferJournalEntry {
+    @JsonProperty("file_id")
+    public String fileId;
+    /// true if the file is sent by this device
+    @JsonProperty("outgoing")
+    public boolean outgoing;
+    /// remote side of the transfer
+    @JsonProperty("address")
+    public String address;
+    @JsonProperty("chat_id")
+    public String chatId;
+    @JsonProperty("file_name")
+    public String fileName;
+    @JsonProperty("file_size")
+    public long fileSize;
+    @JsonProperty("uri")
+    public String uri;
+    @JsonProperty("window")
+    public int window = 1;
+    /// weight in the round-robin between concurrent outgoing files
+    @JsonProperty("priority")
+    public int priority = 1;
+    /// see {@link FileCompression}, outgoing only
+    @JsonProperty("compression")
+    public String compression = FileCompression.NONE;
+    /// bytes received and written to the file, receiver only
+    @JsonProperty("processed_bytes")
+    public long processedBytes;
+
+    @Keep
+    public TransferJournalEntry() {
+    }
+
+    public TransferJournalEntry(String fileId, boolean outgoing, String address, String chatId,
+                                String fileName, long fileSize, String uri) {
+        this.fileId = fileId;
+        this.outgoing = outgoing;
+        this.address = address;
+        this.chatId = chatId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.uri = uri;
+    }
+}
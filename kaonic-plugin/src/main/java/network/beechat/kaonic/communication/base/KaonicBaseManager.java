@@ -5,10 +5,12 @@ import androidx.annotation.NonNull;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import network.beechat.kaonic.impl.KaonicLib;
 import network.beechat.kaonic.models.MessengerCreds;
 import network.beechat.kaonic.models.connection.ConnectionConfig;
+import network.beechat.kaonic.models.connection.RetransmitConfig;
 
 public class KaonicBaseManager {
     final protected @NonNull KaonicLib kaonicLib;
@@ -19,12 +21,26 @@ public class KaonicBaseManager {
     }
 
     public boolean start(String secret, ConnectionConfig connectionConfig) {
+        return start(secret, connectionConfig, new RetransmitConfig());
+    }
+
+    /**
+     * @param retransmitConfig timers of events waiting for an ack, delivery results are
+     *                         reported as DeliveryStats events
+     * @return false if the config is rejected by the native side
+     * @throws IllegalArgumentException if retransmitConfig is invalid
+     */
+    public boolean start(String secret, ConnectionConfig connectionConfig,
+                         @NonNull RetransmitConfig retransmitConfig) {
+        retransmitConfig.validate();
         try {
-            String json = objectMapper.writeValueAsString(connectionConfig);
+            ObjectNode config = objectMapper.valueToTree(connectionConfig);
+            config.set("retransmit", objectMapper.valueToTree(retransmitConfig));
+            String json = objectMapper.writeValueAsString(config);
             kaonicLib.start(
                     secret, json
             );
-        } catch (JsonProcessingException e) {
+        } catch (JsonProcessingException | IllegalArgumentException e) {
             return false;
         }
 
@@ -0,0 +1,199 @@
+package network.beechat.kaonic.impl;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers native callbacks off the calling (native) thread.
+ * Tasks sharing the same key (file id, broadcast topic) run one after another in
+ * submission order, tasks with different keys may run in parallel on the executor.
+ * The caller is never blocked: it is a native runtime thread, and tasks sending to native
+ * may wait for the messenger that runs on it. Every key has a queue capacity, dispatch
+ * queues past it and counts the overflow, tryDispatch drops the task.
+ */
+public class CallbackDispatcher {
+    final private String TAG = "KaonicCallbackDispatcher";
+
+    public static final int DEFAULT_THREAD_COUNT = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int queueCapacity;
+    private final Map<String, SerialQueue> queues = new HashMap<>();
+    /// guarded by queues
+    private long overflowCount = 0;
+    private long droppedCount = 0;
+
+    public CallbackDispatcher() {
+        this(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public CallbackDispatcher(int threadCount, int queueCapacity) {
+        this(Executors.newFixedThreadPool(threadCount, new NamedThreadFactory("KaonicCallback")),
+                queueCapacity, true);
+    }
+
+    /**
+     * @param executor      executor that runs the callbacks, it is not shut down by the dispatcher
+     * @param queueCapacity max number of pending callbacks per key
+     */
+    public CallbackDispatcher(@NonNull Executor executor, int queueCapacity) {
+        this(executor, queueCapacity, false);
+    }
+
+    private CallbackDispatcher(@NonNull Executor executor, int queueCapacity, boolean owned) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService) executor : null;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Queue task for the key, past the key capacity as well: tasks that must not be lost
+     * (file chunks, chunk requests) are queued and the overflow is counted
+     */
+    public void dispatch(@NonNull String key, @NonNull Runnable task) {
+        synchronized (queues) {
+            final SerialQueue queue = queueOf(key);
+            if (queue.tasks.size() >= queueCapacity) {
+                overflowCount++;
+                if (!queue.overflowing) {
+                    queue.overflowing = true;
+                    Log.w(TAG, "Callbacks for " + key + " fall behind, queued past capacity " + queueCapacity);
+                }
+            }
+            enqueue(queue, task);
+        }
+    }
+
+    /**
+     * Queue task for the key unless the key queue is full
+     *
+     * @return false if the task is dropped
+     */
+    public boolean tryDispatch(@NonNull String key, @NonNull Runnable task) {
+        synchronized (queues) {
+            final SerialQueue queue = queueOf(key);
+            if (queue.tasks.size() >= queueCapacity) {
+                droppedCount++;
+                if (!queue.overflowing) {
+                    queue.overflowing = true;
+                    Log.w(TAG, "Callbacks for " + key + " fall behind, dropping them");
+                }
+                return false;
+            }
+            enqueue(queue, task);
+            return true;
+        }
+    }
+
+    /// tasks queued by dispatch while their key queue was full
+    public long getOverflowCount() {
+        synchronized (queues) {
+            return overflowCount;
+        }
+    }
+
+    /// tasks dropped by tryDispatch
+    public long getDroppedCount() {
+        synchronized (queues) {
+            return droppedCount;
+        }
+    }
+
+    /// guarded by queues
+    private SerialQueue queueOf(String key) {
+        SerialQueue queue = queues.get(key);
+        if (queue == null) {
+            queue = new SerialQueue(key);
+            queues.put(key, queue);
+        }
+        return queue;
+    }
+
+    /// guarded by queues
+    private void enqueue(SerialQueue queue, Runnable task) {
+        queue.tasks.add(task);
+        if (!queue.running) {
+            queue.running = true;
+            executor.execute(queue);
+        }
+    }
+
+    /// number of callbacks waiting for execution for the key
+    public int pendingCount(@NonNull String key) {
+        synchronized (queues) {
+            SerialQueue queue = queues.get(key);
+            return queue == null ? 0 : queue.tasks.size();
+        }
+    }
+
+    /// stops the executor if it was created by the dispatcher
+    public void shutdown() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private final class SerialQueue implements Runnable {
+        final String key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean running = false;
+        /// logged once until the queue drains
+        boolean overflowing = false;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (queues) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        queues.remove(key);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Callback for " + key + " failed", e);
+                }
+            }
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package network.beechat.kaonic.impl;
+
+import androidx.annotation.NonNull;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Splits a native event batch into the raw JSON text of its events. The parser only
+ * tokenizes the array and skips over every element, nothing is bound or serialized again
+ */
+public final class EventBatch {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    public interface Consumer {
+        void accept(@NonNull String eventJson);
+    }
+
+    private EventBatch() {
+    }
+
+    /**
+     * @param jsonArray JSON array of event objects
+     * @throws IOException if jsonArray is not a JSON array
+     */
+    public static void forEach(@NonNull String jsonArray, @NonNull Consumer consumer) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(jsonArray)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Event batch is not an array");
+            }
+
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (parser.currentToken() == null) {
+                    throw new IOException("Event batch ends early");
+                }
+                // offsets are in chars, the parser reads the String itself
+                final int start = (int) parser.getTokenLocation().getCharOffset();
+                parser.skipChildren();
+                final int end = (int) parser.getCurrentLocation().getCharOffset();
+                consumer.accept(jsonArray.substring(start, end));
+            }
+        }
+    }
+}
@@ -1,18 +1,32 @@
 package network.beechat.kaonic.impl;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 
 @Keep
 public class KaonicLib {
     final private String TAG = "KaonicLib";
 
+    /// returned by openSession when the session can't be created
+    public static final int INVALID_SESSION = 0;
+
+    /// results of trySendEvent
+    public static final int SEND_QUEUED = 0;
+    /// native command queue or the send queue of the destination is full, the event is not sent
+    public static final int SEND_QUEUE_FULL = 1;
+    /// the library is not started
+    public static final int SEND_NOT_STARTED = 2;
+    /// the event can't be parsed or isn't sent by the platform
+    public static final int SEND_INVALID = 3;
+
     // Load and initialize native Kaonic library
     static {
         System.loadLibrary("kaonic");
@@ -22,8 +36,29 @@ public class KaonicLib {
     public interface EventListener {
         void onEventReceived(@NonNull String jsonData);
 
-        void onFileChunkRequest(@NonNull String fileId, int chunkSize);
-        void onFileChunkReceived(@NonNull String fileId, @NonNull byte[] bytes);
+        /**
+         * Events coalesced by native side, JSON array of event objects.
+         * By default every event of the batch is passed to {@link #onEventReceived(String)} in order
+         */
+        default void onEventBatchReceived(@NonNull String jsonArray) {
+            try {
+                EventBatch.forEach(jsonArray, this::onEventReceived);
+            } catch (IOException e) {
+                Log.e("KaonicLib", "Invalid event batch", e);
+            }
+        }
+
+        /**
+         * @param chunkSize   size of the requested chunk, adapted by the native side to the link
+         * @param retransmits chunk retransmits of the transfer so far
+         * @param ackRttMs    smoothed chunk ack round trip, 0 until the first ack
+         */
+        void onFileChunkRequest(@NonNull String fileId, int chunkSize, int retransmits, int ackRttMs);
+        /**
+         * @param offset position of the chunk in the file, -1 if the sender doesn't
+         *               provide it and the chunk follows the previous one
+         */
+        void onFileChunkReceived(@NonNull String fileId, long offset, @NonNull byte[] bytes);
 
         void onBroadcastReceived(@NonNull String address, @NonNull String id,
                                  @NonNull String topic, @NonNull byte[] bytes);
@@ -37,21 +72,56 @@ public class KaonicLib {
 
     private final long pointer;
     private EventListener eventListener;
+    /// read by native callback threads
+    private volatile CallbackDispatcher callbackDispatcher = new CallbackDispatcher();
+    private final SparseArray<Session> sessions = new SparseArray<>();
+    /// last unknown session a callback was dropped for, guarded by sessions
+    private int droppedSession = INVALID_SESSION;
+
+    private KaonicLib(Context context, KaonicRuntimeConfig runtimeConfig) throws Exception {
+        if (runtimeConfig.workerThreads < 0 || runtimeConfig.stackSizeBytes < 0) {
+            throw new IllegalArgumentException("workerThreads and stackSizeBytes must not be negative");
+        }
 
-    private KaonicLib(Context context) throws Exception {
-
-        pointer = this.nativeInit(context);
+        pointer = this.nativeInit(context, runtimeConfig.workerThreads, runtimeConfig.currentThread,
+                runtimeConfig.threadNamePrefix, runtimeConfig.stackSizeBytes);
 
-        Log.i(TAG, "KaonicLib initialized");
+        Log.i(TAG, "KaonicLib initialized with " + getWorkerThreadCount() + " runtime workers");
+        if (runtimeConfig.currentThread) {
+            Log.w(TAG, "Current thread runtime: callbacks block all native work until they return");
+        }
     }
 
     public static synchronized KaonicLib getInstance(Context context) throws Exception {
+        return getInstance(context, new KaonicRuntimeConfig());
+    }
+
+    /**
+     * @param runtimeConfig used only when the instance is created by this call
+     */
+    public static synchronized KaonicLib getInstance(Context context,
+                                                     @NonNull KaonicRuntimeConfig runtimeConfig) throws Exception {
         if (instance == null) {
-            instance = new KaonicLib(context);
+            instance = new KaonicLib(context, runtimeConfig);
         }
         return instance;
     }
 
+    /// worker threads of the native runtime, 1 in current thread mode
+    public int getWorkerThreadCount() {
+        return nativeGetWorkerThreads(this.pointer);
+    }
+
+    /// native runtime threads alive now, including the blocking pool
+    public int getRuntimeThreadCount() {
+        return nativeGetRuntimeThreads(this.pointer);
+    }
+
+    /// native threads permanently attached to the JVM to deliver callbacks
+    public int getAttachedThreadCount() {
+        return nativeGetAttachedThreads();
+    }
+
     public void setEventListener(@NonNull EventListener eventListener) {
         this.eventListener = eventListener;
     }
@@ -60,6 +130,58 @@ public class KaonicLib {
         this.eventListener = null;
     }
 
+    /**
+     * Replace dispatcher used to deliver file and broadcast callbacks.
+     * Previous dispatcher is shut down
+     */
+    public void setCallbackDispatcher(@NonNull CallbackDispatcher callbackDispatcher) {
+        CallbackDispatcher previous = this.callbackDispatcher;
+        this.callbackDispatcher = callbackDispatcher;
+        previous.shutdown();
+    }
+
+    /**
+     * Run task on the callback dispatcher, after the file and broadcast callbacks already queued
+     * for the key. Listeners use it for work that sends to native: events are delivered on the
+     * native runtime thread, which must not wait for the command queue
+     */
+    public void dispatch(@NonNull String key, @NonNull Runnable task) {
+        callbackDispatcher.dispatch(key, task);
+    }
+
+    /**
+     * Deliver native events in batches: events arriving within windowMs (up to maxEvents)
+     * are passed in one onEventBatchReceived call. windowMs = 0 disables batching.
+     * File start, resume and end events are always delivered on their own, ahead of their chunks.
+     * Applied on the next start
+     */
+    public void setEventBatching(int windowMs, int maxEvents) {
+        nativeSetEventBatching(this.pointer, windowMs, maxEvents);
+    }
+
+    /**
+     * Capacity of the native command queue that trySendEvent rejects on when it is full.
+     * Applied on the next start
+     */
+    public void setCommandQueueSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        nativeSetCommandQueueSize(this.pointer, size);
+    }
+
+    /**
+     * Messages, chat creations and call signals one contact can have waiting for delivery,
+     * the one being sent included. trySendEvent rejects more, sendMessage has them reported
+     * as rejected by MESSAGE_STATUS. Applied on the next start
+     */
+    public void setDestinationQueueSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        nativeSetDestinationQueueSize(this.pointer, size);
+    }
+
     public void start(String secret, String startConfig) {
         if (secret != null) {
             nativeStart(this.pointer, secret, startConfig);
@@ -76,6 +198,16 @@ public class KaonicLib {
         }
     }
 
+    /**
+     * Queue event without blocking the caller, unlike sendMessage which waits for queue space
+     *
+     * @return {@link #SEND_QUEUED} or the reason the event is dropped
+     */
+    public int trySendEvent(String eventJson) {
+        if (eventJson == null) return SEND_INVALID;
+        return nativeTrySendEvent(this.pointer, eventJson);
+    }
+
     public void createChat(String eventJson) {
         if (eventJson != null) {
             nativeSendEvent(this.pointer, eventJson);
@@ -94,6 +226,16 @@ public class KaonicLib {
         }
     }
 
+    /**
+     * Send remaining bytes of a direct buffer, the buffer position is not changed
+     */
+    public void sendBroadcast(String id, String topic, @NonNull ByteBuffer data) {
+        if (id != null && topic != null) {
+            requireDirect(data);
+            nativeSendBroadcastBuffer(this.pointer, id, topic, data, data.position(), data.remaining());
+        }
+    }
+
     public String generateSecret() {
         return nativeGenerate(this.pointer);
     }
@@ -112,6 +254,55 @@ public class KaonicLib {
         }
     }
 
+    /**
+     * Register call or file transfer on native side.
+     * Handle based send methods and callbacks skip address/id string conversion per frame/chunk.
+     * Opening an id twice returns the same handle, each open must be matched by {@link #closeSession(int)}
+     *
+     * @param id call id or file id
+     * @return session handle or {@link #INVALID_SESSION}
+     */
+    public int openSession(@NonNull String address, @NonNull String id) {
+        final int session = nativeOpenSession(this.pointer, address, id);
+        if (session != INVALID_SESSION) {
+            synchronized (sessions) {
+                final Session existing = sessions.get(session);
+                if (existing != null) {
+                    existing.references++;
+                } else {
+                    sessions.put(session, new Session(address, id));
+                }
+            }
+        }
+        return session;
+    }
+
+    public void closeSession(int session) {
+        nativeCloseSession(this.pointer, session);
+        synchronized (sessions) {
+            final Session existing = sessions.get(session);
+            if (existing != null && --existing.references == 0) {
+                sessions.remove(session);
+            }
+        }
+    }
+
+    /**
+     * Send remaining bytes of a direct buffer to the call session
+     */
+    public void sendCallAudio(int session, @NonNull ByteBuffer data) {
+        requireDirect(data);
+        nativeSendAudioSession(this.pointer, session, data, data.position(), data.remaining());
+    }
+
+    /**
+     * Send remaining bytes of a direct buffer to the call session
+     */
+    public void sendCallVideo(int session, @NonNull ByteBuffer data) {
+        requireDirect(data);
+        nativeSendVideoSession(this.pointer, session, data, data.position(), data.remaining());
+    }
+
     public void sendCallAudio(String address, String callId, byte[] data) {
             nativeSendAudio(this.pointer, address,callId,data);
     }
@@ -120,9 +311,33 @@ public class KaonicLib {
             nativeSendVideo(this.pointer, address,callId,data);
     }
 
+    /**
+     * Send remaining bytes of a direct buffer, native side reads the memory in place.
+     * The buffer position is not changed and the buffer can be reused right after the call
+     */
+    public void sendCallAudio(String address, String callId, @NonNull ByteBuffer data) {
+        requireDirect(data);
+        nativeSendAudioBuffer(this.pointer, address, callId, data, data.position(), data.remaining());
+    }
+
+    /**
+     * Send remaining bytes of a direct buffer, the buffer position is not changed
+     */
+    public void sendCallVideo(String address, String callId, @NonNull ByteBuffer data) {
+        requireDirect(data);
+        nativeSendVideoBuffer(this.pointer, address, callId, data, data.position(), data.remaining());
+    }
+
     private static native void libraryInit();
 
-    private native long nativeInit(Context context);
+    private native long nativeInit(Context context, int workerThreads, boolean currentThread,
+                                   String threadNamePrefix, int stackSize);
+
+    private native int nativeGetWorkerThreads(long ptr);
+
+    private native int nativeGetRuntimeThreads(long ptr);
+
+    private native int nativeGetAttachedThreads();
 
     private native void nativeDestroy(long ptr);
 
@@ -138,6 +353,14 @@ public class KaonicLib {
 
     private native void nativeSendEvent(long ptr, String eventJson);
 
+    private native int nativeTrySendEvent(long ptr, String eventJson);
+
+    private native void nativeSetCommandQueueSize(long ptr, int size);
+
+    private native void nativeSetDestinationQueueSize(long ptr, int size);
+
+    private native void nativeSetEventBatching(long ptr, int windowMs, int maxEvents);
+
     private native void nativeSendAudio(long ptr, String address, String callId, byte[] data);
 
     private native void nativeSendVideo(long ptr, String address, String callId, byte[] data);
@@ -146,6 +369,31 @@ public class KaonicLib {
 
     private native void nativeSendBroadcast(long ptr, String id, String topic, byte[] data);
 
+    private native void nativeSendAudioBuffer(long ptr, String address, String callId,
+                                              ByteBuffer data, int offset, int length);
+
+    private native void nativeSendVideoBuffer(long ptr, String address, String callId,
+                                              ByteBuffer data, int offset, int length);
+
+    private native void nativeSendFileChunkBuffer(long ptr, String address, String id,
+                                                  ByteBuffer data, int offset, int length);
+
+    private native void nativeSendBroadcastBuffer(long ptr, String id, String topic,
+                                                  ByteBuffer data, int offset, int length);
+
+    private native int nativeOpenSession(long ptr, String address, String id);
+
+    private native void nativeCloseSession(long ptr, int session);
+
+    private native void nativeSendAudioSession(long ptr, int session, ByteBuffer data, int offset, int length);
+
+    private native void nativeSendVideoSession(long ptr, int session, ByteBuffer data, int offset, int length);
+
+    private native void nativeSendFileChunkSession(long ptr, int session, byte[] data);
+
+    private native void nativeSendFileChunkSessionBuffer(long ptr, int session,
+                                                         ByteBuffer data, int offset, int length);
+
     @Keep
     private void receive(String json) {
         if (eventListener != null && json != null) {
@@ -153,11 +401,28 @@ public class KaonicLib {
         }
     }
 
+    @Keep
+    private void receiveBatch(String json) {
+        final EventListener listener = eventListener;
+        if (listener != null && json != null) {
+            listener.onEventBatchReceived(json);
+        }
+    }
+
     @Keep
     public void feedAudio(String address, String callId, byte[] buffer) {
         eventListener.onAudioChunkReceived(address, callId, buffer);
     }
 
+    @Keep
+    private void feedAudioSession(int session, byte[] buffer) {
+        final Session info = getSession(session);
+        final EventListener listener = eventListener;
+        if (info != null && listener != null) {
+            listener.onAudioChunkReceived(info.address, info.id, buffer);
+        }
+    }
+
     @Keep
     public void feedVideo(String address, String callId, byte[] buffer) {
         eventListener.onVideoChunkReceived(address, callId, buffer);
@@ -171,37 +436,104 @@ public class KaonicLib {
         nativeSendFileChunk(this.pointer, address, fileId, data);
     }
 
+    /**
+     * Send remaining bytes of a direct buffer as file chunk, the buffer position is not changed
+     */
+    public void sendFileChunk(String address, String fileId, @NonNull ByteBuffer data) {
+        requireDirect(data);
+        nativeSendFileChunkBuffer(this.pointer, address, fileId, data, data.position(), data.remaining());
+    }
+
+    /**
+     * Send file data chunk to the file session
+     */
+    public void sendFileChunk(int session, @NonNull byte[] data) {
+        nativeSendFileChunkSession(this.pointer, session, data);
+    }
+
+    /**
+     * Send remaining bytes of a direct buffer as file chunk to the file session
+     */
+    public void sendFileChunk(int session, @NonNull ByteBuffer data) {
+        requireDirect(data);
+        nativeSendFileChunkSessionBuffer(this.pointer, session, data, data.position(), data.remaining());
+    }
+
+    @Keep
+    private void requestFileChunk(String address, String fileId, int chunkSize, int retransmits, int ackRttMs) {
+        final EventListener listener = eventListener;
+        if (listener != null) {
+            callbackDispatcher.dispatch(fileId,
+                    () -> listener.onFileChunkRequest(fileId, chunkSize, retransmits, ackRttMs));
+        }
+    }
+
+    @Keep
+    private void receiveFileChunk(String address, String fileId, long offset, byte[] data) {
+        final EventListener listener = eventListener;
+        if (listener != null) {
+            callbackDispatcher.dispatch(fileId, () -> listener.onFileChunkReceived(fileId, offset, data));
+        }
+    }
+
     @Keep
-    private void requestFileChunk(String address, String fileId, int chunkSize) {
-        if (eventListener != null) {
-            // NOTE: onFileChunkRequest should be invoked from different thread
-            // TODO: Optimize thread usage
-            new Handler(Looper.getMainLooper()).post(() -> {
-                eventListener.onFileChunkRequest(fileId, chunkSize);
-            });
+    private void requestFileChunkSession(int session, int chunkSize, int retransmits, int ackRttMs) {
+        final Session info = getSession(session);
+        if (info != null) {
+            requestFileChunk(info.address, info.id, chunkSize, retransmits, ackRttMs);
         }
     }
 
     @Keep
-    private void receiveFileChunk(String address, String fileId, byte[] data) {
-        if (eventListener != null) {
-            // NOTE: onFileChunkReceived should be invoked from different thread
-            // TODO: Optimize thread usage
-            new Handler(Looper.getMainLooper()).post(() -> {
-                eventListener.onFileChunkReceived(fileId, data);
-            });
+    private void receiveFileChunkSession(int session, long offset, byte[] data) {
+        final Session info = getSession(session);
+        if (info != null) {
+            receiveFileChunk(info.address, info.id, offset, data);
         }
     }
 
     @Keep
     private void receiveBroadcast(String address, String id, String topic, byte[] data) {
-        if (eventListener != null) {
-            // NOTE: onBroadcastReceived should be invoked from different thread
-            // TODO: Optimize thread usage
-            new Handler(Looper.getMainLooper()).post(() -> {
-                eventListener.onBroadcastReceived(address, id, topic, data);
-            });
+        final EventListener listener = eventListener;
+        if (listener != null) {
+            // a topic that falls behind loses broadcasts instead of delaying the runtime
+            callbackDispatcher.tryDispatch(topic,
+                    () -> listener.onBroadcastReceived(address, id, topic, data));
+        }
+    }
+
+    private Session getSession(int session) {
+        final Session info;
+        boolean firstDrop = false;
+        synchronized (sessions) {
+            info = sessions.get(session);
+            if (info == null && droppedSession != session) {
+                // frames in flight keep arriving after a close, log them once
+                droppedSession = session;
+                firstDrop = true;
+            }
+        }
+        if (firstDrop) {
+            Log.w(TAG, "Callbacks for unknown session " + session + " dropped");
+        }
+        return info;
+    }
+
+    private static void requireDirect(ByteBuffer data) {
+        if (!data.isDirect()) {
+            throw new IllegalArgumentException("Only direct ByteBuffer is supported");
         }
     }
 
+    private static final class Session {
+        final String address;
+        final String id;
+        /// opens not matched by a close yet, guarded by sessions
+        int references = 1;
+
+        Session(String address, String id) {
+            this.address = address;
+            this.id = id;
+        }
+    }
 }
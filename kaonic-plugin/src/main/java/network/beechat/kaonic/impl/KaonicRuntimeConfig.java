@@ -0,0 +1,43 @@
+package network.beechat.kaonic.impl;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Settings of the native async runtime, applied when the library instance is created.
+ * Every runtime thread that delivers a callback stays attached to the JVM, so the
+ * thread count is kept close to the number of cores.
+ */
+public class KaonicRuntimeConfig {
+    public static final String DEFAULT_THREAD_NAME_PREFIX = "kaonic-rt";
+
+    /// worker threads of the multi thread runtime, 0 uses one per available core
+    public int workerThreads = 0;
+    /**
+     * Run all native tasks on one thread, workerThreads is ignored.
+     * Callbacks are delivered on that thread and nothing else runs natively until they
+     * return: no acks, retransmits or radio traffic. Listeners must hand work off right away
+     * and never wait for the library from a callback, it would wait for the thread it runs on.
+     * The {@link CallbackDispatcher} never blocks that thread, its queues grow instead
+     */
+    public boolean currentThread = false;
+    /// native thread names are the prefix followed by a number
+    @NonNull
+    public String threadNamePrefix = DEFAULT_THREAD_NAME_PREFIX;
+    /// stack size of the runtime threads in bytes, 0 keeps the runtime default (2 MiB)
+    public int stackSizeBytes = 0;
+
+    public KaonicRuntimeConfig() {
+    }
+
+    public KaonicRuntimeConfig(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /// one thread for everything, for low end devices and tests, see {@link #currentThread}
+    @NonNull
+    public static KaonicRuntimeConfig currentThread() {
+        final KaonicRuntimeConfig config = new KaonicRuntimeConfig();
+        config.currentThread = true;
+        return config;
+    }
+}
@@ -0,0 +1,39 @@
+package network.beechat.kaonic.models;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Delivery of acknowledged events to the contact in address.
+ * Reported at most once a second per contact and right away when an event is given up
+ */
+@Keep
+public class DeliveryStatsEvent extends KaonicEventData {
+    /// smoothed ack round trip, 0 until the first sample
+    @JsonProperty("srtt_ms")
+    public final int srttMs;
+    @JsonProperty("rttvar_ms")
+    public final int rttvarMs;
+    /// retransmit timeout of the next event
+    @JsonProperty("timeout_ms")
+    public final int timeoutMs;
+    @JsonProperty("delivered")
+    public final int delivered;
+    @JsonProperty("retransmits")
+    public final int retransmits;
+    /// events not acknowledged after the last attempt
+    @JsonProperty("failed")
+    public final int failed;
+
+    @Keep
+    public DeliveryStatsEvent() {
+        super("", 0);
+        this.srttMs = 0;
+        this.rttvarMs = 0;
+        this.timeoutMs = 0;
+        this.delivered = 0;
+        this.retransmits = 0;
+        this.failed = 0;
+    }
+}
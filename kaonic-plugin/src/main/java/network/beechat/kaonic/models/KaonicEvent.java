@@ -3,8 +3,10 @@ package network.beechat.kaonic.models;
 import androidx.annotation.Keep;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
+@JsonDeserialize(using = KaonicEventDeserializer.class)
 @Keep
 public class KaonicEvent<T extends KaonicEventData> {
     public final String type;
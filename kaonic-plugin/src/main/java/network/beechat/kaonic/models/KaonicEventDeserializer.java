@@ -0,0 +1,112 @@
+package network.beechat.kaonic.models;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.beechat.kaonic.models.calls.CallEventData;
+import network.beechat.kaonic.models.messages.ChatCreateEvent;
+import network.beechat.kaonic.models.messages.MessageFileEvent;
+import network.beechat.kaonic.models.messages.MessageFileEndEvent;
+import network.beechat.kaonic.models.messages.MessageFileRejectEvent;
+import network.beechat.kaonic.models.messages.MessageFileResumeEvent;
+import network.beechat.kaonic.models.messages.MessageFileStartEvent;
+import network.beechat.kaonic.models.messages.MessageFileStatusEvent;
+import network.beechat.kaonic.models.messages.MessageLocationEvent;
+import network.beechat.kaonic.models.messages.MessageStatusEvent;
+import network.beechat.kaonic.models.messages.MessageTextEvent;
+
+/**
+ * Decodes {@link KaonicEvent} in one pass: {@code data} is bound straight to the
+ * {@link KaonicEventData} subclass selected by {@code type}.
+ * If {@code data} comes before {@code type} it is buffered as tokens, never as a string.
+ * Events of unknown type are decoded with {@code data == null}.
+ */
+public class KaonicEventDeserializer extends JsonDeserializer<KaonicEvent<?>> {
+    private static final Map<String, Class<? extends KaonicEventData>> dataTypes = new HashMap<>();
+    /// resolved once per data type instead of on every event
+    private final Map<Class<?>, JsonDeserializer<Object>> deserializers = new ConcurrentHashMap<>();
+
+    static {
+        dataTypes.put(KaonicEventType.CONTACT_FOUND, ContactFoundEvent.class);
+        dataTypes.put(KaonicEventType.SEND_QUEUE, SendQueueEvent.class);
+        dataTypes.put(KaonicEventType.DELIVERY_STATS, DeliveryStatsEvent.class);
+        dataTypes.put(KaonicEventType.CHAT_CREATE, ChatCreateEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_TEXT, MessageTextEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_LOCATION, MessageLocationEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_START, MessageFileStartEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_RESUME, MessageFileResumeEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_END, MessageFileEndEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_REJECT, MessageFileRejectEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_STATUS, MessageFileStatusEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE, MessageFileEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_STATUS, MessageStatusEvent.class);
+        dataTypes.put(KaonicEventType.CALL_INVOKE, CallEventData.class);
+        dataTypes.put(KaonicEventType.CALL_ANSWER, CallEventData.class);
+        dataTypes.put(KaonicEventType.CALL_REJECT, CallEventData.class);
+    }
+
+    @Override
+    public KaonicEvent<?> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            token = parser.nextToken();
+        }
+
+        String type = null;
+        KaonicEventData data = null;
+        TokenBuffer bufferedData = null;
+
+        for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+            final String field = parser.currentName();
+            parser.nextToken();
+
+            if ("type".equals(field)) {
+                type = parser.getValueAsString();
+            } else if ("data".equals(field)) {
+                if (type != null) {
+                    data = readData(parser, context, type);
+                } else {
+                    bufferedData = context.bufferAsCopyOfValue(parser);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (type == null) {
+            return context.reportInputMismatch(KaonicEvent.class, "Missing event type");
+        }
+
+        if (bufferedData != null) {
+            try (JsonParser dataParser = bufferedData.asParser(parser.getCodec())) {
+                dataParser.nextToken();
+                data = readData(dataParser, context, type);
+            }
+        }
+
+        return new KaonicEvent<>(type, data);
+    }
+
+    private KaonicEventData readData(JsonParser parser, DeserializationContext context,
+                              String type) throws IOException {
+        final Class<? extends KaonicEventData> dataType = dataTypes.get(type);
+        if (dataType == null || parser.currentToken() == JsonToken.VALUE_NULL) {
+            parser.skipChildren();
+            return null;
+        }
+        JsonDeserializer<Object> deserializer = deserializers.get(dataType);
+        if (deserializer == null) {
+            deserializer = context.findRootValueDeserializer(context.constructType(dataType));
+            deserializers.put(dataType, deserializer);
+        }
+        return (KaonicEventData) deserializer.deserialize(parser, context);
+    }
+}
@@ -9,7 +9,15 @@ public interface KaonicEventType {
     String MESSAGE_TEXT = "Message";
     String MESSAGE_LOCATION = "location";
     String MESSAGE_FILE_START = "FileStart";
+    String MESSAGE_FILE_RESUME = "FileResume";
+    String MESSAGE_FILE_END = "FileEnd";
+    /// receiver can't take the file, sent only
+    String MESSAGE_FILE_REJECT = "FileReject";
+    /// outgoing file delivered or given up by the native side
+    String MESSAGE_FILE_STATUS = "FileStatus";
     String MESSAGE_FILE = "MessageFile";
+    /// delivery of an outgoing message, see {@link network.beechat.kaonic.models.messages.MessageStatusEvent}
+    String MESSAGE_STATUS = "MessageStatus";
     String[] messageEvents = new String[]{MESSAGE_TEXT, MESSAGE_LOCATION, MESSAGE_FILE,
             CHAT_CREATE};
 
@@ -25,5 +33,9 @@ public interface KaonicEventType {
     /// other
     String CONTACT_FOUND = "ContactFound";
     String BROADCAST = "Broadcast";
+    /// messages waiting for delivery to a contact, see {@link SendQueueEvent}
+    String SEND_QUEUE = "SendQueue";
+    /// ack round trip and retransmits of a contact, see {@link DeliveryStatsEvent}
+    String DELIVERY_STATS = "DeliveryStats";
 
 }
@@ -0,0 +1,21 @@
+package network.beechat.kaonic.models;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Number of messages waiting for delivery to the contact in address,
+ * reported when the queue of the contact changes. 0 means everything was delivered or given up
+ */
+@Keep
+public class SendQueueEvent extends KaonicEventData {
+    @JsonProperty("depth")
+    public final int depth;
+
+    @Keep
+    public SendQueueEvent() {
+        super("", 0);
+        this.depth = 0;
+    }
+}
@@ -0,0 +1,51 @@
+package network.beechat.kaonic.models.connection;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Retransmit timers of messages, calls and file events that wait for an ack.
+ * The first attempt waits for the round trip timeout estimated for the contact,
+ * every next attempt waits backoffFactor times longer, each timeout is spread by jitter
+ */
+@Keep
+public class RetransmitConfig {
+    /// timeout of the first attempt until the contact has a round trip estimate
+    @JsonProperty("initial_timeout_ms")
+    public int initialTimeoutMs = 1000;
+    @JsonProperty("min_timeout_ms")
+    public int minTimeoutMs = 300;
+    @JsonProperty("max_timeout_ms")
+    public int maxTimeoutMs = 16000;
+    @JsonProperty("backoff_factor")
+    public float backoffFactor = 2.0f;
+    /// 0.25 waits 75%..125% of the timeout, so nodes don't retry at the same time
+    @JsonProperty("jitter")
+    public float jitter = 0.25f;
+    @JsonProperty("max_attempts")
+    public int maxAttempts = 8;
+
+    @Keep
+    public RetransmitConfig() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value can't be used by the native timers
+     */
+    public void validate() {
+        if (initialTimeoutMs < 0 || minTimeoutMs < 0 || maxTimeoutMs < 0 || maxAttempts < 0) {
+            throw new IllegalArgumentException("timeouts and maxAttempts must not be negative");
+        }
+        if (minTimeoutMs > maxTimeoutMs) {
+            throw new IllegalArgumentException("minTimeoutMs must not exceed maxTimeoutMs");
+        }
+        // NaN fails both range checks
+        if (!(backoffFactor >= 1.0f) || Float.isInfinite(backoffFactor)) {
+            throw new IllegalArgumentException("backoffFactor must be finite and at least 1");
+        }
+        if (!(jitter >= 0.0f && jitter <= 1.0f)) {
+            throw new IllegalArgumentException("jitter must be in 0..1");
+        }
+    }
+}
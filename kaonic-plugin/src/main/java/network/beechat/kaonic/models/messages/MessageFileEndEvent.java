@@ -0,0 +1,36 @@
+package network.beechat.kaonic.models.messages;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * THIS IS INTERNAL LIB EVENT
+ * YOU WONT RECEIVE IT
+ * <p>
+ * Sent after the last chunk of a file with the hash of the whole file
+ */
+@Keep
+public class MessageFileEndEvent extends MessageEvent {
+    @JsonProperty("file_id")
+    public final String fileId;
+    /// hex SHA-256 of the file
+    @JsonProperty("sha256")
+    public final String sha256;
+
+    @Keep
+    public MessageFileEndEvent() {
+        super("", 0, "", "");
+        this.fileId = "";
+        this.sha256 = "";
+    }
+
+    public MessageFileEndEvent(@NonNull String address, long timestamp,
+                               String id, String chatUuid, String fileId,
+                               String sha256) {
+        super(address, timestamp, id, chatUuid);
+        this.fileId = fileId;
+        this.sha256 = sha256;
+    }
+}
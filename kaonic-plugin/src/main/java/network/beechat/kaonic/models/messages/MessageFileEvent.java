@@ -5,10 +5,31 @@ import androidx.annotation.NonNull;
 
 @Keep
 public class MessageFileEvent extends MessageEvent {
+    /// waits for a free slot behind other outgoing files
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_IN_PROGRESS = "in_progress";
+    /// all bytes transferred, the sender gave no hash to compare
+    public static final String STATUS_COMPLETED = "completed";
+    /// all bytes received and the SHA-256 matches the sender
+    public static final String STATUS_VERIFIED = "verified";
+    /// all bytes received but the SHA-256 differs, the file is corrupted
+    public static final String STATUS_CHECKSUM_MISMATCH = "checksum_mismatch";
+    /// transfer stopped before all bytes were delivered, it may be resumed later
+    public static final String STATUS_FAILED = "failed";
+
     public final @NonNull String fileName;
-    public final int fileSize;
-    public int fileSizeProcessed = 0;
+    public final long fileSize;
+    public long fileSizeProcessed = 0;
     public String path;
+    public String status = STATUS_IN_PROGRESS;
+    /// average rate of the current transfer attempt
+    public long bytesPerSecond = 0;
+    /// link state of sent files: current adaptive chunk size, chunk retransmits and ack round trip
+    public int chunkSize = 0;
+    public int retransmits = 0;
+    public int ackRttMs = 0;
+    /// bytes sent on the link for a compressed file, 0 if the file is sent as it is
+    public long compressedBytes = 0;
 
     @Keep
     public MessageFileEvent() {
@@ -20,7 +41,7 @@ public class MessageFileEvent extends MessageEvent {
 
     public MessageFileEvent(@NonNull String address, long timestamp,
                             String id, String chatUuid, @NonNull String fileName,
-                            int fileSize) {
+                            long fileSize) {
         super(address, timestamp, id, chatUuid);
         this.fileName = fileName;
         this.fileSize = fileSize;
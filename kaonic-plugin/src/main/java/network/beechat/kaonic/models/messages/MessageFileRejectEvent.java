@@ -0,0 +1,36 @@
+package network.beechat.kaonic.models.messages;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * THIS IS INTERNAL LIB EVENT
+ * YOU WONT RECEIVE IT
+ * <p>
+ * Sent by the receiver of a file it can't take, the sender stops the transfer.
+ * Sent by the sender of a file it can't read, the receiver drops the file
+ */
+@Keep
+public class MessageFileRejectEvent extends MessageEvent {
+    @JsonProperty("file_id")
+    public final String fileId;
+    @JsonProperty("reason")
+    public final String reason;
+
+    @Keep
+    public MessageFileRejectEvent() {
+        super("", 0, "", "");
+        this.fileId = "";
+        this.reason = "";
+    }
+
+    public MessageFileRejectEvent(@NonNull String address, long timestamp,
+                                  String id, String chatUuid, String fileId,
+                                  String reason) {
+        super(address, timestamp, id, chatUuid);
+        this.fileId = fileId;
+        this.reason = reason;
+    }
+}
@@ -0,0 +1,35 @@
+package network.beechat.kaonic.models.messages;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * THIS IS INTERNAL LIB EVENT
+ * YOU WONT RECEIVE IT
+ * <p>
+ * Sent by the receiver of an interrupted file to continue it from offset
+ */
+@Keep
+public class MessageFileResumeEvent extends MessageEvent {
+    @JsonProperty("file_id")
+    public final String fileId;
+    @JsonProperty("offset")
+    public final long offset;
+
+    @Keep
+    public MessageFileResumeEvent() {
+        super("", 0, "", "");
+        this.fileId = "";
+        this.offset = 0;
+    }
+
+    public MessageFileResumeEvent(@NonNull String address, long timestamp,
+                                  String id, String chatUuid, String fileId,
+                                  long offset) {
+        super(address, timestamp, id, chatUuid);
+        this.fileId = fileId;
+        this.offset = offset;
+    }
+}
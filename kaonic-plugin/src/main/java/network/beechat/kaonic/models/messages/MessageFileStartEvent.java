@@ -16,7 +16,22 @@ public class MessageFileStartEvent extends MessageEvent {
     @JsonProperty("file_name")
     public final String fileName;
     @JsonProperty("file_size")
-    public final int fileSize;
+    public final long fileSize;
+    /// number of chunks kept in flight by the sender, 1 is stop-and-wait
+    @JsonProperty("window")
+    public int window = 1;
+    /// position the transfer continues from, not 0 when it is resumed
+    @JsonProperty("offset")
+    public long offset = 0;
+    /// sender follows the last chunk with a {@link MessageFileEndEvent}
+    @JsonProperty("checksum")
+    public boolean checksum = false;
+    /// upper limit of the chunk size adapted by the sender, 0 for the native limit
+    @JsonProperty("chunk_size")
+    public int chunkSize = 0;
+    /// "deflate" if the chunks carry a compressed stream, empty for the file as it is
+    @JsonProperty("compression")
+    public String compression = "";
 
     @Keep
     public MessageFileStartEvent() {
@@ -28,7 +43,7 @@ public class MessageFileStartEvent extends MessageEvent {
 
     public MessageFileStartEvent(@NonNull String address, long timestamp,
                                  String id, String chatUuid, String fileName,
-                                 int fileSize) {
+                                 long fileSize) {
         super(address, timestamp, id, chatUuid);
         this.fileId = id;
         this.fileName = fileName;
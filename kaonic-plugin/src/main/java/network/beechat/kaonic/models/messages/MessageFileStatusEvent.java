@@ -0,0 +1,34 @@
+package network.beechat.kaonic.models.messages;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import network.beechat.kaonic.models.KaonicEventData;
+
+/**
+ * THIS IS INTERNAL LIB EVENT
+ * YOU WONT RECEIVE IT
+ * <p>
+ * Outcome of an outgoing file reported by the native side once the last chunk is
+ * acknowledged or the transfer is given up
+ */
+@Keep
+public class MessageFileStatusEvent extends KaonicEventData {
+    public static final String STATE_COMPLETED = "completed";
+    public static final String STATE_FAILED = "failed";
+    /// receiver refused the file, resuming it won't help
+    public static final String STATE_REJECTED = "rejected";
+
+    @JsonProperty("file_id")
+    public final String fileId;
+    @JsonProperty("state")
+    public final String state;
+
+    @Keep
+    public MessageFileStatusEvent() {
+        super("", 0);
+        this.fileId = "";
+        this.state = "";
+    }
+}
@@ -8,6 +8,13 @@ public class MessageLocationEvent extends MessageEvent {
     public final float latitude;
     public final float longitude;
 
+    @Keep
+    public MessageLocationEvent() {
+        super("", 0, "", "");
+        this.latitude = 0;
+        this.longitude = 0;
+    }
+
     public MessageLocationEvent(@NonNull String address, long timestamp,
                                 String id, String chatUuid, float latitude,
                                 float longitude) {
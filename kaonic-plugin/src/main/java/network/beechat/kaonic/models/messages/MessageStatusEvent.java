@@ -0,0 +1,45 @@
+package network.beechat.kaonic.models.messages;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import network.beechat.kaonic.models.KaonicEventData;
+
+/**
+ * Delivery of an outgoing message to the contact in address.
+ * Reported for text messages, chat creation (id is the chat id), call signals (id is the event id)
+ * and file starts (id is the file id)
+ */
+@Keep
+public class MessageStatusEvent extends KaonicEventData {
+    /// waiting behind other messages to the contact
+    public static final String STATE_QUEUED = "queued";
+    /// first attempt is sent
+    public static final String STATE_SENT = "sent";
+    public static final String STATE_ACKED = "acked";
+    /// no ack after the last attempt
+    public static final String STATE_FAILED = "failed";
+    /// too many messages are waiting for the contact, this one is dropped without sending
+    public static final String STATE_REJECTED = "rejected";
+
+    @JsonProperty("id")
+    public final String id;
+    @JsonProperty("state")
+    public final String state;
+    /// retransmits until acked or given up
+    @JsonProperty("retries")
+    public final int retries;
+    /// time from the first attempt to the ack, 0 unless acked
+    @JsonProperty("ack_rtt_ms")
+    public final int ackRttMs;
+
+    @Keep
+    public MessageStatusEvent() {
+        super("", 0);
+        this.id = "";
+        this.state = "";
+        this.retries = 0;
+        this.ackRttMs = 0;
+    }
+}
@@ -0,0 +1,25 @@
+package network.beechat.kaonic;
+
+import org.junit.Assume;
+
+/**
+ * Timing runs and their reports are off in the default unit test run,
+ * {@code ./gradlew test -Pkaonic.benchmark} turns them on
+ */
+public final class Benchmarks {
+    public static final boolean ENABLED = Boolean.getBoolean("kaonic.benchmark");
+
+    private Benchmarks() {
+    }
+
+    /// skips the calling test unless benchmarks are enabled
+    public static void assumeEnabled() {
+        Assume.assumeTrue("benchmark, run with -Pkaonic.benchmark", ENABLED);
+    }
+
+    public static void report(String format, Object... args) {
+        if (ENABLED) {
+            System.out.printf(format, args);
+        }
+    }
+}
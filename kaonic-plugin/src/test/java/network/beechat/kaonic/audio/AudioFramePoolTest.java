@@ -0,0 +1,149 @@
+package network.beechat.kaonic.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import network.beechat.kaonic.Benchmarks;
+
+public class AudioFramePoolTest {
+    private static final int FRAME_SIZE = 768;
+    private static final int POOL_SIZE = 8;
+    private static final int FRAMES = 200_000;
+
+    @Test
+    public void reusesReleasedFrames() {
+        final AudioFramePool pool = new AudioFramePool(FRAME_SIZE, POOL_SIZE);
+
+        for (int i = 0; i < 1000; i++) {
+            final AudioFrame frame = pool.acquire();
+            assertEquals(0, frame.getLength());
+            assertEquals(FRAME_SIZE, frame.buffer.capacity());
+            frame.setLength(FRAME_SIZE / 2);
+            frame.release();
+        }
+
+        assertEquals(POOL_SIZE, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void allocatesAndCountsWhenExhausted() {
+        final AudioFramePool pool = new AudioFramePool(FRAME_SIZE, 2);
+
+        final AudioFrame first = pool.acquire();
+        final AudioFrame second = pool.acquire();
+        final AudioFrame third = pool.acquire();
+        assertNotSame(first, third);
+        assertNotSame(second, third);
+        assertEquals(3, pool.getAllocatedCount());
+
+        first.release();
+        second.release();
+        // pool is full again, the extra frame is dropped
+        third.release();
+        pool.acquire();
+        assertEquals(3, pool.getAllocatedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDoubleRelease() {
+        final AudioFrame frame = new AudioFramePool(FRAME_SIZE, 1).acquire();
+        frame.release();
+        frame.release();
+    }
+
+    /**
+     * Recorder thread hands every frame to a consumer thread which releases it, like
+     * AudioService with an asynchronous callback. Once the pool is warm the recorder must
+     * not allocate per frame, a copy into a fresh byte[] would cost the frame size.
+     */
+    @Test
+    public void steadyStateRecordingDoesNotAllocate() throws InterruptedException {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final boolean measurable = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+
+        final AudioFramePool pool = new AudioFramePool(FRAME_SIZE, POOL_SIZE);
+        // queued frames plus one held by each thread fit into the pool
+        final ArrayBlockingQueue<AudioFrame> handOff = new ArrayBlockingQueue<>(POOL_SIZE - 2);
+        final AtomicReference<Long> allocatedBytes = new AtomicReference<>();
+
+        final Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < FRAMES; i++) {
+                    handOff.take().release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+
+        final Thread recorder = new Thread(() -> {
+            try {
+                // warm up outside of the measurement
+                for (int i = 0; i < FRAMES / 10; i++) {
+                    record(pool, handOff);
+                }
+                final long before = measurable ? threadAllocatedBytes(bean) : 0;
+                for (int i = FRAMES / 10; i < FRAMES; i++) {
+                    record(pool, handOff);
+                }
+                if (measurable) {
+                    allocatedBytes.set(threadAllocatedBytes(bean) - before);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        recorder.start();
+        recorder.join();
+        consumer.join();
+
+        assertEquals(POOL_SIZE, pool.getAllocatedCount());
+
+        if (allocatedBytes.get() != null) {
+            final double perFrame = allocatedBytes.get() / (double) (FRAMES - FRAMES / 10);
+            Benchmarks.report("recorder allocated %.2f bytes per frame%n", perFrame);
+            assertTrue("recorder allocates " + perFrame + " bytes per frame", perFrame < 64);
+        }
+    }
+
+    @Test
+    public void byteArrayAdapterCopiesAndReleases() {
+        final AudioFramePool pool = new AudioFramePool(FRAME_SIZE, 1);
+        final AtomicReference<byte[]> received = new AtomicReference<>();
+        final AudioStreamCallback callback =
+                new ByteArrayAudioStreamCallback((size, buffer) -> received.set(buffer));
+
+        final AudioFrame frame = pool.acquire();
+        frame.setLength(3);
+        frame.buffer.put(0, (byte) 1).put(1, (byte) 2).put(2, (byte) 3);
+        callback.onResult(frame);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, received.get());
+        // released frame comes back from the pool without a new allocation
+        assertEquals(frame, pool.acquire());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    private static void record(AudioFramePool pool, ArrayBlockingQueue<AudioFrame> handOff)
+            throws InterruptedException {
+        final AudioFrame frame = pool.acquire();
+        frame.setLength(FRAME_SIZE);
+        frame.buffer.putShort(0, (short) 1);
+        handOff.put(frame);
+    }
+
+    private static long threadAllocatedBytes(ThreadMXBean bean) {
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
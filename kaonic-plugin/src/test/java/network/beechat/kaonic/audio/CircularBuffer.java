@@ -1,5 +1,9 @@
 package network.beechat.kaonic.audio;
 
+/**
+ * Synchronized byte ring the call audio used before {@link SpscRingBuffer}, kept as the
+ * reference the ring is checked and benchmarked against
+ */
 public class CircularBuffer {
     private final byte[] buffer;
     private int writePos = 0;
@@ -38,4 +42,4 @@ public class CircularBuffer {
     public synchronized boolean hasSufficientData(int requiredSize) {
         return availableData >= requiredSize;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package network.beechat.kaonic.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JitterBufferTest {
+    private static final int SAMPLE_RATE = 8000;
+    /// 40 ms minimal target depth of PCM16 at 8 kHz
+    private static final int MIN_TARGET_BYTES = 640;
+    private static final int BLOCK = 128;
+    private static final long NO_WAIT = 1_000_000L;
+
+    @Test
+    public void waitsForTargetDepthBeforePlaying() {
+        final JitterBuffer buffer = new JitterBuffer(4096, SAMPLE_RATE);
+        final byte[] block = new byte[BLOCK];
+
+        buffer.put(pcm(1000, 480), 480);
+        assertEquals(0, buffer.read(block, BLOCK, NO_WAIT));
+
+        buffer.put(pcm(1000, 320), 320);
+        assertEquals(BLOCK, buffer.read(block, BLOCK, NO_WAIT));
+        assertEquals(1000, sample(block, 0));
+    }
+
+    @Test
+    public void concealsUnderrunWithFadingBlocks() {
+        final JitterBuffer buffer = new JitterBuffer(4096, SAMPLE_RATE);
+        final byte[] block = new byte[BLOCK];
+
+        buffer.put(pcm(1000, MIN_TARGET_BYTES), MIN_TARGET_BYTES);
+        for (int i = 0; i < MIN_TARGET_BYTES / BLOCK; i++) {
+            assertEquals(BLOCK, buffer.read(block, BLOCK, NO_WAIT));
+        }
+
+        int previous = 1000;
+        for (int i = 0; i < JitterBuffer.MAX_CONCEALED_BLOCKS; i++) {
+            assertEquals(BLOCK, buffer.read(block, BLOCK, NO_WAIT));
+            final int first = sample(block, 0);
+            final int last = sample(block, BLOCK / 2 - 1);
+            assertTrue("block " + i + " doesn't fade", first < previous && last <= first);
+            previous = first;
+        }
+
+        // concealment gave up, quiet until the target depth is buffered again
+        assertEquals(0, buffer.read(block, BLOCK, NO_WAIT));
+
+        final JitterBufferStats stats = buffer.getStats();
+        assertEquals(1, stats.underruns);
+        assertEquals(JitterBuffer.MAX_CONCEALED_BLOCKS, stats.concealedBlocks);
+        assertEquals(0, stats.depthMs);
+    }
+
+    @Test
+    public void dropsLateFramesAboveTwiceTheTarget() {
+        final JitterBuffer buffer = new JitterBuffer(4096, SAMPLE_RATE);
+
+        // 10 ms frames arriving back to back, nobody plays them
+        for (int i = 0; i < 40; i++) {
+            buffer.put(pcm(1000, 160), 160);
+        }
+
+        final JitterBufferStats stats = buffer.getStats();
+        assertTrue("no frames dropped", stats.droppedFrames > 0);
+        assertTrue(stats.targetDepthMs >= 40);
+        assertTrue("depth " + stats.depthMs + " above limit",
+                stats.depthMs <= stats.targetDepthMs * 2 + 10);
+    }
+
+    @Test
+    public void resetDropsAudioAndStats() {
+        final JitterBuffer buffer = new JitterBuffer(4096, SAMPLE_RATE);
+        final byte[] block = new byte[BLOCK];
+
+        for (int i = 0; i < 40; i++) {
+            buffer.put(pcm(1000, 160), 160);
+        }
+        assertEquals(BLOCK, buffer.read(block, BLOCK, NO_WAIT));
+
+        buffer.reset();
+        JitterBufferStats stats = buffer.getStats();
+        assertEquals(0, stats.droppedFrames);
+        assertEquals(0, stats.underruns);
+        assertEquals(40, stats.targetDepthMs);
+
+        // old call audio is gone and playback primes again
+        assertEquals(0, buffer.read(block, BLOCK, NO_WAIT));
+        assertEquals(0, buffer.getStats().depthMs);
+
+        buffer.put(pcm(-500, MIN_TARGET_BYTES), MIN_TARGET_BYTES);
+        assertEquals(BLOCK, buffer.read(block, BLOCK, NO_WAIT));
+        assertEquals(-500, sample(block, 0));
+    }
+
+    /**
+     * Network and player threads keep running while a third thread resets the buffer,
+     * the player must only ever see the constant sample the writer sends or its faded copies.
+     */
+    @Test
+    public void resetFromAnotherThreadKeepsFramesIntact() throws InterruptedException {
+        final JitterBuffer buffer = new JitterBuffer(4096, SAMPLE_RATE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong broken = new AtomicLong();
+        final AtomicLong played = new AtomicLong();
+
+        final Thread network = new Thread(() -> {
+            final byte[] frame = pcm(1234, 160);
+            while (running.get()) {
+                buffer.put(frame, frame.length);
+                Thread.yield();
+            }
+        });
+        final Thread player = new Thread(() -> {
+            final byte[] block = new byte[BLOCK];
+            while (running.get()) {
+                final int read = buffer.read(block, BLOCK, NO_WAIT);
+                for (int i = 0; i < read / 2; i++) {
+                    final int sample = sample(block, i);
+                    if (sample <= 0 || sample > 1234) broken.incrementAndGet();
+                }
+                played.addAndGet(read);
+            }
+        });
+        network.start();
+        player.start();
+
+        for (int i = 0; i < 200; i++) {
+            buffer.reset();
+            Thread.sleep(1);
+        }
+        running.set(false);
+        buffer.wakeUp();
+        network.join();
+        player.join();
+
+        assertEquals(0, broken.get());
+        assertTrue(played.get() > 0);
+    }
+
+    private static byte[] pcm(int value, int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length / 2; i++) {
+            data[2 * i] = (byte) (value & 0xFF);
+            data[2 * i + 1] = (byte) ((value >> 8) & 0xFF);
+        }
+        return data;
+    }
+
+    private static int sample(byte[] data, int index) {
+        return (short) ((data[2 * index] & 0xFF) | (data[2 * index + 1] << 8));
+    }
+}
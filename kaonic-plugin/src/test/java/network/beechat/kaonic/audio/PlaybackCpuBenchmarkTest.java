@@ -0,0 +1,152 @@
+package network.beechat.kaonic.audio;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import network.beechat.kaonic.Benchmarks;
+
+/**
+ * CPU cost of the call playback thread per call-minute.
+ * <p>
+ * A feeder thread writes 8 kHz PCM16 frames at real-time pace while a player thread drains
+ * them the way {@code AudioService.writeAudioData} does. The player's thread CPU time is
+ * scaled to one minute of call and printed, parking readers must stay far below the old
+ * polling loop that kept a core busy for the whole call. Thread CPU time is coarse on shared
+ * machines, so the assertions compare the number of player loop passes instead.
+ */
+public class PlaybackCpuBenchmarkTest {
+    private static final int SAMPLE_RATE = 8000;
+    /// same block sizes as AudioService
+    private static final int PLAYBACK_SIZE = 128;
+    private static final long PLAYBACK_WAIT_NANOS = 100_000_000L;
+    /// 256 bytes of PCM16 at 8 kHz = 16 ms of audio
+    private static final int FRAME_SIZE = 256;
+    private static final long FRAME_NANOS = FRAME_SIZE * 1_000_000_000L / (SAMPLE_RATE * 2);
+    private static final long CALL_NANOS = 2_000_000_000L;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private interface Player {
+        void write(byte[] data, int length);
+
+        /// one pass of the player loop, returns bytes "played"
+        int play(byte[] block);
+
+        void wakeUp();
+    }
+
+    @Test
+    public void playerCpuPerCallMinute() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        Assume.assumeTrue("thread CPU time not supported", threads.isCurrentThreadCpuTimeSupported());
+
+        final JitterBuffer jitterBuffer = new JitterBuffer(FRAME_SIZE * 64, SAMPLE_RATE);
+        final Cost jitter = measure("JitterBuffer.read", new Player() {
+            public void write(byte[] data, int length) {
+                jitterBuffer.put(data, length);
+            }
+
+            public int play(byte[] block) {
+                return jitterBuffer.read(block, block.length, PLAYBACK_WAIT_NANOS);
+            }
+
+            public void wakeUp() {
+                jitterBuffer.wakeUp();
+            }
+        });
+
+        final SpscRingBuffer ring = new SpscRingBuffer(FRAME_SIZE * 64);
+        final Cost await = measure("SpscRingBuffer.awaitData", new Player() {
+            public void write(byte[] data, int length) {
+                ring.write(data, 0, length);
+            }
+
+            public int play(byte[] block) {
+                if (!ring.awaitData(block.length, PLAYBACK_WAIT_NANOS)) return 0;
+                return ring.read(block, 0, block.length);
+            }
+
+            public void wakeUp() {
+                ring.wakeUp();
+            }
+        });
+
+        final CircularBuffer circular = new CircularBuffer(FRAME_SIZE * 64);
+        final Cost polling = measure("CircularBuffer polling", new Player() {
+            public void write(byte[] data, int length) {
+                circular.write(data, 0, length);
+            }
+
+            public int play(byte[] block) {
+                if (!circular.hasSufficientData(block.length)) return 0;
+                return circular.read(block, 0, block.length);
+            }
+
+            public void wakeUp() {
+            }
+        });
+
+        assertTrue("parked JitterBuffer player is close to polling", jitter.passes * 4 < polling.passes);
+        assertTrue("parked ring player is close to polling", await.passes * 4 < polling.passes);
+    }
+
+    private static final class Cost {
+        /// player thread CPU nanoseconds per call-minute
+        final long cpuNanos;
+        /// player loop passes per call-minute
+        final long passes;
+
+        Cost(long cpuNanos, long passes) {
+            this.cpuNanos = cpuNanos;
+            this.passes = passes;
+        }
+    }
+
+    private Cost measure(String name, final Player player) throws InterruptedException {
+        final AtomicBoolean playing = new AtomicBoolean(true);
+        final AtomicLong playerCpu = new AtomicLong();
+        final AtomicLong played = new AtomicLong();
+        final AtomicLong passes = new AtomicLong();
+
+        final Thread playerThread = new Thread(() -> {
+            final byte[] block = new byte[PLAYBACK_SIZE];
+            final long cpuStart = threads.getCurrentThreadCpuTime();
+            while (playing.get()) {
+                played.addAndGet(player.play(block));
+                passes.lazySet(passes.get() + 1);
+            }
+            playerCpu.set(threads.getCurrentThreadCpuTime() - cpuStart);
+        }, "Benchmark player");
+        playerThread.start();
+
+        final byte[] frame = new byte[FRAME_SIZE];
+        final long start = System.nanoTime();
+        long next = start;
+        while (next - start < CALL_NANOS) {
+            player.write(frame, frame.length);
+            next += FRAME_NANOS;
+            final long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        playing.set(false);
+        player.wakeUp();
+        playerThread.join();
+
+        final Cost cost = new Cost(playerCpu.get() * 60_000_000_000L / elapsed,
+                passes.get() * 60_000_000_000L / elapsed);
+        Benchmarks.report("%-26s %8.1f ms CPU, %10d passes per call-minute, %d bytes played%n",
+                name, cost.cpuNanos / 1_000_000.0, cost.passes, played.get());
+        return cost;
+    }
+}
@@ -0,0 +1,254 @@
+package network.beechat.kaonic.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import network.beechat.kaonic.Benchmarks;
+
+public class SpscRingBufferTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new SpscRingBuffer(1).capacity());
+        assertEquals(8, new SpscRingBuffer(5).capacity());
+        assertEquals(16, new SpscRingBuffer(16).capacity());
+        assertEquals(4096, new SpscRingBuffer(3200).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new SpscRingBuffer(0);
+    }
+
+    @Test
+    public void readsAcrossTheEndOfStorage() {
+        final SpscRingBuffer ring = new SpscRingBuffer(8);
+        final byte[] out = new byte[8];
+
+        ring.write(bytes(0, 6), 0, 6);
+        assertEquals(6, ring.read(out, 0, 6));
+
+        // starts at position 6 and wraps to the start of the storage
+        ring.write(bytes(10, 5), 0, 5);
+        assertEquals(5, ring.available());
+        assertEquals(5, ring.read(out, 0, 8));
+        assertArrayEquals(bytes(10, 5), Arrays.copyOf(out, 5));
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void overwritesOldestData() {
+        final SpscRingBuffer ring = new SpscRingBuffer(8);
+        final byte[] out = new byte[8];
+
+        ring.write(bytes(0, 6), 0, 6);
+        ring.write(bytes(6, 6), 0, 6);
+
+        // 12 bytes written into 8, the first 4 are gone
+        assertEquals(8, ring.available());
+        assertEquals(8, ring.read(out, 0, 8));
+        assertArrayEquals(bytes(4, 8), out);
+    }
+
+    @Test
+    public void keepsNewestTailOfOversizedWrite() {
+        final SpscRingBuffer ring = new SpscRingBuffer(4);
+        final byte[] out = new byte[4];
+
+        ring.write(bytes(0, 10), 0, 10);
+
+        assertEquals(4, ring.read(out, 0, 4));
+        assertArrayEquals(bytes(6, 4), out);
+    }
+
+    @Test
+    public void readOfEmptyRingReturnsZero() {
+        final SpscRingBuffer ring = new SpscRingBuffer(4);
+
+        assertEquals(0, ring.read(new byte[4], 0, 4));
+        assertFalse(ring.hasSufficientData(1));
+        assertFalse(ring.awaitData(1, 1_000_000L));
+    }
+
+    @Test
+    public void matchesCircularBufferOnRandomOperations() {
+        final int size = 64;
+        final Random random = new Random(42);
+        final SpscRingBuffer ring = new SpscRingBuffer(size);
+        final CircularBuffer reference = new CircularBuffer(size);
+        int next = 0;
+
+        for (int step = 0; step < 20_000; step++) {
+            if (random.nextBoolean()) {
+                final int length = random.nextInt(size * 2);
+                final byte[] data = bytes(next, length);
+                next += length;
+                ring.write(data, 0, length);
+                reference.write(data, 0, length);
+            } else {
+                final int length = random.nextInt(size + 8);
+                final byte[] fromRing = new byte[length];
+                final byte[] fromReference = new byte[length];
+                final int ringCount = ring.read(fromRing, 0, length);
+                final int referenceCount = reference.read(fromReference, 0, length);
+
+                assertEquals("step " + step, referenceCount, ringCount);
+                assertArrayEquals("step " + step, fromReference, fromRing);
+            }
+            assertEquals(reference.hasSufficientData(size / 2), ring.hasSufficientData(size / 2));
+        }
+    }
+
+    /**
+     * The writer streams a counting byte sequence and waits for room instead of lapping the
+     * reader. Published bytes must reach the reader complete and in order: no torn, stale or
+     * missing bytes.
+     */
+    @Test
+    public void readerThatKeepsUpSeesEveryByteInOrder() throws InterruptedException {
+        final SpscRingBuffer ring = new SpscRingBuffer(256);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final int total = 4_000_000;
+
+        final Thread writer = new Thread(() -> {
+            final byte[] chunk = new byte[96];
+            int next = 0;
+            while (next < total) {
+                while (ring.available() > ring.capacity() - chunk.length) {
+                    Thread.yield();
+                }
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = (byte) (next + i);
+                }
+                ring.write(chunk, 0, chunk.length);
+                next += chunk.length;
+            }
+            writing.set(false);
+            ring.wakeUp();
+        });
+        writer.start();
+
+        final byte[] out = new byte[128];
+        long received = 0;
+        int broken = 0;
+        while (writing.get() || ring.available() > 0) {
+            if (!ring.awaitData(1, 1_000_000L)) continue;
+            final int count = ring.read(out, 0, out.length);
+            for (int i = 0; i < count; i++) {
+                if (out[i] != (byte) (received + i)) broken++;
+            }
+            received += count;
+        }
+        writer.join();
+
+        assertEquals("reads returned torn or stale data", 0, broken);
+        assertEquals((total + 95) / 96 * 96, received);
+    }
+
+    private interface Ring {
+        void write(byte[] data, int length);
+
+        int read(byte[] data, int length);
+
+        boolean hasSufficientData(int requiredSize);
+    }
+
+    /**
+     * Call audio hand-off between two threads: 256 byte frames in, 128 byte playback blocks
+     * out, against the synchronized CircularBuffer it replaces. The writer waits for room so
+     * every byte is delivered and the rate covers both sides
+     */
+    @Test
+    public void throughputAgainstCircularBuffer() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        final int size = 256 * 64;
+
+        Benchmarks.report("ring              MB/s%n");
+        for (int round = 0; round < 3; round++) {
+            final SpscRingBuffer spsc = new SpscRingBuffer(size);
+            final double spscRate = throughput(size, new Ring() {
+                public void write(byte[] data, int length) {
+                    spsc.write(data, 0, length);
+                }
+
+                public int read(byte[] data, int length) {
+                    return spsc.read(data, 0, length);
+                }
+
+                public boolean hasSufficientData(int requiredSize) {
+                    return spsc.hasSufficientData(requiredSize);
+                }
+            });
+
+            final CircularBuffer circular = new CircularBuffer(size);
+            final double circularRate = throughput(size, new Ring() {
+                public void write(byte[] data, int length) {
+                    circular.write(data, 0, length);
+                }
+
+                public int read(byte[] data, int length) {
+                    return circular.read(data, 0, length);
+                }
+
+                public boolean hasSufficientData(int requiredSize) {
+                    return circular.hasSufficientData(requiredSize);
+                }
+            });
+
+            // the first rounds warm the JIT up
+            if (round == 2) {
+                Benchmarks.report("SpscRingBuffer  %6.1f%nCircularBuffer  %6.1f%n", spscRate, circularRate);
+            }
+        }
+    }
+
+    /// MB/s through the ring for 32 MB
+    private static double throughput(int size, Ring ring) throws InterruptedException {
+        final long total = 32L * 1024 * 1024;
+        final int frameSize = 256;
+
+        final Thread writer = new Thread(() -> {
+            final byte[] frame = new byte[frameSize];
+            for (long written = 0; written < total; written += frame.length) {
+                // never overwrite unread data
+                while (ring.hasSufficientData(size - frameSize + 1)) {
+                    Thread.yield();
+                }
+                ring.write(frame, frame.length);
+            }
+        });
+
+        final byte[] block = new byte[128];
+        long received = 0;
+        final long started = System.nanoTime();
+        writer.start();
+        while (received < total) {
+            final int count = ring.read(block, block.length);
+            if (count == 0) {
+                Thread.yield();
+            }
+            received += count;
+        }
+        final long elapsed = System.nanoTime() - started;
+        writer.join();
+
+        assertEquals(total, received);
+        return total / 1e6 / (elapsed / 1e9);
+    }
+
+    private static byte[] bytes(int first, int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (first + i);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,223 @@
+package network.beechat.kaonic.communication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import network.beechat.kaonic.Benchmarks;
+
+/**
+ * ChunkDeflater and ChunkInflater against each other: chunks numbered by their offset in the
+ * compressed stream, delivered in order, shuffled within the sender window and repeated.
+ */
+public class ChunkCompressionTest {
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int CHUNK_SIZE = 480;
+    private static final int WINDOW = 8;
+
+    private static final class Chunk {
+        final long offset;
+        final byte[] data;
+
+        Chunk(long offset, byte[] data) {
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    @Test
+    public void textRoundTripInOrder() throws IOException {
+        final byte[] file = text(200 * 1024);
+        final List<Chunk> chunks = deflate(file, 0, CHUNK_SIZE);
+
+        assertArrayEquals(file, inflate(chunks, 0, file.length));
+        assertTrue("text must shrink", compressedSize(chunks) < file.length / 2);
+    }
+
+    @Test
+    public void randomDataRoundTripWithVaryingChunkSize() throws IOException {
+        final byte[] file = new byte[100 * 1024 + 17];
+        new Random(3).nextBytes(file);
+
+        final ChunkDeflater deflater = new ChunkDeflater(source(file, 0));
+        final Random sizes = new Random(5);
+        final List<Chunk> chunks = new ArrayList<>();
+        long offset = 0;
+        while (!deflater.isFinished()) {
+            final ByteBuffer chunk = deflater.nextChunk(64 + sizes.nextInt(CHUNK_SIZE));
+            chunks.add(new Chunk(offset, toArray(chunk)));
+            offset += chunks.get(chunks.size() - 1).data.length;
+        }
+        deflater.close();
+
+        assertArrayEquals(file, inflate(chunks, 0, file.length));
+    }
+
+    /**
+     * Retransmitted chunks arrive late and twice, the inflater holds the ones after a gap
+     */
+    @Test
+    public void shuffledAndRepeatedChunksWithinWindow() throws IOException {
+        final byte[] file = text(120 * 1024);
+        final List<Chunk> chunks = deflate(file, 0, CHUNK_SIZE);
+
+        final Random random = new Random(7);
+        final List<Chunk> delivered = new ArrayList<>();
+        for (int start = 0; start < chunks.size(); start += WINDOW) {
+            final List<Chunk> window = new ArrayList<>(chunks.subList(start, Math.min(chunks.size(), start + WINDOW)));
+            Collections.shuffle(window, random);
+            delivered.addAll(window);
+            delivered.add(window.get(random.nextInt(window.size())));
+        }
+        // late duplicates of chunks already inflated
+        delivered.add(chunks.get(0));
+        delivered.add(chunks.get(chunks.size() / 2));
+
+        assertArrayEquals(file, inflate(delivered, 0, file.length));
+    }
+
+    /// resumed transfer: the compressed stream is numbered from the resume offset
+    @Test
+    public void resumedStreamStartsAtFileOffset() throws IOException {
+        final byte[] file = text(64 * 1024);
+        final int start = 10_000;
+        final List<Chunk> chunks = deflate(file, start, CHUNK_SIZE);
+
+        final byte[] received = inflate(chunks, start, file.length);
+        assertArrayEquals(Arrays.copyOfRange(file, start, file.length),
+                Arrays.copyOfRange(received, start, file.length));
+    }
+
+    @Test
+    public void supportedCompressions() {
+        assertTrue(FileCompression.isSupported(null));
+        assertTrue(FileCompression.isSupported(FileCompression.NONE));
+        assertTrue(FileCompression.isSupported(FileCompression.DEFLATE));
+        assertFalse(FileCompression.isSupported("zstd"));
+
+        assertTrue(FileCompression.isCompressible("text/plain"));
+        assertTrue(FileCompression.isCompressible("image/bmp"));
+        assertFalse(FileCompression.isCompressible("image/jpeg"));
+        assertFalse(FileCompression.isCompressible("application/zip"));
+    }
+
+    @Test
+    public void throughputAndRatio() throws IOException {
+        Benchmarks.assumeEnabled();
+        final byte[] text = text(1024 * 1024);
+        final byte[] random = new byte[1024 * 1024];
+        new Random(11).nextBytes(random);
+
+        Benchmarks.report("data     ratio  deflate MB/s  inflate MB/s%n");
+        for (int round = 0; round < 3; round++) {
+            measure(round == 2 ? "text" : null, text);
+            measure(round == 2 ? "random" : null, random);
+        }
+    }
+
+    /// prints only when named, the first rounds warm the JIT up
+    private static void measure(String name, byte[] file) throws IOException {
+        final long deflateStart = System.nanoTime();
+        final List<Chunk> chunks = deflate(file, 0, CHUNK_SIZE);
+        final long deflateNanos = System.nanoTime() - deflateStart;
+
+        final long inflateStart = System.nanoTime();
+        final byte[] received = inflate(chunks, 0, file.length);
+        final long inflateNanos = System.nanoTime() - inflateStart;
+
+        assertArrayEquals(file, received);
+        if (name != null) {
+            Benchmarks.report("%-7s %6.2f  %12.1f  %12.1f%n", name,
+                    compressedSize(chunks) / (double) file.length,
+                    file.length / 1e6 / (deflateNanos / 1e9), file.length / 1e6 / (inflateNanos / 1e9));
+        }
+    }
+
+    private static List<Chunk> deflate(byte[] file, int start, int chunkSize) throws IOException {
+        final ChunkDeflater deflater = new ChunkDeflater(source(file, start));
+        final List<Chunk> chunks = new ArrayList<>();
+        long offset = start;
+        while (!deflater.isFinished()) {
+            final byte[] data = toArray(deflater.nextChunk(chunkSize));
+            assertTrue(data.length <= chunkSize);
+            chunks.add(new Chunk(offset, data));
+            offset += data.length;
+        }
+        deflater.close();
+        return chunks;
+    }
+
+    private static byte[] inflate(List<Chunk> chunks, int start, int fileSize) throws IOException {
+        final byte[] received = new byte[fileSize];
+        final long[] written = {start};
+        final ChunkInflater inflater = new ChunkInflater(start);
+        for (Chunk chunk : chunks) {
+            inflater.add(chunk.offset, chunk.data, (offset, data) -> {
+                // inflated data comes out in file order
+                assertEquals(written[0], offset);
+                System.arraycopy(data, 0, received, (int) offset, data.length);
+                written[0] += data.length;
+            });
+        }
+        assertTrue(inflater.isFinished());
+        assertEquals(fileSize, written[0]);
+        inflater.close();
+        return received;
+    }
+
+    private static ChunkDeflater.Source source(byte[] file, int start) {
+        final int[] position = {start};
+        return () -> {
+            final int count = Math.min(BLOCK_SIZE, file.length - position[0]);
+            final ByteBuffer block = ByteBuffer.wrap(file, position[0], count).slice();
+            position[0] += count;
+            return block;
+        };
+    }
+
+    private static long compressedSize(List<Chunk> chunks) {
+        long size = 0;
+        for (Chunk chunk : chunks) {
+            size += chunk.data.length;
+        }
+        return size;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    /// log-like lines, compressible like the chat exports and documents that get sent
+    private static byte[] text(int size) {
+        final Random random = new Random(size);
+        final String[] words = {"kaonic", "radio", "link", "chunk", "ack", "window", "file", "mesh", "node",
+                "retransmit", "status", "delivered", "message", "contact", "frequency", "channel"};
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 128);
+        int line = 0;
+        while (out.size() < size) {
+            final StringBuilder builder = new StringBuilder().append(line++).append(' ');
+            for (int i = 0; i < 8; i++) {
+                builder.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            builder.append(random.nextInt(100_000)).append('\n');
+            final byte[] bytes = builder.toString().getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes, 0, bytes.length);
+        }
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+}
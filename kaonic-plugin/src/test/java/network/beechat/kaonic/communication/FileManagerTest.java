@@ -0,0 +1,83 @@
+package network.beechat.kaonic.communication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileManagerTest {
+    private static final int FILE_SIZE = 200 * 1024;
+    private static final int CHUNK_SIZE = 4096;
+    /// not a chunk boundary, a resume may start anywhere
+    private static final int RESUME_OFFSET = 70_000;
+
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("kaonic-resume", ".bin");
+        content = new byte[FILE_SIZE];
+        new Random(3).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * The received part is read back through its own channel while the file is written through
+     * a write only one, like the descriptors of a content uri. The stale tail after the resume
+     * offset is discarded and the hash covers the whole file
+     */
+    @Test
+    public void resumedFileIsCompletedWithTheHashOfTheWholeFile() throws Exception {
+        final byte[] partial = Arrays.copyOf(content, RESUME_OFFSET + 5000);
+        Arrays.fill(partial, RESUME_OFFSET, partial.length, (byte) 0x55);
+        Files.write(file.toPath(), partial);
+
+        final FileManager receiver = new FileManager();
+        receiver.fileId = "file";
+        receiver.fileSize = FILE_SIZE;
+        try (FileChannel prefixChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            receiver.resumeWrite(FileChannel.open(file.toPath(), StandardOpenOption.WRITE), prefixChannel,
+                    RESUME_OFFSET);
+        }
+        assertEquals(RESUME_OFFSET, receiver.getProcessedBytes());
+
+        boolean finished = false;
+        for (int offset = RESUME_OFFSET; offset < FILE_SIZE; offset += CHUNK_SIZE) {
+            assertFalse(finished);
+            finished = receiver.writeChunk(offset,
+                    Arrays.copyOfRange(content, offset, Math.min(offset + CHUNK_SIZE, FILE_SIZE)));
+        }
+        assertTrue(finished);
+        receiver.close();
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(sha256(content), receiver.getSha256());
+    }
+
+    private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
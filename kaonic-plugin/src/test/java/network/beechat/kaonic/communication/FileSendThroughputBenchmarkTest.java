@@ -0,0 +1,160 @@
+package network.beechat.kaonic.communication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import network.beechat.kaonic.Benchmarks;
+import network.beechat.kaonic.models.messages.MessageFileStartEvent;
+
+/**
+ * Bytes per second of the Java file send path against the sender window on a loopback link.
+ * <p>
+ * A real {@link FileTransferScheduler} serves chunk requests from a real {@link FileManager}
+ * reading a temp file. The link stands in for the native side: every chunk is serialized at a
+ * fixed rate, its ack comes back one round trip later and asks for the next chunk, like the
+ * native sender refilling its window. Stop-and-wait (window 1) pays a round trip per chunk,
+ * larger windows fill the link.
+ */
+public class FileSendThroughputBenchmarkTest {
+    private static final int FILE_SIZE = 512 * 1024;
+    private static final int CHUNK_SIZE = 4096;
+    private static final long LINK_BYTES_PER_SECOND = 4 * 1024 * 1024;
+    private static final long ROUND_TRIP_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+    private static final int[] WINDOWS = {1, 2, 8, 32};
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private File file;
+    private byte[] content;
+    private ScheduledExecutorService link;
+
+    /// fake native side: receives chunks and acks them after the link delay
+    private final class LoopbackLink implements FileTransferScheduler.Callback {
+        final byte[] received = new byte[FILE_SIZE];
+        final CountDownLatch delivered = new CountDownLatch(1);
+        FileTransferScheduler scheduler;
+        /// only touched by the scheduler thread
+        int receivedBytes = 0;
+        long linkFreeAt = 0;
+
+        @Override
+        public void onTransferStarted(@NonNull FileManager sender, @NonNull MessageFileStartEvent startEvent) {
+        }
+
+        @Override
+        public void onChunkRequested(@NonNull FileManager sender, int chunkSize) {
+            final ByteBuffer chunk;
+            try {
+                chunk = sender.nextChunk(chunkSize);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            final int size = chunk.remaining();
+            if (size == 0) return;
+
+            chunk.get(received, receivedBytes, size);
+            receivedBytes += size;
+            final boolean last = receivedBytes >= FILE_SIZE;
+
+            final long now = System.nanoTime();
+            linkFreeAt = Math.max(now, linkFreeAt) + size * 1_000_000_000L / LINK_BYTES_PER_SECOND;
+            link.schedule(() -> {
+                if (last) {
+                    delivered.countDown();
+                } else {
+                    scheduler.requestChunk(sender.getFileId(), chunkSize);
+                }
+            }, linkFreeAt + ROUND_TRIP_NANOS - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(7).nextBytes(content);
+        file = File.createTempFile("kaonic-send", ".bin");
+        Files.write(file.toPath(), content);
+        link = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        link.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void throughputAgainstWindow() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        // warm up the send path
+        send(8);
+
+        double stopAndWait = 0;
+        double windowed = 0;
+        for (int window : WINDOWS) {
+            final double bytesPerSecond = send(window);
+            Benchmarks.report("window %2d: %8.0f KB/s%n", window, bytesPerSecond / 1024);
+            if (window == 1) stopAndWait = bytesPerSecond;
+            if (window == 8) windowed = bytesPerSecond;
+        }
+
+        assertTrue("window 8 should at least double stop-and-wait", windowed >= 2 * stopAndWait);
+    }
+
+    /// send the file through the scheduler, returns bytes per second
+    private double send(int window) throws Exception {
+        final LoopbackLink loopback = new LoopbackLink();
+        final FileTransferScheduler scheduler = new FileTransferScheduler(loopback, 1);
+        loopback.scheduler = scheduler;
+
+        final FileManager sender = new FileManager();
+        sender.fileId = "file-" + window;
+        sender.fileSize = FILE_SIZE;
+        sender.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        sender.initialized = true;
+
+        final long start = System.nanoTime();
+        assertTrue(scheduler.add(sender, new MessageFileStartEvent(), 1));
+        for (int i = 0; i < window; i++) {
+            scheduler.requestChunk(sender.getFileId(), CHUNK_SIZE);
+        }
+        assertTrue(loopback.delivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+
+        scheduler.remove(sender.getFileId());
+        assertArrayEquals(content, loopback.received);
+        assertEquals(sha256(content), sender.getSha256());
+        sender.close();
+
+        return FILE_SIZE * 1e9 / elapsed;
+    }
+
+    private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,126 @@
+package network.beechat.kaonic.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import network.beechat.kaonic.models.messages.MessageFileStartEvent;
+
+public class FileTransferSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final class RecordingCallback implements FileTransferScheduler.Callback {
+        final List<String> started = Collections.synchronizedList(new ArrayList<>());
+        final List<String> chunks = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch firstChunkEntered = new CountDownLatch(1);
+        final CountDownLatch firstChunkReleased = new CountDownLatch(1);
+        CountDownLatch chunksDone = new CountDownLatch(0);
+
+        @Override
+        public void onTransferStarted(@NonNull FileManager sender, @NonNull MessageFileStartEvent startEvent) {
+            started.add(sender.getFileId());
+        }
+
+        @Override
+        public void onChunkRequested(@NonNull FileManager sender, int chunkSize) {
+            chunks.add(sender.getFileId());
+            // hold the scheduler thread on the first chunk so the other requests queue up
+            firstChunkEntered.countDown();
+            try {
+                firstChunkReleased.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            chunksDone.countDown();
+        }
+    }
+
+    /**
+     * Two active files with priorities 1 and 2: every round serves one chunk of A and two of B
+     */
+    @Test
+    public void chunksAreServedInWeightedRoundRobin() throws InterruptedException {
+        final RecordingCallback callback = new RecordingCallback();
+        final FileTransferScheduler scheduler = new FileTransferScheduler(callback, 2);
+        callback.chunksDone = new CountDownLatch(9);
+
+        assertTrue(scheduler.add(sender("A"), new MessageFileStartEvent(), 1));
+        assertTrue(scheduler.add(sender("B"), new MessageFileStartEvent(), 2));
+
+        scheduler.requestChunk("A", 512);
+        assertTrue(callback.firstChunkEntered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < 6; i++) {
+            scheduler.requestChunk("B", 512);
+        }
+        for (int i = 0; i < 2; i++) {
+            scheduler.requestChunk("A", 512);
+        }
+        callback.firstChunkReleased.countDown();
+
+        assertTrue(callback.chunksDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(joined("A", "B", "B", "A", "B", "B", "A", "B", "B"), joined(callback.chunks));
+    }
+
+    @Test
+    public void waitingTransferStartsWhenSlotIsFree() {
+        final RecordingCallback callback = new RecordingCallback();
+        final FileTransferScheduler scheduler = new FileTransferScheduler(callback, 1);
+
+        assertTrue(scheduler.add(sender("A"), new MessageFileStartEvent(), 1));
+        assertFalse(scheduler.add(sender("B"), new MessageFileStartEvent(), 1));
+        // higher priority overtakes the file added before it
+        assertFalse(scheduler.add(sender("C"), new MessageFileStartEvent(), 3));
+        assertEquals(1, scheduler.getActiveCount());
+        assertEquals(2, scheduler.getWaitingCount());
+
+        scheduler.remove("A");
+        scheduler.remove("C");
+        assertEquals(joined("A", "C", "B"), joined(callback.started));
+        assertEquals(1, scheduler.getActiveCount());
+        assertEquals(0, scheduler.getWaitingCount());
+    }
+
+    @Test
+    public void requestsOfWaitingOrRemovedTransfersAreIgnored() throws InterruptedException {
+        final RecordingCallback callback = new RecordingCallback();
+        callback.firstChunkReleased.countDown();
+        final FileTransferScheduler scheduler = new FileTransferScheduler(callback, 1);
+
+        scheduler.add(sender("A"), new MessageFileStartEvent(), 1);
+        scheduler.add(sender("B"), new MessageFileStartEvent(), 1);
+        scheduler.requestChunk("B", 512);
+        scheduler.remove("A");
+        scheduler.requestChunk("A", 512);
+
+        callback.chunksDone = new CountDownLatch(1);
+        scheduler.requestChunk("B", 512);
+        assertTrue(callback.chunksDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(joined("B"), joined(callback.chunks));
+    }
+
+    private static FileManager sender(String fileId) {
+        final FileManager sender = new FileManager();
+        sender.fileId = fileId;
+        return sender;
+    }
+
+    private static String joined(String... ids) {
+        return String.join(" ", ids);
+    }
+
+    private static String joined(List<String> ids) {
+        synchronized (ids) {
+            return String.join(" ", ids);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package network.beechat.kaonic.communication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import network.beechat.kaonic.Benchmarks;
+
+public class FileWriteBehindTest {
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int CHUNK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /// long enough that only full blocks and gaps cause writes
+    private static final long FLUSH_INTERVAL_MS = 60_000;
+
+    private File file;
+    private FileChannel channel;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("write-behind", ".bin");
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        channel.close();
+        file.delete();
+    }
+
+    /**
+     * Chunks in order are gathered into full blocks: one write per buffer instead of one
+     * per chunk
+     */
+    @Test
+    public void sequentialChunksAreWrittenInFullBlocks() throws IOException {
+        final FileWriteBehind writeBehind = new FileWriteBehind(channel, BUFFER_SIZE, FLUSH_INTERVAL_MS, 0);
+        for (int offset = 0; offset < FILE_SIZE; offset += CHUNK_SIZE) {
+            writeBehind.write(offset, chunk(offset));
+        }
+        writeBehind.flush();
+
+        report("sequential", writeBehind);
+        assertEquals(FILE_SIZE / CHUNK_SIZE, writeBehind.getChunkCount());
+        assertEquals(FILE_SIZE / BUFFER_SIZE, writeBehind.getWriteCount());
+        assertEquals(FILE_SIZE, writeBehind.getWrittenPrefix());
+        writeBehind.close();
+        assertArrayEquals(content, readFile());
+    }
+
+    /**
+     * Every lost chunk breaks the run and costs an extra write, the retransmission lands
+     * out of order later
+     */
+    @Test
+    public void retransmittedChunksCostOneWriteEach() throws IOException {
+        final int lossEvery = 50;
+        final FileWriteBehind writeBehind = new FileWriteBehind(channel, BUFFER_SIZE, FLUSH_INTERVAL_MS, 0);
+        int lost = 0;
+        for (int offset = 0; offset < FILE_SIZE; offset += CHUNK_SIZE) {
+            if ((offset / CHUNK_SIZE) % lossEvery == lossEvery - 1) {
+                lost++;
+                continue;
+            }
+            writeBehind.write(offset, chunk(offset));
+        }
+        for (int offset = 0; offset < FILE_SIZE; offset += CHUNK_SIZE) {
+            if ((offset / CHUNK_SIZE) % lossEvery == lossEvery - 1) {
+                writeBehind.write(offset, chunk(offset));
+            }
+        }
+        writeBehind.flush();
+
+        report("2% retransmitted", writeBehind);
+        assertEquals(FILE_SIZE / CHUNK_SIZE, writeBehind.getChunkCount());
+        // every gap splits a block, the late chunks are written one by one
+        assertTrue(writeBehind.getWriteCount() <= FILE_SIZE / BUFFER_SIZE + 2 * lost + 1);
+        assertEquals(FILE_SIZE, writeBehind.getWrittenPrefix());
+        writeBehind.close();
+        assertArrayEquals(content, readFile());
+    }
+
+    @Test
+    public void failedWriteIsReportedByFlushAndNextWrite() throws IOException {
+        final FileWriteBehind writeBehind = new FileWriteBehind(channel, BUFFER_SIZE, FLUSH_INTERVAL_MS, 0);
+        writeBehind.write(0, chunk(0));
+        channel.close();
+
+        try {
+            writeBehind.flush();
+            fail("flush must report the failed write");
+        } catch (IOException expected) {
+        }
+        try {
+            writeBehind.write(CHUNK_SIZE, chunk(CHUNK_SIZE));
+            fail("write must report the earlier failure");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, writeBehind.getWrittenPrefix());
+    }
+
+    private byte[] chunk(int offset) {
+        return Arrays.copyOfRange(content, offset, Math.min(FILE_SIZE, offset + CHUNK_SIZE));
+    }
+
+    private byte[] readFile() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
+        try (FileChannel reader = new RandomAccessFile(file, "r").getChannel()) {
+            while (buffer.hasRemaining() && reader.read(buffer) >= 0) {
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void report(String name, FileWriteBehind writeBehind) {
+        Benchmarks.report("%-18s %5d chunks in %4d writes, %.1f chunks per write%n", name,
+                writeBehind.getChunkCount(), writeBehind.getWriteCount(),
+                writeBehind.getChunkCount() / (double) writeBehind.getWriteCount());
+    }
+}
@@ -0,0 +1,165 @@
+package network.beechat.kaonic.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CallbackDispatcherTest {
+    private static final int PRODUCERS = 4;
+    private static final int TASKS_PER_PRODUCER = 2000;
+    private static final String[] KEYS = {"file-a", "file-b", "topic-c"};
+
+    /**
+     * Small per-key queue so producers wait for space all the time and keys drain and are
+     * recreated between waits. Tasks of one key must never overlap and every producer's tasks
+     * must run in the order they were dispatched.
+     */
+    @Test
+    public void tasksOfOneKeyRunOneAtATimeInOrder() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1);
+
+        final ConcurrentHashMap<String, AtomicBoolean> running = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, int[]> lastSequence = new ConcurrentHashMap<>();
+        for (String key : KEYS) {
+            running.put(key, new AtomicBoolean());
+            final int[] last = new int[PRODUCERS];
+            java.util.Arrays.fill(last, -1);
+            lastSequence.put(key, last);
+        }
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger reordered = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(PRODUCERS * TASKS_PER_PRODUCER);
+
+        final List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < TASKS_PER_PRODUCER; i++) {
+                    final String key = KEYS[(producer + i) % KEYS.length];
+                    final int sequence = i;
+                    dispatcher.dispatch(key, () -> {
+                        if (!running.get(key).compareAndSet(false, true)) overlaps.incrementAndGet();
+                        final int[] last = lastSequence.get(key);
+                        if (last[producer] >= sequence) reordered.incrementAndGet();
+                        last[producer] = sequence;
+                        running.get(key).set(false);
+                        done.countDown();
+                    });
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        assertTrue("callbacks didn't finish", done.await(10, TimeUnit.SECONDS));
+        assertEquals("tasks of one key ran in parallel", 0, overlaps.get());
+        assertEquals("tasks of one key ran out of order", 0, reordered.get());
+        for (String key : KEYS) {
+            assertEquals(0, dispatcher.pendingCount(key));
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheKey() throws InterruptedException {
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(1, 4);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        dispatcher.dispatch("key", () -> {
+            throw new IllegalStateException("listener failed");
+        });
+        dispatcher.dispatch("key", done::countDown);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyQueue() {
+        new CallbackDispatcher(1, 0);
+    }
+
+    /**
+     * The caller is a native runtime thread that tasks may wait for, a full key queue must
+     * not block it
+     */
+    @Test
+    public void fullQueueNeverBlocksDispatch() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(3);
+
+        dispatcher.dispatch("key", () -> {
+            entered.countDown();
+            awaitQuietly(release);
+            finished.countDown();
+        });
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        dispatcher.dispatch("key", finished::countDown);
+
+        final AtomicBoolean blocked = new AtomicBoolean(true);
+        final Thread producer = new Thread(() -> {
+            dispatcher.dispatch("key", finished::countDown);
+            blocked.set(false);
+        });
+        producer.start();
+        producer.join(1000);
+        assertFalse("dispatch waited for the key queue", blocked.get());
+        assertEquals(1, dispatcher.getOverflowCount());
+        assertEquals(2, dispatcher.pendingCount("key"));
+
+        release.countDown();
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void tryDispatchDropsWhenQueueIsFull() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+
+        assertTrue(dispatcher.tryDispatch("topic", () -> {
+            entered.countDown();
+            awaitQuietly(release);
+        }));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        assertTrue(dispatcher.tryDispatch("topic", runs::incrementAndGet));
+        assertFalse(dispatcher.tryDispatch("topic", runs::incrementAndGet));
+        assertEquals(1, dispatcher.getDroppedCount());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package network.beechat.kaonic.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EventBatchTest {
+
+    @Test
+    public void eventsArePassedAsTheirRawText() throws IOException {
+        final String first = "{\"type\":\"Message\",\"data\":{\"text\":\"a ] } \\\" [ {\",\"n\":[1,{\"x\":2}]}}";
+        final String second = "{\"type\":\"SendQueue\",\"data\":{\"depth\":3}}";
+        final String third = "{}";
+
+        assertEquals(Arrays.asList(first, second, third),
+                split("[" + first + "," + second + ",\n " + third + "]"));
+    }
+
+    @Test
+    public void emptyBatch() throws IOException {
+        assertEquals(new ArrayList<String>(), split("[ ]"));
+    }
+
+    @Test
+    public void rejectsWhatIsNotAnArray() {
+        for (String batch : new String[]{"{\"type\":\"Message\"}", "[{\"type\":\"Message\"}", ""}) {
+            try {
+                split(batch);
+                fail("accepted " + batch);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private static List<String> split(String batch) throws IOException {
+        final List<String> events = new ArrayList<>();
+        EventBatch.forEach(batch, events::add);
+        return events;
+    }
+}
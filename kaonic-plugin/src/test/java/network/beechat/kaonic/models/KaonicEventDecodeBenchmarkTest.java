@@ -0,0 +1,110 @@
+package network.beechat.kaonic.models;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import network.beechat.kaonic.Benchmarks;
+import network.beechat.kaonic.models.calls.CallEventData;
+import network.beechat.kaonic.models.messages.ChatCreateEvent;
+import network.beechat.kaonic.models.messages.MessageFileEndEvent;
+import network.beechat.kaonic.models.messages.MessageFileResumeEvent;
+import network.beechat.kaonic.models.messages.MessageFileStartEvent;
+import network.beechat.kaonic.models.messages.MessageFileStatusEvent;
+import network.beechat.kaonic.models.messages.MessageStatusEvent;
+import network.beechat.kaonic.models.messages.MessageTextEvent;
+
+/**
+ * Decode time per event of the recorded native corpus: the single pass
+ * {@link KaonicEventDeserializer} against parsing the envelope to a tree and binding
+ * its data node again, which is what the manager did before.
+ */
+public class KaonicEventDecodeBenchmarkTest {
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 5_000;
+    private static final int TRIALS = 2;
+
+    private static final Map<String, Class<? extends KaonicEventData>> dataTypes = new HashMap<>();
+
+    static {
+        dataTypes.put(KaonicEventType.CONTACT_FOUND, ContactFoundEvent.class);
+        dataTypes.put(KaonicEventType.SEND_QUEUE, SendQueueEvent.class);
+        dataTypes.put(KaonicEventType.DELIVERY_STATS, DeliveryStatsEvent.class);
+        dataTypes.put(KaonicEventType.CHAT_CREATE, ChatCreateEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_TEXT, MessageTextEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_START, MessageFileStartEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_RESUME, MessageFileResumeEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_END, MessageFileEndEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_STATUS, MessageFileStatusEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_STATUS, MessageStatusEvent.class);
+        dataTypes.put(KaonicEventType.CALL_INVOKE, CallEventData.class);
+        dataTypes.put(KaonicEventType.CALL_ANSWER, CallEventData.class);
+        dataTypes.put(KaonicEventType.CALL_REJECT, CallEventData.class);
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private interface Decoder {
+        KaonicEvent<?> decode(String json) throws IOException;
+    }
+
+    @Test
+    public void singlePassAgainstTreeAndRebind() throws IOException {
+        Benchmarks.assumeEnabled();
+        final List<String> corpus = KaonicEventDeserializerTest.readCorpus();
+
+        final Decoder singlePass = json -> objectMapper.readValue(json, KaonicEvent.class);
+        final Decoder treeAndRebind = json -> {
+            final JsonNode tree = objectMapper.readTree(json);
+            final String type = tree.get("type").asText();
+            final Class<? extends KaonicEventData> dataType = dataTypes.get(type);
+            return new KaonicEvent<>(type,
+                    dataType == null ? null : objectMapper.treeToValue(tree.get("data"), dataType));
+        };
+
+        assertEquals(decodedCount(corpus, singlePass), decodedCount(corpus, treeAndRebind));
+
+        // alternate the decoders so neither profits from a later JIT state
+        double singlePassNanos = Double.MAX_VALUE;
+        double treeNanos = Double.MAX_VALUE;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            singlePassNanos = Math.min(singlePassNanos, measure(corpus, singlePass));
+            treeNanos = Math.min(treeNanos, measure(corpus, treeAndRebind));
+        }
+        Benchmarks.report("%d corpus events, best of %d: single pass %.0f ns/event, tree + rebind %.0f ns/event%n",
+                corpus.size(), TRIALS, singlePassNanos, treeNanos);
+    }
+
+    private static int decodedCount(List<String> corpus, Decoder decoder) throws IOException {
+        int count = 0;
+        for (String json : corpus) {
+            if (decoder.decode(json).data != null) count++;
+        }
+        return count;
+    }
+
+    private static double measure(List<String> corpus, Decoder decoder) throws IOException {
+        int sink = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            sink += decodedCount(corpus, decoder);
+        }
+
+        final long started = System.nanoTime();
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            sink += decodedCount(corpus, decoder);
+        }
+        final long elapsed = System.nanoTime() - started;
+
+        // keeps the decoding from being optimized away
+        if (sink == 0) throw new AssertionError("nothing decoded");
+        return elapsed / (double) (MEASURED_ROUNDS * corpus.size());
+    }
+}
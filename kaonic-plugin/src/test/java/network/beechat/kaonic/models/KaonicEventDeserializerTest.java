@@ -0,0 +1,200 @@
+package network.beechat.kaonic.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import network.beechat.kaonic.models.calls.CallEventData;
+import network.beechat.kaonic.models.messages.ChatCreateEvent;
+import network.beechat.kaonic.models.messages.MessageFileEndEvent;
+import network.beechat.kaonic.models.messages.MessageFileEvent;
+import network.beechat.kaonic.models.messages.MessageFileResumeEvent;
+import network.beechat.kaonic.models.messages.MessageFileStartEvent;
+import network.beechat.kaonic.models.messages.MessageFileStatusEvent;
+import network.beechat.kaonic.models.messages.MessageLocationEvent;
+import network.beechat.kaonic.models.messages.MessageStatusEvent;
+import network.beechat.kaonic.models.messages.MessageTextEvent;
+
+public class KaonicEventDeserializerTest {
+    /// events recorded from the native side, one JSON object per line
+    static final String CORPUS = "/events/native-events.jsonl";
+
+    private static final Map<String, Class<?>> dataTypes = new HashMap<>();
+
+    static {
+        dataTypes.put(KaonicEventType.CONTACT_FOUND, ContactFoundEvent.class);
+        dataTypes.put(KaonicEventType.SEND_QUEUE, SendQueueEvent.class);
+        dataTypes.put(KaonicEventType.DELIVERY_STATS, DeliveryStatsEvent.class);
+        dataTypes.put(KaonicEventType.CHAT_CREATE, ChatCreateEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_TEXT, MessageTextEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_LOCATION, MessageLocationEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_START, MessageFileStartEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_RESUME, MessageFileResumeEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_END, MessageFileEndEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE_STATUS, MessageFileStatusEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_FILE, MessageFileEvent.class);
+        dataTypes.put(KaonicEventType.MESSAGE_STATUS, MessageStatusEvent.class);
+        dataTypes.put(KaonicEventType.CALL_INVOKE, CallEventData.class);
+        dataTypes.put(KaonicEventType.CALL_ANSWER, CallEventData.class);
+        dataTypes.put(KaonicEventType.CALL_REJECT, CallEventData.class);
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Every mapped type is written with a value in each field, decoded and written again,
+     * both JSON trees must match field by field.
+     */
+    @Test
+    public void everyMappedTypeRoundTrips() throws IOException {
+        final Map<String, String> samples = new HashMap<>();
+        samples.put(KaonicEventType.CONTACT_FOUND, "{\"address\":\"a1\",\"timestamp\":5}");
+        samples.put(KaonicEventType.SEND_QUEUE, "{\"address\":\"a1\",\"timestamp\":5,\"depth\":12}");
+        samples.put(KaonicEventType.DELIVERY_STATS, "{\"address\":\"a1\",\"timestamp\":5,\"srtt_ms\":800,"
+                + "\"rttvar_ms\":200,\"timeout_ms\":1600,\"delivered\":9,\"retransmits\":3,\"failed\":1}");
+        samples.put(KaonicEventType.CHAT_CREATE, "{\"address\":\"a1\",\"timestamp\":5,\"chat_id\":\"c1\","
+                + "\"chat_name\":\"chat\"}");
+        samples.put(KaonicEventType.MESSAGE_TEXT, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"m1\","
+                + "\"chat_id\":\"c1\",\"text\":\"hello\"}");
+        samples.put(KaonicEventType.MESSAGE_LOCATION, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"m1\","
+                + "\"chat_id\":\"c1\",\"latitude\":49.5,\"longitude\":24.25}");
+        samples.put(KaonicEventType.MESSAGE_FILE_START, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"f1\","
+                + "\"chat_id\":\"c1\",\"file_id\":\"f1\",\"file_name\":\"a.jpg\",\"file_size\":4096,"
+                + "\"window\":4,\"offset\":1024,\"checksum\":true,\"chunk_size\":512,\"compression\":\"deflate\"}");
+        samples.put(KaonicEventType.MESSAGE_FILE_RESUME, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"r1\","
+                + "\"chat_id\":\"c1\",\"file_id\":\"f1\",\"offset\":2048}");
+        samples.put(KaonicEventType.MESSAGE_FILE_END, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"e1\","
+                + "\"chat_id\":\"c1\",\"file_id\":\"f1\",\"sha256\":\"00ff\"}");
+        samples.put(KaonicEventType.MESSAGE_FILE_STATUS, "{\"address\":\"a1\",\"timestamp\":5,"
+                + "\"file_id\":\"f1\",\"state\":\"failed\"}");
+        samples.put(KaonicEventType.MESSAGE_FILE, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"f1\","
+                + "\"chat_id\":\"c1\",\"fileName\":\"a.jpg\",\"fileSize\":4096,\"fileSizeProcessed\":2048,"
+                + "\"path\":\"content://a\",\"status\":\"completed\",\"bytesPerSecond\":300,\"chunkSize\":512,"
+                + "\"retransmits\":2,\"ackRttMs\":900,\"compressedBytes\":1000}");
+        samples.put(KaonicEventType.MESSAGE_STATUS, "{\"address\":\"a1\",\"timestamp\":5,\"id\":\"m1\","
+                + "\"state\":\"acked\",\"retries\":2,\"ack_rtt_ms\":1500}");
+        final String call = "{\"address\":\"a1\",\"timestamp\":5,\"call_id\":\"k1\",\"id\":\"i1\"}";
+        samples.put(KaonicEventType.CALL_INVOKE, call);
+        samples.put(KaonicEventType.CALL_ANSWER, call);
+        samples.put(KaonicEventType.CALL_REJECT, call);
+
+        assertEquals("sample missing for a mapped type", dataTypes.keySet(), samples.keySet());
+
+        for (Map.Entry<String, String> sample : samples.entrySet()) {
+            final String type = sample.getKey();
+            final String json = "{\"type\":\"" + type + "\",\"data\":" + sample.getValue() + "}";
+
+            final KaonicEvent<?> event = objectMapper.readValue(json, KaonicEvent.class);
+            assertEquals(type, event.type);
+            assertNotNull(type, event.data);
+            assertSame(type, dataTypes.get(type), event.data.getClass());
+
+            final JsonNode expected = objectMapper.readTree(json);
+            final JsonNode written = objectMapper.readTree(objectMapper.writeValueAsString(event));
+            assertEquals(type, expected.get("type"), written.get("type"));
+            assertFieldsEqual(type, expected.get("data"), written.get("data"));
+
+            final KaonicEvent<?> again = objectMapper.readValue(written.toString(), KaonicEvent.class);
+            assertEquals(type, written, objectMapper.readTree(objectMapper.writeValueAsString(again)));
+        }
+    }
+
+    /// every recorded native event decodes to its mapped type with the fields it carried
+    @Test
+    public void decodesRecordedCorpus() throws IOException {
+        final List<String> corpus = readCorpus();
+        assertTrue(corpus.size() > 0);
+
+        int mapped = 0;
+        for (String line : corpus) {
+            final JsonNode expected = objectMapper.readTree(line);
+            final String type = expected.get("type").asText();
+            final KaonicEvent<?> event = objectMapper.readValue(line, KaonicEvent.class);
+
+            assertEquals(type, event.type);
+            final Class<?> dataType = dataTypes.get(type);
+            if (dataType == null) {
+                assertNull(line, event.data);
+                continue;
+            }
+            assertSame(line, dataType, event.data.getClass());
+            assertFieldsEqual(line, expected.get("data"),
+                    objectMapper.readTree(objectMapper.writeValueAsString(event.data)));
+            mapped++;
+        }
+        assertTrue(mapped > 0);
+    }
+
+    @Test
+    public void decodesDataBeforeType() throws IOException {
+        final KaonicEvent<?> event = objectMapper.readValue(
+                "{\"data\":{\"address\":\"a1\",\"id\":\"m1\",\"chat_id\":\"c1\",\"text\":\"hi\"},"
+                        + "\"extra\":[1,{\"x\":2}],\"type\":\"Message\"}", KaonicEvent.class);
+
+        assertEquals(KaonicEventType.MESSAGE_TEXT, event.type);
+        assertEquals("hi", ((MessageTextEvent) event.data).text);
+    }
+
+    @Test
+    public void decodesUnknownOrNullDataAsNull() throws IOException {
+        assertNull(objectMapper.readValue("{\"type\":\"Future\",\"data\":{\"a\":[1,2]}}", KaonicEvent.class).data);
+        assertNull(objectMapper.readValue("{\"type\":\"Message\",\"data\":null}", KaonicEvent.class).data);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEventWithoutType() throws IOException {
+        objectMapper.readValue("{\"data\":{\"address\":\"a1\"}}", KaonicEvent.class);
+    }
+
+    static List<String> readCorpus() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        try (InputStream input = KaonicEventDeserializerTest.class.getResourceAsStream(CORPUS)) {
+            assertNotNull("missing " + CORPUS, input);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.trim().isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /// fields of expected known to the Java model must come back with the same value
+    private static void assertFieldsEqual(String message, JsonNode expected, JsonNode actual) {
+        final Iterator<Map.Entry<String, JsonNode>> fields = expected.fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            final JsonNode value = actual.get(field.getKey());
+            if (value == null) continue;
+            if (field.getValue().isNumber() && value.isNumber()) {
+                assertEquals(message + " " + field.getKey(),
+                        field.getValue().doubleValue(), value.doubleValue(), 0.0);
+            } else {
+                assertEquals(message + " " + field.getKey(), field.getValue(), value);
+            }
+        }
+        // only nested objects like contact are not modelled on the Java side
+        for (Iterator<String> names = expected.fieldNames(); names.hasNext(); ) {
+            final String name = names.next();
+            assertTrue(message + " lost " + name, actual.has(name) || expected.get(name) instanceof ObjectNode);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package network.beechat.kaonic.models.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+public class RetransmitConfigTest {
+
+    @Test
+    public void defaultsAreValid() {
+        final RetransmitConfig config = new RetransmitConfig();
+        config.validate();
+
+        // only the native fields are serialized
+        final JsonNode json = new ObjectMapper().valueToTree(config);
+        assertEquals(6, json.size());
+    }
+
+    @Test
+    public void valuesNativeTimersCantUseAreRejected() {
+        assertInvalid(config -> config.initialTimeoutMs = -1);
+        assertInvalid(config -> config.maxAttempts = -1);
+        assertInvalid(config -> config.minTimeoutMs = config.maxTimeoutMs + 1);
+        assertInvalid(config -> config.backoffFactor = 0.5f);
+        assertInvalid(config -> config.backoffFactor = Float.POSITIVE_INFINITY);
+        assertInvalid(config -> config.backoffFactor = Float.NaN);
+        assertInvalid(config -> config.jitter = -0.1f);
+        assertInvalid(config -> config.jitter = Float.NaN);
+    }
+
+    private interface Change {
+        void apply(RetransmitConfig config);
+    }
+
+    private static void assertInvalid(Change change) {
+        final RetransmitConfig config = new RetransmitConfig();
+        change.apply(config);
+        try {
+            config.validate();
+            fail("config must be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
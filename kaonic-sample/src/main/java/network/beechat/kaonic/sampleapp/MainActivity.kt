@@ -15,6 +15,7 @@ import network.beechat.kaonic.sampleapp.services.KaonicService
 import network.beechat.kaonic.sampleapp.services.SecureStorageHelper
 import network.beechat.kaonic.sampleapp.services.call.CallService
 import network.beechat.kaonic.sampleapp.theme.SampleAppTheme
+import java.io.File
 
 class MainActivity : ComponentActivity() {
     companion object {
@@ -104,7 +105,8 @@ class MainActivity : ComponentActivity() {
             KaonicCommunicationManager(
                 KaonicLib.getInstance(applicationContext),
                 contentResolver,
-                ringtone
+                ringtone,
+                File(filesDir, "kaonic_transfers")
             ),
             secureStorageHelper
         )